@@ -0,0 +1,225 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import ninja.mustache.utils.MustacheConstant;
+
+import com.google.inject.Singleton;
+
+/**
+ * Statistics of the lookups of the values of the templates: for each name
+ * looked up by a template, how many times it was found and at which depth of
+ * the scope chain, and how many times it was missing.
+ *
+ * A missing name costs a walk through the whole scope chain on every
+ * rendering, so the misses are ranked by the number of scopes they walked
+ * through: the most expensive ones are usually a model missing a value, or a
+ * template testing a value no model provides.
+ *
+ * Only collected when {@link MustacheConstant#PROPERTY_PROFILE_LOOKUPS} is
+ * set.
+ *
+ * @author kpacha
+ */
+@Singleton
+public class LookupStatistics {
+
+    /**
+     * Deepest depth counted on its own, the deeper hits are counted with it
+     */
+    public static final int MAX_DEPTH = 15;
+
+    private final ConcurrentMap<String, Lookup> lookups = new ConcurrentHashMap<String, Lookup>();
+
+    /**
+     * @param template
+     * @param name
+     * @return the statistics of the lookups of a name by a template
+     */
+    public Lookup getLookup(String template, String name) {
+	String key = template + "\n" + name;
+	Lookup lookup = lookups.get(key);
+	if (lookup == null) {
+	    Lookup created = new Lookup(template, name);
+	    lookup = lookups.putIfAbsent(key, created);
+	    if (lookup == null) {
+		lookup = created;
+	    }
+	}
+	return lookup;
+    }
+
+    /**
+     * @return the statistics of every name looked up so far
+     */
+    public Collection<Lookup> getLookups() {
+	return Collections.unmodifiableCollection(lookups.values());
+    }
+
+    /**
+     * @param count
+     * @return the names missed the most, ranked by the number of scopes walked
+     *         through looking for them
+     */
+    public List<Lookup> getMostExpensiveMisses(int count) {
+	List<Lookup> misses = new ArrayList<Lookup>();
+	for (Lookup lookup : lookups.values()) {
+	    if (lookup.getMisses() > 0) {
+		misses.add(lookup);
+	    }
+	}
+	Collections.sort(misses, new Comparator<Lookup>() {
+	    @Override
+	    public int compare(Lookup a, Lookup b) {
+		long walkedA = a.getMissedScopes();
+		long walkedB = b.getMissedScopes();
+		return walkedA < walkedB ? 1 : walkedA > walkedB ? -1 : 0;
+	    }
+	});
+	return misses.subList(0, Math.min(count, misses.size()));
+    }
+
+    /**
+     * Write a report of the most expensive misses, one per line: the number
+     * of scopes walked through, the number of misses, the number of hits, the
+     * template and the name
+     *
+     * @param writer
+     * @param count
+     * @throws IOException
+     */
+    public void writeMissReport(Writer writer, int count) throws IOException {
+	for (Lookup lookup : getMostExpensiveMisses(count)) {
+	    writer.write(lookup.getMissedScopes() + "\t" + lookup.getMisses()
+		    + "\t" + lookup.getHits() + "\t" + lookup.getTemplate()
+		    + "\t" + lookup.getName() + "\n");
+	}
+	writer.flush();
+    }
+
+    /**
+     * Reset every counter
+     */
+    public void reset() {
+	for (Lookup lookup : lookups.values()) {
+	    lookup.reset();
+	}
+    }
+
+    /**
+     * Lookups of a name by a template
+     */
+    public static class Lookup {
+	private final String template;
+	private final String name;
+	private final AtomicLongArray hits = new AtomicLongArray(MAX_DEPTH + 1);
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong missedScopes = new AtomicLong();
+
+	Lookup(String template, String name) {
+	    this.template = template;
+	    this.name = name;
+	}
+
+	/**
+	 * Count a lookup finding the name
+	 *
+	 * @param depth
+	 *            the number of scopes walked through before the one
+	 *            holding the value
+	 */
+	public void hit(int depth) {
+	    hits.incrementAndGet(Math.min(depth, MAX_DEPTH));
+	}
+
+	/**
+	 * Count a lookup missing the name
+	 *
+	 * @param scopes
+	 *            the number of scopes walked through
+	 */
+	public void miss(int scopes) {
+	    misses.incrementAndGet();
+	    missedScopes.addAndGet(scopes);
+	}
+
+	public String getTemplate() {
+	    return template;
+	}
+
+	public String getName() {
+	    return name;
+	}
+
+	/**
+	 * @return the number of lookups finding the name
+	 */
+	public long getHits() {
+	    long total = 0;
+	    for (int depth = 0; depth <= MAX_DEPTH; depth++) {
+		total += hits.get(depth);
+	    }
+	    return total;
+	}
+
+	/**
+	 * @param depth
+	 * @return the number of lookups finding the name at the given depth,
+	 *         or deeper for {@link LookupStatistics#MAX_DEPTH}
+	 */
+	public long getHits(int depth) {
+	    return hits.get(depth);
+	}
+
+	public long getMisses() {
+	    return misses.get();
+	}
+
+	/**
+	 * @return the number of scopes walked through by all the misses
+	 */
+	public long getMissedScopes() {
+	    return missedScopes.get();
+	}
+
+	void reset() {
+	    for (int depth = 0; depth <= MAX_DEPTH; depth++) {
+		hits.set(depth, 0);
+	    }
+	    misses.set(0);
+	    missedScopes.set(0);
+	}
+
+	@Override
+	public String toString() {
+	    return template + " {{" + name + "}}: " + getHits() + " hits, "
+		    + getMisses() + " misses";
+	}
+    }
+}
@@ -1,24 +1,51 @@
 package ninja.mustache;
 
-import com.github.mustachejava.FallbackMustacheFactory;
 import com.github.mustachejava.MustacheFactory;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Provider;
 import com.google.inject.Singleton;
+import ninja.mustache.compiler.CachePartialsPass;
+import ninja.mustache.compiler.ChunkedSectionPass;
+import ninja.mustache.compiler.CoalesceTextPass;
+import ninja.mustache.compiler.DonutCachePass;
+import ninja.mustache.compiler.FlattenInheritancePass;
+import ninja.mustache.compiler.InlinePartialsPass;
+import ninja.mustache.compiler.MinifyHtmlPass;
+import ninja.mustache.compiler.OutputCache;
+import ninja.mustache.compiler.ParallelRenderPass;
+import ninja.mustache.compiler.ProfilePass;
+import ninja.mustache.compiler.TraceSectionsPass;
+import ninja.mustache.utils.MustacheConstant;
 import ninja.utils.NinjaProperties;
 import org.slf4j.Logger;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Simple mustache factory provider.
  *
- * Just return a {@link com.github.mustachejava.FallbackMustacheFactory}. In dev
- * mode, always instantiate a new factory
+ * Just return a {@link NinjaMustacheFactory} (a fallback factory remembering
+ * where each template lives). In dev mode, always instantiate a new factory
  * As per Guice doc <a href="http://code.google.com/p/google-guice/wiki/Scopes">http://code.google.com/p/google-guice/wiki/Scopes</a>
  * the class marked as @Singleton should be thread safe.
+ *
+ * The templates can be read from an external directory or a versioned
+ * {@link TemplateArchive}, looked up before the bundled ones. A new version is
+ * deployed with {@link #deploy(File)}: a new factory is compiled in the
+ * background and published with a single reference swap, so the renderings
+ * never see a half-loaded set nor compile after the swap.
  * @author kpacha
  */
 @Singleton
@@ -26,15 +53,55 @@ public class MustacheFactoryProvider implements Provider<MustacheFactory> {
 
     private final Logger logger;
     private final NinjaProperties ninjaProperties;
+    private final LookupStatistics lookupStatistics;
+    private final RenderEvents renderEvents;
     private final List<Object> resourceRoots = new ArrayList<Object>();
-    private MustacheFactory cachedFactory;
+    private volatile Object templateSource;
+    private volatile MustacheFactory cachedFactory;
+    private ExecutorService renderExecutor;
+    private ForkJoinPool chunkPool;
+    private ExecutorService deployExecutor;
 
     @Inject
     public MustacheFactoryProvider(Logger logger,
-	    NinjaProperties ninjaProperties) {
+	    NinjaProperties ninjaProperties, LookupStatistics lookupStatistics,
+	    RenderEvents renderEvents) {
 	this.logger = logger;
 	this.ninjaProperties = ninjaProperties;
+	this.lookupStatistics = lookupStatistics;
+	this.renderEvents = renderEvents;
 	initResourceRoots();
+	initTemplateSource();
+    }
+
+    /**
+     * open the external template source set in the configuration, if any
+     */
+    private void initTemplateSource() {
+	String source = ninjaProperties
+		.get(MustacheConstant.PROPERTY_TEMPLATES_SOURCE);
+	if (source == null) {
+	    return;
+	}
+	try {
+	    templateSource = openTemplateSource(new File(source));
+	} catch (IOException e) {
+	    logger.error("Unable to open the templates of " + source, e);
+	}
+    }
+
+    /**
+     * @param source
+     *            a directory or an archive of templates
+     * @return the resource root of the given source
+     * @throws IOException
+     *             if the source can not be read
+     */
+    private Object openTemplateSource(File source) throws IOException {
+	if (source.isDirectory()) {
+	    return source;
+	}
+	return TemplateArchive.open(source);
     }
 
     /**
@@ -75,7 +142,7 @@ public class MustacheFactoryProvider implements Provider<MustacheFactory> {
 	if (cachedFactory == null) {
         synchronized ( this ){
             if(cachedFactory == null){
-	            cachedFactory = getNewFallbackFactory();
+	            cachedFactory = getNewIndexedFallbackFactory();
             }
         }
 	}
@@ -88,10 +155,246 @@ public class MustacheFactoryProvider implements Provider<MustacheFactory> {
      *
      * @return
      */
-    private MustacheFactory getNewFallbackFactory() {
+    private NinjaMustacheFactory getNewFallbackFactory() {
+	return getNewFallbackFactory(templateSource);
+    }
+
+    /**
+     * @param source
+     *            the root looked up before the registered ones, or null
+     * @return
+     */
+    private NinjaMustacheFactory getNewFallbackFactory(Object source) {
+	List<Object> roots = new ArrayList<Object>();
+	if (source != null) {
+	    roots.add(source);
+	}
+	roots.addAll(resourceRoots);
 	logger.debug("Instantiating a new Mustache Factory with "
-		+ resourceRoots.size() + " resource roots");
-	return new FallbackMustacheFactory(resourceRoots.toArray());
+		+ roots.size() + " resource roots");
+	NinjaMustacheFactory factory = new NinjaMustacheFactory(
+		roots.toArray());
+	factory.setObjectHandler(new NinjaObjectHandler(ninjaProperties
+		.getIntegerWithDefault(MustacheConstant.PROPERTY_FLUSH_ITEMS, 0),
+		isProfiled(), getLookupStatistics()));
+	factory.setRenderEvents(renderEvents);
+	String cacheDirectory = ninjaProperties
+		.get(MustacheConstant.PROPERTY_CACHE_DIRECTORY);
+	if (cacheDirectory != null) {
+	    factory.setDiskCache(new TemplateDiskCache(
+		    new File(cacheDirectory), logger));
+	}
+	addCompilerPasses(factory);
+	return factory;
+    }
+
+    /**
+     * Register the compiler passes enabled by the configuration
+     *
+     * @param factory
+     */
+    private void addCompilerPasses(NinjaMustacheFactory factory) {
+	if (ninjaProperties.getBooleanWithDefault(
+		MustacheConstant.PROPERTY_FLATTEN_INHERITANCE, true)) {
+	    factory.addCompilerPass(new FlattenInheritancePass());
+	}
+	if (ninjaProperties.getBooleanWithDefault(
+		MustacheConstant.PROPERTY_INLINE_PARTIALS, true)) {
+	    factory.addCompilerPass(new InlinePartialsPass());
+	}
+	factory.addCompilerPass(new CachePartialsPass(newOutputCache(
+		MustacheConstant.PROPERTY_PARTIAL_CACHE_SIZE,
+		MustacheConstant.PROPERTY_PARTIAL_CACHE_TTL,
+		MustacheConstant.PROPERTY_PARTIAL_CACHE_STALE)));
+	factory.addCompilerPass(new CoalesceTextPass());
+	if (ninjaProperties.getBooleanWithDefault(
+		MustacheConstant.PROPERTY_MINIFY_HTML, false)) {
+	    factory.addCompilerPass(new MinifyHtmlPass());
+	}
+	factory.addCompilerPass(new ChunkedSectionPass(getChunkPool(),
+		ninjaProperties.getIntegerWithDefault(
+			MustacheConstant.PROPERTY_CHUNK_SIZE, 1000)));
+	if (ninjaProperties.getIntegerWithDefault(
+		MustacheConstant.PROPERTY_SLOW_THRESHOLD, 0) > 0) {
+	    factory.addCompilerPass(new TraceSectionsPass());
+	}
+	factory.addCompilerPass(new ParallelRenderPass(getRenderExecutor()));
+	factory.addCompilerPass(new DonutCachePass(newOutputCache(
+		MustacheConstant.PROPERTY_DONUT_CACHE_SIZE,
+		MustacheConstant.PROPERTY_DONUT_CACHE_TTL,
+		MustacheConstant.PROPERTY_DONUT_CACHE_STALE)));
+	if (isProfiled()) {
+	    factory.addCompilerPass(new ProfilePass());
+	}
+    }
+
+    /**
+     * @param sizeProperty
+     * @param ttlProperty
+     * @param staleProperty
+     * @return the output cache configured by the given properties
+     */
+    private OutputCache newOutputCache(String sizeProperty,
+	    String ttlProperty, String staleProperty) {
+	return new OutputCache(ninjaProperties.getIntegerWithDefault(
+		sizeProperty, 1000), ninjaProperties.getIntegerWithDefault(
+		ttlProperty, 0), ninjaProperties.getIntegerWithDefault(
+		staleProperty, 0));
+    }
+
+    /**
+     * @return true if the templates are compiled so their renderings can be
+     *         profiled
+     */
+    private boolean isProfiled() {
+	return ninjaProperties.getBooleanWithDefault(
+		MustacheConstant.PROPERTY_PROFILE, false);
+    }
+
+    /**
+     * @return the statistics the lookups are counted into, or null if they
+     *         are not counted
+     */
+    private LookupStatistics getLookupStatistics() {
+	return ninjaProperties.getBooleanWithDefault(
+		MustacheConstant.PROPERTY_PROFILE_LOOKUPS, false) ? lookupStatistics
+		: null;
+    }
+
+    /**
+     * The executor rendering the sections of the parallel templates, shared by
+     * every factory. Its threads are only started when needed and it runs the
+     * tasks it cannot queue in the rendering thread
+     *
+     * @return
+     */
+    private synchronized ExecutorService getRenderExecutor() {
+	if (renderExecutor == null) {
+	    int threads = Math.max(1, ninjaProperties.getIntegerWithDefault(
+		    MustacheConstant.PROPERTY_PARALLEL_THREADS, 2 * Runtime
+			    .getRuntime().availableProcessors()));
+	    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads,
+		    threads, 60, TimeUnit.SECONDS,
+		    new ArrayBlockingQueue<Runnable>(threads),
+		    new ThreadFactoryBuilder().setDaemon(true)
+			    .setNameFormat("mustache-render-%d").build(),
+		    new ThreadPoolExecutor.CallerRunsPolicy());
+	    executor.allowCoreThreadTimeOut(true);
+	    renderExecutor = executor;
+	}
+	return renderExecutor;
+    }
+
+    /**
+     * The pool rendering the chunks of the chunked sections, shared by every
+     * factory
+     *
+     * @return
+     */
+    private synchronized ForkJoinPool getChunkPool() {
+	if (chunkPool == null) {
+	    chunkPool = new ForkJoinPool(Math.max(1, ninjaProperties
+		    .getIntegerWithDefault(
+			    MustacheConstant.PROPERTY_CHUNK_PARALLELISM, Runtime
+				    .getRuntime().availableProcessors())));
+	}
+	return chunkPool;
+    }
+
+    /**
+     * Instantiate a fallback factory and index the templates of its resource
+     * roots, so the long-lived factory never probes the roots for a known
+     * template. If enabled, all the indexed templates are compiled before the
+     * factory is handed out
+     *
+     * @return
+     */
+    private NinjaMustacheFactory getNewIndexedFallbackFactory() {
+	NinjaMustacheFactory factory = getNewFallbackFactory();
+	index(factory);
+	if (ninjaProperties.getBooleanWithDefault(
+		MustacheConstant.PROPERTY_PRECOMPILE, false)) {
+	    precompile(factory);
+	}
+	return factory;
+    }
+
+    private void index(NinjaMustacheFactory factory) {
+	int indexed = factory.getTemplateLocator().index();
+	logger.debug(indexed + " templates have been indexed");
+    }
+
+    /**
+     * Compile every indexed template in parallel
+     *
+     * @param factory
+     * @return the outcome of the compilation
+     */
+    private TemplatePrecompiler.Report precompile(NinjaMustacheFactory factory) {
+	int parallelism = ninjaProperties.getIntegerWithDefault(
+		MustacheConstant.PROPERTY_PRECOMPILE_PARALLELISM, Runtime
+			.getRuntime().availableProcessors());
+	TemplatePrecompiler.Report report = new TemplatePrecompiler(factory,
+		parallelism).precompile(factory.getTemplateLocator()
+		.getTemplateNames());
+	logger.info(report.toString());
+	for (String templateName : report.getFailures().keySet()) {
+	    logger.warn("Unable to precompile " + templateName, report
+		    .getFailures().get(templateName));
+	}
+	return report;
+    }
+
+    /**
+     * Deploy a new version of the templates: a factory looking the templates
+     * up in the given source first is indexed and every template is compiled
+     * in the background. Only if they all compile, the new factory replaces
+     * the current one in a single step. The renderings already started finish
+     * with the previous version
+     *
+     * @param source
+     *            a directory or an archive of templates
+     * @return the outcome of the compilation of the new version, failed with
+     *         an {@link IOException} if the source can not be read
+     */
+    public Future<TemplatePrecompiler.Report> deploy(final File source) {
+	return getDeployExecutor().submit(
+		new Callable<TemplatePrecompiler.Report>() {
+		    @Override
+		    public TemplatePrecompiler.Report call() throws IOException {
+			Object root = openTemplateSource(source);
+			NinjaMustacheFactory factory = getNewFallbackFactory(root);
+			index(factory);
+			TemplatePrecompiler.Report report = precompile(factory);
+			if (!report.getFailures().isEmpty()) {
+			    logger.warn("The templates of " + source
+				    + " have not been deployed");
+			    return report;
+			}
+			synchronized (MustacheFactoryProvider.this) {
+			    templateSource = root;
+			    cachedFactory = factory;
+			}
+			logger.info("The templates of " + source
+				+ " have been deployed");
+			return report;
+		    }
+		});
+    }
+
+    /**
+     * The single thread compiling the deployed versions, one at a time
+     *
+     * @return
+     */
+    private synchronized ExecutorService getDeployExecutor() {
+	if (deployExecutor == null) {
+	    deployExecutor = Executors
+		    .newSingleThreadExecutor(new ThreadFactoryBuilder()
+			    .setDaemon(true)
+			    .setNameFormat("mustache-deploy-%d").build());
+	}
+	return deployExecutor;
     }
 
     /**
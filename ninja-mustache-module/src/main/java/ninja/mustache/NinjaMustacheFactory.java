@@ -0,0 +1,511 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ninja.mustache.RenderEvent.Type;
+import ninja.mustache.RenderProfiler.Frame;
+import ninja.mustache.compiler.CachePartialsPass;
+import ninja.mustache.compiler.CompilerPass;
+import ninja.mustache.compiler.NinjaMustacheVisitor;
+import ninja.mustache.compiler.TemplateMustache;
+
+import com.github.mustachejava.FallbackMustacheFactory;
+import com.github.mustachejava.Mustache;
+import com.github.mustachejava.MustacheException;
+import com.github.mustachejava.MustacheVisitor;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.io.CharStreams;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Fallback factory backed by a {@link TemplateLocator}, so every template and
+ * partial name is resolved against the resource roots only once.
+ *
+ * When a {@link TemplateDiskCache} is set, templates are parsed from their
+ * cached parse instead of their source whenever the source did not change.
+ *
+ * Every template loaded into the cache goes through the registered
+ * {@link CompilerPass}es, in order, before it is initialized. The templates
+ * the passes parse, typically the partials and layouts they merge into the
+ * template, are added to its includes, see {@link #getDependents(String)}.
+ * Values are looked up by a {@link NinjaObjectHandler}, and their escaping is
+ * timed by the {@link RenderProfiler} when the rendering is profiled. Each
+ * compilation is reported as a {@link RenderEvent} to the {@link RenderEvents}
+ * set, if any.
+ *
+ * Concurrent requests for a template which is not compiled yet wait for a
+ * single compilation of that template only, see {@link #compile(String)}.
+ *
+ * A compiled template can be evicted or recompiled at runtime: the new
+ * version replaces the old one in a single step, and the renderings already
+ * started finish with the old one.
+ *
+ * @author kpacha
+ */
+public class NinjaMustacheFactory extends FallbackMustacheFactory {
+
+    private final TemplateLocator templateLocator;
+    private final ThreadLocal<Map<Mustache, ParsedTemplate>> recordings = new ThreadLocal<Map<Mustache, ParsedTemplate>>();
+    private final ThreadLocal<Set<String>> merged = new ThreadLocal<Set<String>>();
+    private final List<CompilerPass> compilerPasses = new CopyOnWriteArrayList<CompilerPass>();
+    private final ConcurrentMap<String, AtomicLong> hits = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, Future<Mustache>> compilations = new ConcurrentHashMap<String, Future<Mustache>>();
+    private final ConcurrentMap<String, Thread> compilers = new ConcurrentHashMap<String, Thread>();
+    private final ConcurrentMap<Thread, String> awaited = new ConcurrentHashMap<Thread, String>();
+    private TemplateDiskCache diskCache;
+    private RenderEvents renderEvents = RenderEvents.none();
+
+    /**
+     * @param resourceRoots
+     *            the class path prefixes ({@link String}), directories
+     *            ({@link File}) and {@link TemplateArchive}s to look the
+     *            templates up in, in order
+     */
+    public NinjaMustacheFactory(Object... resourceRoots) {
+	super(getFallbackRoots(resourceRoots));
+	this.templateLocator = new TemplateLocator(resourceRoots);
+	setObjectHandler(new NinjaObjectHandler());
+    }
+
+    /**
+     * The parent factory only accepts class path prefixes and directories,
+     * the archives are left to the {@link TemplateLocator}
+     *
+     * @param resourceRoots
+     * @return
+     */
+    private static Object[] getFallbackRoots(Object[] resourceRoots) {
+	List<Object> roots = new ArrayList<Object>();
+	for (Object root : resourceRoots) {
+	    if (!(root instanceof TemplateArchive)) {
+		roots.add(root);
+	    }
+	}
+	return roots.toArray();
+    }
+
+    @Override
+    public Reader getReader(String resourceName) {
+	return templateLocator.getReader(resourceName);
+    }
+
+    public TemplateLocator getTemplateLocator() {
+	return templateLocator;
+    }
+
+    /**
+     * Parse a template into the cache without initializing it: unlike
+     * {@link #compile(String)}, it takes no lock on the templates, so it is
+     * safe to call for templates including each other from several threads
+     *
+     * @param name
+     * @return the loaded template, not linked with its partials yet
+     */
+    public Mustache load(String name) {
+	try {
+	    return mustacheCache.getUnchecked(name);
+	} catch (UncheckedExecutionException e) {
+	    Throwables.propagateIfInstanceOf(e.getCause(),
+		    MustacheException.class);
+	    throw e;
+	}
+    }
+
+    public void setDiskCache(TemplateDiskCache diskCache) {
+	this.diskCache = diskCache;
+    }
+
+    public void setRenderEvents(RenderEvents renderEvents) {
+	this.renderEvents = renderEvents;
+    }
+
+    public RenderEvents getRenderEvents() {
+	return renderEvents;
+    }
+
+    public void addCompilerPass(CompilerPass compilerPass) {
+	compilerPasses.add(compilerPass);
+    }
+
+    public List<CompilerPass> getCompilerPasses() {
+	return Collections.unmodifiableList(compilerPasses);
+    }
+
+    @Override
+    public MustacheVisitor createMustacheVisitor() {
+	MustacheVisitor visitor = new NinjaMustacheVisitor(this,
+		renderEvents);
+	Map<Mustache, ParsedTemplate> session = recordings.get();
+	return session == null ? visitor : new RecordingMustacheVisitor(
+		visitor, session);
+    }
+
+    /**
+     * Compile a template once, however many threads ask for it at the same
+     * time: the first one loads and initializes it while the others wait for
+     * the future of that template only. Once compiled, the template is handed
+     * out without any lock. A failed compilation is reported to all its
+     * waiters and tried again on the next request.
+     *
+     * Failures to load a template are reported as the
+     * {@link MustacheException} the loader threw rather than wrapped by the
+     * cache
+     */
+    @Override
+    public Mustache compile(String name) {
+	countHit(name);
+	Future<Mustache> compilation = compilations.get(name);
+	if (compilation == null) {
+	    FutureTask<Mustache> task = new FutureTask<Mustache>(
+		    new Compilation(name));
+	    compilation = compilations.putIfAbsent(name, task);
+	    if (compilation == null) {
+		runCompilation(name, task);
+		compilation = task;
+	    }
+	}
+	return await(name, compilation);
+    }
+
+    private void countHit(String name) {
+	AtomicLong count = hits.get(name);
+	if (count == null) {
+	    AtomicLong created = new AtomicLong();
+	    count = hits.putIfAbsent(name, created);
+	    if (count == null) {
+		count = created;
+	    }
+	}
+	count.incrementAndGet();
+    }
+
+    private void runCompilation(String name, FutureTask<Mustache> task) {
+	Thread current = Thread.currentThread();
+	compilers.put(name, current);
+	try {
+	    task.run();
+	} finally {
+	    compilers.remove(name, current);
+	}
+	try {
+	    task.get();
+	} catch (ExecutionException e) {
+	    // drop the failed attempt so the next request tries again
+	    mustacheCache.invalidate(name);
+	    compilations.remove(name, task);
+	} catch (InterruptedException e) {
+	    // the task is done, it can not be interrupted
+	}
+    }
+
+    /**
+     * Wait for the compilation of a template, unless it is compiled by this
+     * thread (a template including itself) or by a thread waiting for this
+     * one, directly or through other compilations (two templates including
+     * each other, compiled at once from both ends): the loaded template is
+     * then returned as is, its initialization is left to the thread compiling
+     * it
+     *
+     * @param name
+     * @param compilation
+     * @return
+     */
+    private Mustache await(String name, Future<Mustache> compilation) {
+	if (!compilation.isDone()) {
+	    Thread current = Thread.currentThread();
+	    awaited.put(current, name);
+	    try {
+		if (isCompiledBy(name, current)) {
+		    return load(name);
+		}
+		return getCompiled(compilation);
+	    } finally {
+		awaited.remove(current);
+	    }
+	}
+	return getCompiled(compilation);
+    }
+
+    /**
+     * @param name
+     * @param thread
+     * @return true if the template is compiled by the given thread or by a
+     *         thread waiting for it, directly or not
+     */
+    private boolean isCompiledBy(String name, Thread thread) {
+	Set<Thread> visited = new HashSet<Thread>();
+	Thread compiler = compilers.get(name);
+	while (compiler != null && visited.add(compiler)) {
+	    if (compiler == thread) {
+		return true;
+	    }
+	    String waitingFor = awaited.get(compiler);
+	    compiler = waitingFor == null ? null : compilers.get(waitingFor);
+	}
+	return false;
+    }
+
+    private static Mustache getCompiled(Future<Mustache> compilation) {
+	try {
+	    return Uninterruptibles.getUninterruptibly(compilation);
+	} catch (ExecutionException e) {
+	    throw Throwables.propagate(e.getCause());
+	}
+    }
+
+    /**
+     * Load and initialize a template, including the partials it needs
+     */
+    private class Compilation implements Callable<Mustache> {
+	private final String name;
+
+	Compilation(String name) {
+	    this.name = name;
+	}
+
+	@Override
+	public Mustache call() {
+	    Mustache mustache = load(name);
+	    mustache.init();
+	    return mustache;
+	}
+    }
+
+    @Override
+    public void encode(String value, Writer writer) {
+	Frame frame = RenderProfiler.enter(null, "escape");
+	try {
+	    super.encode(value, writer);
+	} finally {
+	    RenderProfiler.exit(frame);
+	}
+    }
+
+    @Override
+    protected LoadingCache<String, Mustache> createMustacheCache() {
+	return CacheBuilder.newBuilder().build(
+		new CacheLoader<String, Mustache>() {
+		    @Override
+		    public Mustache load(String templateName) throws Exception {
+			if (!renderEvents.isEnabled()) {
+			    return transform(parse(templateName));
+			}
+			long start = System.nanoTime();
+			Mustache mustache = transform(parse(templateName));
+			renderEvents.fire(Type.COMPILE, templateName,
+				System.nanoTime() - start, 0, null);
+			return mustache;
+		    }
+		});
+    }
+
+    /**
+     * Parse a template, from the disk cache when possible. Called by a
+     * {@link CompilerPass}, the template and the templates it includes are
+     * recorded as included by the template being compiled
+     *
+     * @param templateName
+     * @return the parsed (uninitialized) template
+     */
+    public Mustache parse(String templateName) {
+	Mustache mustache = diskCache == null ? mc.compile(templateName)
+		: parseCached(templateName);
+	Set<String> included = merged.get();
+	if (included != null) {
+	    included.add(templateName);
+	    if (mustache instanceof TemplateMustache) {
+		included.addAll(((TemplateMustache) mustache).getTemplates());
+	    }
+	}
+	return mustache;
+    }
+
+    private Mustache parseCached(String templateName) {
+	String source = readSource(templateName);
+	ParsedTemplate parsedTemplate = diskCache.read(templateName, source);
+	if (parsedTemplate != null) {
+	    return parsedTemplate.replay(this);
+	}
+	Map<Mustache, ParsedTemplate> session = new IdentityHashMap<Mustache, ParsedTemplate>();
+	recordings.set(session);
+	Mustache mustache;
+	try {
+	    mustache = mc.compile(new StringReader(source), templateName);
+	} finally {
+	    recordings.remove();
+	}
+	diskCache.write(templateName, source, session.get(mustache));
+	return mustache;
+    }
+
+    /**
+     * @return the names of the compiled templates
+     */
+    public Set<String> getCompiledTemplates() {
+	return Collections.unmodifiableSet(mustacheCache.asMap().keySet());
+    }
+
+    /**
+     * @param templateName
+     * @return the compiled template or null if it is not compiled
+     */
+    public Mustache getCompiledTemplate(String templateName) {
+	return mustacheCache.getIfPresent(templateName);
+    }
+
+    /**
+     * @param templateName
+     * @return the number of times the template was asked for
+     */
+    public long getHits(String templateName) {
+	AtomicLong count = hits.get(templateName);
+	return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @param templateName
+     * @return the compiled templates including the template, directly or
+     *         through other partials and layouts, in no particular order
+     */
+    public Set<String> getDependents(String templateName) {
+	Set<String> dependents = new LinkedHashSet<String>();
+	Set<String> pending = new LinkedHashSet<String>();
+	pending.add(templateName);
+	while (!pending.isEmpty()) {
+	    String dependency = pending.iterator().next();
+	    pending.remove(dependency);
+	    for (Map.Entry<String, Mustache> compiled : mustacheCache.asMap()
+		    .entrySet()) {
+		Mustache mustache = compiled.getValue();
+		if (mustache instanceof TemplateMustache
+			&& ((TemplateMustache) mustache).getTemplates()
+				.contains(dependency)
+			&& dependents.add(compiled.getKey())) {
+		    pending.add(compiled.getKey());
+		}
+	    }
+	}
+	dependents.remove(templateName);
+	return dependents;
+    }
+
+    /**
+     * Drop a compiled template and the cached outputs of its partial: it is
+     * located and compiled again from its source the next time it is asked
+     * for
+     *
+     * @param templateName
+     */
+    public void evict(String templateName) {
+	templateLocator.forget(templateName);
+	mustacheCache.invalidate(templateName);
+	compilations.remove(templateName);
+	invalidateOutputs(templateName);
+    }
+
+    /**
+     * Locate and compile a template again from its source, so a template
+     * added since it was found missing is found, and replace the compiled
+     * version in a single step, once the new one is fully initialized. The
+     * templates including it keep the version they were compiled with until
+     * they are recompiled too
+     *
+     * @param templateName
+     * @return the new version
+     */
+    public Mustache recompile(String templateName) {
+	templateLocator.forget(templateName);
+	Mustache mustache = transform(parse(templateName));
+	mustache.init();
+	mustacheCache.put(templateName, mustache);
+	compilations.put(templateName, Futures.immediateFuture(mustache));
+	invalidateOutputs(templateName);
+	return mustache;
+    }
+
+    private void invalidateOutputs(String templateName) {
+	for (CompilerPass compilerPass : compilerPasses) {
+	    if (compilerPass instanceof CachePartialsPass) {
+		((CachePartialsPass) compilerPass).invalidate(templateName);
+	    }
+	}
+    }
+
+    private Mustache transform(Mustache mustache) {
+	Set<String> previous = merged.get();
+	Set<String> included = new LinkedHashSet<String>();
+	merged.set(included);
+	try {
+	    for (CompilerPass compilerPass : compilerPasses) {
+		mustache.setCodes(compilerPass.apply(mustache.getCodes(),
+			this));
+	    }
+	} finally {
+	    if (previous == null) {
+		merged.remove();
+	    } else {
+		merged.set(previous);
+	    }
+	}
+	if (mustache instanceof TemplateMustache) {
+	    ((TemplateMustache) mustache).addTemplates(included);
+	}
+	return mustache;
+    }
+
+    private String readSource(String templateName) {
+	Reader reader = getReader(templateName);
+	try {
+	    try {
+		return CharStreams.toString(reader);
+	    } finally {
+		Closeables.close(reader, true);
+	    }
+	} catch (IOException e) {
+	    throw new MustacheException("Failed to read template "
+		    + templateName, e);
+	}
+    }
+}
@@ -0,0 +1,344 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+
+import ninja.mustache.LookupStatistics.Lookup;
+import ninja.mustache.RenderProfiler.Frame;
+
+import com.github.mustachejava.Binding;
+import com.github.mustachejava.Code;
+import com.github.mustachejava.Iteration;
+import com.github.mustachejava.MustacheException;
+import com.github.mustachejava.ObjectHandler;
+import com.github.mustachejava.TemplateContext;
+import com.github.mustachejava.reflect.GuardedBinding;
+import com.github.mustachejava.reflect.Guard;
+import com.github.mustachejava.reflect.MissingWrapper;
+import com.github.mustachejava.reflect.ReflectionObjectHandler;
+import com.github.mustachejava.util.GuardException;
+import com.github.mustachejava.util.Wrapper;
+import com.google.common.base.Optional;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterators;
+
+/**
+ * Object handler waiting for the values given as {@link Future}s, within the
+ * {@link RenderDeadline} of the rendering.
+ *
+ * Sections over an {@link Iterator}, an {@link Enumeration} or any object
+ * with a public {@code iterator()} method (a stream or a database cursor) are
+ * rendered while the items are pulled, one at a time. Such a source is closed
+ * once consumed if it is {@link AutoCloseable}. When a flush interval is set,
+ * the output is flushed every that many items of a section.
+ *
+ * When profiled, the lookups of the values are timed by the
+ * {@link RenderProfiler}. When given {@link LookupStatistics}, the lookups
+ * are counted by template and name, with the depth in the scope chain of the
+ * scope holding the value.
+ *
+ * @author kpacha
+ */
+public class NinjaObjectHandler extends ReflectionObjectHandler {
+
+    private static final Optional<Method> NO_METHOD = Optional.absent();
+
+    private final int flushInterval;
+    private final boolean profiled;
+    private final LookupStatistics lookupStatistics;
+    private final ConcurrentMap<Class<?>, Optional<Method>> iteratorMethods = new ConcurrentHashMap<Class<?>, Optional<Method>>();
+
+    public NinjaObjectHandler() {
+	this(0);
+    }
+
+    /**
+     * @param flushInterval
+     *            the number of items of a section rendered between two
+     *            flushes of the output, 0 to never flush
+     */
+    public NinjaObjectHandler(int flushInterval) {
+	this(flushInterval, false);
+    }
+
+    /**
+     * @param flushInterval
+     *            the number of items of a section rendered between two
+     *            flushes of the output, 0 to never flush
+     * @param profiled
+     *            true to time the lookups of the profiled renderings
+     */
+    public NinjaObjectHandler(int flushInterval, boolean profiled) {
+	this(flushInterval, profiled, null);
+    }
+
+    /**
+     * @param flushInterval
+     *            the number of items of a section rendered between two
+     *            flushes of the output, 0 to never flush
+     * @param profiled
+     *            true to time the lookups of the profiled renderings
+     * @param lookupStatistics
+     *            the statistics to count the lookups into, or null
+     */
+    public NinjaObjectHandler(int flushInterval, boolean profiled,
+	    LookupStatistics lookupStatistics) {
+	this.flushInterval = flushInterval;
+	this.profiled = profiled;
+	this.lookupStatistics = lookupStatistics;
+    }
+
+    @Override
+    public Binding createBinding(String name, TemplateContext tc, Code code) {
+	final Binding binding = lookupStatistics == null ? super.createBinding(
+		name, tc, code) : new CountingBinding(this, name, tc, code,
+		lookupStatistics.getLookup(tc == null ? null : tc.file(), name));
+	if (!profiled) {
+	    return binding;
+	}
+	final String frameName = "lookup " + name;
+	return new Binding() {
+	    @Override
+	    public Object get(Object[] scopes) {
+		Frame frame = RenderProfiler.enter(null, frameName);
+		try {
+		    return binding.get(scopes);
+		} finally {
+		    RenderProfiler.exit(frame);
+		}
+	    }
+	};
+    }
+
+    @Override
+    protected Wrapper createWrapper(int scopeIndex, Wrapper[] wrappers,
+	    List<? extends Guard> guards, AccessibleObject member,
+	    Object[] arguments) {
+	Wrapper wrapper = super.createWrapper(scopeIndex, wrappers, guards,
+		member, arguments);
+	return lookupStatistics == null ? wrapper : new ScopedWrapper(
+		scopeIndex, wrapper);
+    }
+
+    @Override
+    public Object coerce(Object object) {
+	if (object instanceof Future) {
+	    return super.coerce(RenderDeadline.resolve((Future<?>) object));
+	}
+	return super.coerce(object);
+    }
+
+    @Override
+    public Writer iterate(Iteration iteration, Writer writer, Object object,
+	    Object[] scopes) {
+	Iterator<?> iterator = toIterator(object);
+	if (iterator == null) {
+	    return super.iterate(iteration, writer, object, scopes);
+	}
+	try {
+	    int count = 0;
+	    while (iterator.hasNext()) {
+		writer = iteration.next(writer, coerce(iterator.next()), scopes);
+		if (flushInterval > 0 && ++count % flushInterval == 0) {
+		    writer.flush();
+		}
+	    }
+	    return writer;
+	} catch (IOException e) {
+	    throw new MustacheException("Failed to flush the output", e);
+	} finally {
+	    close(object);
+	}
+    }
+
+    /**
+     * @param object
+     * @return the iterator over the items of the object or null if it is not
+     *         an iteration source
+     */
+    private Iterator<?> toIterator(Object object) {
+	if (object instanceof Iterable) {
+	    return ((Iterable<?>) object).iterator();
+	}
+	if (object instanceof Iterator) {
+	    return (Iterator<?>) object;
+	}
+	if (object instanceof Enumeration) {
+	    return Iterators.forEnumeration((Enumeration<?>) object);
+	}
+	if (object == null || object instanceof Object[]) {
+	    return null;
+	}
+	Optional<Method> method = getIteratorMethod(object.getClass());
+	if (!method.isPresent()) {
+	    return null;
+	}
+	try {
+	    return (Iterator<?>) method.get().invoke(object);
+	} catch (InvocationTargetException e) {
+	    throw Throwables.propagate(e.getCause());
+	} catch (IllegalAccessException e) {
+	    throw new MustacheException("Failed to iterate over " + object, e);
+	}
+    }
+
+    private Optional<Method> getIteratorMethod(Class<?> type) {
+	Optional<Method> method = iteratorMethods.get(type);
+	if (method == null) {
+	    method = findIteratorMethod(type);
+	    iteratorMethods.putIfAbsent(type, method);
+	}
+	return method;
+    }
+
+    /**
+     * Look for a public {@code iterator()} method returning an
+     * {@link Iterator}, declared by a public type so it can be called even if
+     * the class of the object is not public (as the stream implementations)
+     *
+     * @param type
+     * @return
+     */
+    private static Optional<Method> findIteratorMethod(Class<?> type) {
+	if (type == null) {
+	    return NO_METHOD;
+	}
+	if (Modifier.isPublic(type.getModifiers())) {
+	    try {
+		Method method = type.getMethod("iterator");
+		if (Iterator.class.isAssignableFrom(method.getReturnType())) {
+		    return Optional.of(method);
+		}
+	    } catch (NoSuchMethodException e) {
+		return NO_METHOD;
+	    }
+	}
+	for (Class<?> contract : type.getInterfaces()) {
+	    Optional<Method> method = findIteratorMethod(contract);
+	    if (method.isPresent()) {
+		return method;
+	    }
+	}
+	return findIteratorMethod(type.getSuperclass());
+    }
+
+    private static void close(Object object) {
+	if (object instanceof AutoCloseable) {
+	    try {
+		((AutoCloseable) object).close();
+	    } catch (Exception e) {
+		throw new MustacheException("Failed to close " + object, e);
+	    }
+	}
+    }
+
+    /**
+     * Binding counting which of the wrappers it finds for its name, or the
+     * miss, serves each lookup
+     */
+    private static class CountingBinding extends GuardedBinding {
+	private final Lookup lookup;
+
+	CountingBinding(ObjectHandler oh, String name, TemplateContext tc,
+		Code code, Lookup lookup) {
+	    super(oh, name, tc, code);
+	    this.lookup = lookup;
+	}
+
+	@Override
+	protected synchronized Wrapper getWrapper(String name, Object[] scopes) {
+	    return new CountingWrapper(super.getWrapper(name, scopes), lookup);
+	}
+    }
+
+    /**
+     * Wrapper remembering the index of the scope it reads the value from
+     */
+    private static class ScopedWrapper implements Wrapper {
+	private final int scopeIndex;
+	private final Wrapper wrapper;
+
+	ScopedWrapper(int scopeIndex, Wrapper wrapper) {
+	    this.scopeIndex = scopeIndex;
+	    this.wrapper = wrapper;
+	}
+
+	@Override
+	public Object call(Object[] scopes) throws GuardException {
+	    return wrapper.call(scopes);
+	}
+
+	@Override
+	public int hashCode() {
+	    return wrapper.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+	    return obj instanceof ScopedWrapper
+		    && wrapper.equals(((ScopedWrapper) obj).wrapper);
+	}
+    }
+
+    /**
+     * Wrapper counting the lookups it serves, once its guards have passed
+     */
+    private static class CountingWrapper implements Wrapper {
+	private final Wrapper wrapper;
+	private final Lookup lookup;
+
+	CountingWrapper(Wrapper wrapper, Lookup lookup) {
+	    this.wrapper = wrapper;
+	    this.lookup = lookup;
+	}
+
+	@Override
+	public Object call(Object[] scopes) throws GuardException {
+	    Object value = wrapper.call(scopes);
+	    if (wrapper instanceof ScopedWrapper) {
+		lookup.hit(scopes.length - 1
+			- ((ScopedWrapper) wrapper).scopeIndex);
+	    } else if (wrapper instanceof MissingWrapper) {
+		lookup.miss(scopes.length);
+	    }
+	    return value;
+	}
+
+	@Override
+	public int hashCode() {
+	    return wrapper.hashCode();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+	    return obj instanceof CountingWrapper
+		    && wrapper.equals(((CountingWrapper) obj).wrapper);
+	}
+    }
+}
@@ -0,0 +1,235 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.mustachejava.Mustache;
+import com.github.mustachejava.MustacheFactory;
+import com.github.mustachejava.MustacheVisitor;
+import com.github.mustachejava.TemplateContext;
+
+/**
+ * The parsed form of a template: the sequence of calls the parser made on its
+ * {@link MustacheVisitor}, with one nested {@link ParsedTemplate} per section.
+ *
+ * Replaying the calls on fresh visitors builds the same {@link Mustache} the
+ * parser would, without reading the template source character by character.
+ *
+ * @author kpacha
+ */
+class ParsedTemplate {
+
+    private static final byte WRITE = 0;
+    private static final byte VALUE = 1;
+    private static final byte PARTIAL = 2;
+    private static final byte PRAGMA = 3;
+    private static final byte ITERABLE = 4;
+    private static final byte NOT_ITERABLE = 5;
+    private static final byte EXTEND = 6;
+    private static final byte NAME = 7;
+    private static final byte EOF = 8;
+
+    private final List<Event> events = new ArrayList<Event>();
+    private TemplateContext end;
+
+    void write(TemplateContext tc, String text) {
+	events.add(new Event(WRITE, tc, text, null, false, null));
+    }
+
+    void value(TemplateContext tc, String variable, boolean encoded) {
+	events.add(new Event(VALUE, tc, variable, null, encoded, null));
+    }
+
+    void partial(TemplateContext tc, String variable) {
+	events.add(new Event(PARTIAL, tc, variable, null, false, null));
+    }
+
+    void pragma(TemplateContext tc, String pragma, String args) {
+	events.add(new Event(PRAGMA, tc, pragma, args, false, null));
+    }
+
+    void iterable(TemplateContext tc, String variable, ParsedTemplate section) {
+	events.add(new Event(ITERABLE, tc, variable, null, false, section));
+    }
+
+    void notIterable(TemplateContext tc, String variable,
+	    ParsedTemplate section) {
+	events.add(new Event(NOT_ITERABLE, tc, variable, null, false, section));
+    }
+
+    void extend(TemplateContext tc, String variable, ParsedTemplate section) {
+	events.add(new Event(EXTEND, tc, variable, null, false, section));
+    }
+
+    void name(TemplateContext tc, String variable, ParsedTemplate section) {
+	events.add(new Event(NAME, tc, variable, null, false, section));
+    }
+
+    void eof(TemplateContext tc) {
+	events.add(new Event(EOF, tc, null, null, false, null));
+    }
+
+    void end(TemplateContext tc) {
+	this.end = tc;
+    }
+
+    /**
+     * Build the template by replaying the parser calls on visitors created by
+     * the given factory
+     *
+     * @param factory
+     * @return the (uninitialized) template
+     */
+    Mustache replay(MustacheFactory factory) {
+	MustacheVisitor visitor = factory.createMustacheVisitor();
+	for (Event event : events) {
+	    switch (event.type) {
+	    case WRITE:
+		visitor.write(event.tc, event.first);
+		break;
+	    case VALUE:
+		visitor.value(event.tc, event.first, event.flag);
+		break;
+	    case PARTIAL:
+		visitor.partial(event.tc, event.first);
+		break;
+	    case PRAGMA:
+		visitor.pragma(event.tc, event.first, event.second);
+		break;
+	    case ITERABLE:
+		visitor.iterable(event.tc, event.first,
+			event.section.replay(factory));
+		break;
+	    case NOT_ITERABLE:
+		visitor.notIterable(event.tc, event.first,
+			event.section.replay(factory));
+		break;
+	    case EXTEND:
+		visitor.extend(event.tc, event.first,
+			event.section.replay(factory));
+		break;
+	    case NAME:
+		visitor.name(event.tc, event.first,
+			event.section.replay(factory));
+		break;
+	    case EOF:
+		visitor.eof(event.tc);
+		break;
+	    default:
+		throw new IllegalStateException("Unknown event " + event.type);
+	    }
+	}
+	return visitor.mustache(end);
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+	writeContext(out, end);
+	out.writeInt(events.size());
+	for (Event event : events) {
+	    out.writeByte(event.type);
+	    writeContext(out, event.tc);
+	    writeString(out, event.first);
+	    writeString(out, event.second);
+	    out.writeBoolean(event.flag);
+	    out.writeBoolean(event.section != null);
+	    if (event.section != null) {
+		event.section.writeTo(out);
+	    }
+	}
+    }
+
+    static ParsedTemplate readFrom(DataInput in) throws IOException {
+	ParsedTemplate parsedTemplate = new ParsedTemplate();
+	parsedTemplate.end = readContext(in);
+	int size = in.readInt();
+	for (int i = 0; i < size; i++) {
+	    byte type = in.readByte();
+	    TemplateContext tc = readContext(in);
+	    String first = readString(in);
+	    String second = readString(in);
+	    boolean flag = in.readBoolean();
+	    ParsedTemplate section = in.readBoolean() ? readFrom(in) : null;
+	    parsedTemplate.events.add(new Event(type, tc, first, second, flag,
+		    section));
+	}
+	return parsedTemplate;
+    }
+
+    private static void writeContext(DataOutput out, TemplateContext tc)
+	    throws IOException {
+	writeString(out, tc.startChars());
+	writeString(out, tc.endChars());
+	writeString(out, tc.file());
+	out.writeInt(tc.line());
+	out.writeBoolean(tc.startOfLine());
+    }
+
+    private static TemplateContext readContext(DataInput in)
+	    throws IOException {
+	return new TemplateContext(readString(in), readString(in),
+		readString(in), in.readInt(), in.readBoolean());
+    }
+
+    /**
+     * {@link DataOutput#writeUTF(String)} is limited to 64KB, static text can
+     * be longer
+     */
+    private static void writeString(DataOutput out, String value)
+	    throws IOException {
+	if (value == null) {
+	    out.writeInt(-1);
+	    return;
+	}
+	byte[] bytes = value.getBytes("UTF-8");
+	out.writeInt(bytes.length);
+	out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+	int length = in.readInt();
+	if (length < 0) {
+	    return null;
+	}
+	byte[] bytes = new byte[length];
+	in.readFully(bytes);
+	return new String(bytes, "UTF-8");
+    }
+
+    private static class Event {
+	private final byte type;
+	private final TemplateContext tc;
+	private final String first;
+	private final String second;
+	private final boolean flag;
+	private final ParsedTemplate section;
+
+	Event(byte type, TemplateContext tc, String first, String second,
+		boolean flag, ParsedTemplate section) {
+	    this.type = type;
+	    this.tc = tc;
+	    this.first = first;
+	    this.second = second;
+	    this.flag = flag;
+	    this.section = section;
+	}
+    }
+}
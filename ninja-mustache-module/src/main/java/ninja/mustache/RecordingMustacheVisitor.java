@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache;
+
+import java.util.Map;
+
+import com.github.mustachejava.Mustache;
+import com.github.mustachejava.MustacheVisitor;
+import com.github.mustachejava.TemplateContext;
+
+/**
+ * Visitor recording the parser calls into a {@link ParsedTemplate} before
+ * passing them on to the real visitor.
+ *
+ * The parser uses one visitor per section, and hands the resulting section
+ * {@link Mustache} to the enclosing visitor; the shared map links each of them
+ * back to its recording.
+ *
+ * @author kpacha
+ */
+class RecordingMustacheVisitor implements MustacheVisitor {
+
+    private final MustacheVisitor visitor;
+    private final Map<Mustache, ParsedTemplate> recordings;
+    private final ParsedTemplate recording = new ParsedTemplate();
+
+    RecordingMustacheVisitor(MustacheVisitor visitor,
+	    Map<Mustache, ParsedTemplate> recordings) {
+	this.visitor = visitor;
+	this.recordings = recordings;
+    }
+
+    @Override
+    public Mustache mustache(TemplateContext templateContext) {
+	Mustache mustache = visitor.mustache(templateContext);
+	recording.end(templateContext);
+	recordings.put(mustache, recording);
+	return mustache;
+    }
+
+    @Override
+    public void iterable(TemplateContext templateContext, String variable,
+	    Mustache mustache) {
+	recording.iterable(templateContext, variable, recordings.get(mustache));
+	visitor.iterable(templateContext, variable, mustache);
+    }
+
+    @Override
+    public void notIterable(TemplateContext templateContext, String variable,
+	    Mustache mustache) {
+	recording.notIterable(templateContext, variable,
+		recordings.get(mustache));
+	visitor.notIterable(templateContext, variable, mustache);
+    }
+
+    @Override
+    public void partial(TemplateContext templateContext, String variable) {
+	recording.partial(templateContext, variable);
+	visitor.partial(templateContext, variable);
+    }
+
+    @Override
+    public void value(TemplateContext templateContext, String variable,
+	    boolean encoded) {
+	recording.value(templateContext, variable, encoded);
+	visitor.value(templateContext, variable, encoded);
+    }
+
+    @Override
+    public void write(TemplateContext templateContext, String text) {
+	recording.write(templateContext, text);
+	visitor.write(templateContext, text);
+    }
+
+    @Override
+    public void pragma(TemplateContext templateContext, String pragma,
+	    String args) {
+	recording.pragma(templateContext, pragma, args);
+	visitor.pragma(templateContext, pragma, args);
+    }
+
+    @Override
+    public void eof(TemplateContext templateContext) {
+	recording.eof(templateContext);
+	visitor.eof(templateContext);
+    }
+
+    @Override
+    public void extend(TemplateContext templateContext, String variable,
+	    Mustache mustache) {
+	recording.extend(templateContext, variable, recordings.get(mustache));
+	visitor.extend(templateContext, variable, mustache);
+    }
+
+    @Override
+    public void name(TemplateContext templateContext, String variable,
+	    Mustache mustache) {
+	recording.name(templateContext, variable, recordings.get(mustache));
+	visitor.name(templateContext, variable, mustache);
+    }
+}
@@ -0,0 +1,264 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ninja.mustache.utils.MustacheConstant;
+import ninja.utils.NinjaProperties;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Circuit breakers of the templates whose renderings keep failing.
+ *
+ * Once a template failed {@link MustacheConstant#PROPERTY_BREAKER_FAILURES}
+ * times within {@link MustacheConstant#PROPERTY_BREAKER_WINDOW} milliseconds,
+ * its circuit opens: its renderings are not attempted anymore for
+ * {@link MustacheConstant#PROPERTY_BREAKER_OPEN} milliseconds. Then a single
+ * rendering is let through as a probe, closing the circuit if it succeeds
+ * and opening it again otherwise. While a circuit is open, the requests get
+ * the last good output rendered for the same key, if kept (see
+ * {@link MustacheConstant#PROPERTY_BREAKER_OUTPUTS}), or the error page.
+ * Outputs are only kept for the templates listed by
+ * {@link MustacheConstant#PROPERTY_BREAKER_OUTPUTS_TEMPLATES}, whose pages
+ * are the same for every visitor.
+ *
+ * @author kpacha
+ */
+@Singleton
+public class RenderBreaker {
+
+    private final int failures;
+    private final long window;
+    private final long openTime;
+    private final int outputs;
+    private final Set<String> outputTemplates;
+    private final ConcurrentMap<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+
+    @Inject
+    public RenderBreaker(NinjaProperties ninjaProperties) {
+	this(ninjaProperties.getIntegerWithDefault(
+		MustacheConstant.PROPERTY_BREAKER_FAILURES, 0), ninjaProperties
+		.getIntegerWithDefault(MustacheConstant.PROPERTY_BREAKER_WINDOW,
+			10000), ninjaProperties.getIntegerWithDefault(
+		MustacheConstant.PROPERTY_BREAKER_OPEN, 30000), ninjaProperties
+		.getIntegerWithDefault(MustacheConstant.PROPERTY_BREAKER_OUTPUTS,
+			0), toSet(ninjaProperties
+		.getStringArray(MustacheConstant.PROPERTY_BREAKER_OUTPUTS_TEMPLATES)));
+    }
+
+    /**
+     * @param failures
+     *            the number of failures opening a circuit, 0 to disable the
+     *            breakers
+     * @param window
+     *            the time span of these failures, in milliseconds
+     * @param openTime
+     *            the time an open circuit waits before a probe, in
+     *            milliseconds
+     * @param outputs
+     *            the number of last good outputs kept by template
+     * @param outputTemplates
+     *            the templates whose last good outputs are kept
+     */
+    public RenderBreaker(int failures, long window, long openTime,
+	    int outputs, Set<String> outputTemplates) {
+	this.failures = failures;
+	this.window = TimeUnit.MILLISECONDS.toNanos(window);
+	this.openTime = TimeUnit.MILLISECONDS.toNanos(openTime);
+	this.outputs = outputs;
+	this.outputTemplates = outputTemplates;
+    }
+
+    private static Set<String> toSet(String[] templateNames) {
+	return templateNames == null ? Collections.<String> emptySet()
+		: new HashSet<String>(Arrays.asList(templateNames));
+    }
+
+    public boolean isEnabled() {
+	return failures > 0;
+    }
+
+    /**
+     * @param templateName
+     * @return true if the last good outputs of the template are kept, so its
+     *         renderings must be buffered
+     */
+    public boolean keepsOutputs(String templateName) {
+	return isEnabled() && outputs > 0
+		&& outputTemplates.contains(templateName);
+    }
+
+    /**
+     * @param templateName
+     * @return the circuit of the template, or null if the breakers are
+     *         disabled
+     */
+    public Circuit getCircuit(String templateName) {
+	if (!isEnabled()) {
+	    return null;
+	}
+	Circuit circuit = circuits.get(templateName);
+	if (circuit == null) {
+	    Circuit created = new Circuit(templateName);
+	    circuit = circuits.putIfAbsent(templateName, created);
+	    if (circuit == null) {
+		circuit = created;
+	    }
+	}
+	return circuit;
+    }
+
+    /**
+     * @return the circuits of the templates rendered so far, by template name
+     */
+    public Map<String, Circuit> getCircuits() {
+	return Collections.unmodifiableMap(circuits);
+    }
+
+    /**
+     * Circuit of a template. Its state is only read while closed, the
+     * failures and the transitions are synchronized.
+     */
+    public class Circuit {
+	private final String templateName;
+	private final long[] failureTimes = new long[failures];
+	private final Cache<String, String> lastGoodOutputs;
+	private final AtomicLong rejections = new AtomicLong();
+	private int lastFailure = -1;
+	private int recentFailures;
+	private volatile boolean open;
+	private long openUntil;
+	private boolean probing;
+
+	Circuit(String templateName) {
+	    this.templateName = templateName;
+	    this.lastGoodOutputs = keepsOutputs(templateName) ? CacheBuilder
+		    .newBuilder()
+		    .maximumSize(outputs).<String, String> build() : null;
+	}
+
+	public String getTemplateName() {
+	    return templateName;
+	}
+
+	public boolean isOpen() {
+	    return open;
+	}
+
+	/**
+	 * @return the number of renderings not attempted while open
+	 */
+	public long getRejections() {
+	    return rejections.get();
+	}
+
+	/**
+	 * @return true if the template can be rendered: the circuit is closed
+	 *         or the rendering is the probe of the open circuit
+	 */
+	public boolean allowRender() {
+	    return allowRender(System.nanoTime());
+	}
+
+	synchronized boolean allowRender(long now) {
+	    if (!open) {
+		return true;
+	    }
+	    if (now - openUntil >= 0) {
+		// a probe which never reported is replaced once it is as old
+		probing = true;
+		openUntil = now + openTime;
+		return true;
+	    }
+	    rejections.incrementAndGet();
+	    return false;
+	}
+
+	/**
+	 * Report a successful rendering
+	 *
+	 * @param key
+	 *            the key of the rendering
+	 * @param output
+	 *            the rendered output, or null if it is not kept
+	 */
+	public void success(String key, String output) {
+	    if (lastGoodOutputs != null && output != null) {
+		lastGoodOutputs.put(key, output);
+	    }
+	    if (open) {
+		close();
+	    }
+	}
+
+	private synchronized void close() {
+	    if (probing) {
+		open = false;
+		probing = false;
+		recentFailures = 0;
+	    }
+	}
+
+	/**
+	 * Report a failed rendering
+	 */
+	public void failure() {
+	    failure(System.nanoTime());
+	}
+
+	synchronized void failure(long now) {
+	    if (open) {
+		if (probing) {
+		    probing = false;
+		    openUntil = now + openTime;
+		}
+		return;
+	    }
+	    lastFailure = (lastFailure + 1) % failureTimes.length;
+	    failureTimes[lastFailure] = now;
+	    recentFailures = Math.min(recentFailures + 1, failureTimes.length);
+	    // the oldest of the last failures, once there are enough of them
+	    long oldest = failureTimes[(lastFailure + 1) % failureTimes.length];
+	    if (recentFailures == failureTimes.length && now - oldest <= window) {
+		open = true;
+		openUntil = now + openTime;
+	    }
+	}
+
+	/**
+	 * @param key
+	 * @return the last good output rendered for the key, or null
+	 */
+	public String getLastGoodOutput(String key) {
+	    return lastGoodOutputs == null ? null : lastGoodOutputs
+		    .getIfPresent(key);
+	}
+    }
+}
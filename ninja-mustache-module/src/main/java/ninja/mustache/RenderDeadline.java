@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.github.mustachejava.MustacheException;
+import com.google.common.util.concurrent.ForwardingFuture;
+
+/**
+ * Time budget of the rendering running on the current thread.
+ *
+ * Values of a template can be {@link Future}s: they are waited for until the
+ * deadline of the rendering at most. A value missing the deadline renders as
+ * its fallback, if it was given one with
+ * {@link #withFallback(Future, Object)}, or as an empty value otherwise, so
+ * a section bound to it renders its inverted block instead.
+ *
+ * @author kpacha
+ */
+public class RenderDeadline {
+
+    private static final ThreadLocal<RenderDeadline> CURRENT = new ThreadLocal<RenderDeadline>();
+
+    private final long deadline;
+
+    private RenderDeadline(long deadline) {
+	this.deadline = deadline;
+    }
+
+    /**
+     * @param budget
+     * @param unit
+     * @return a deadline expiring after the given budget
+     */
+    public static RenderDeadline after(long budget, TimeUnit unit) {
+	return new RenderDeadline(System.nanoTime() + unit.toNanos(budget));
+    }
+
+    /**
+     * @return the deadline of the current thread, or null if there is none
+     */
+    public static RenderDeadline current() {
+	return CURRENT.get();
+    }
+
+    /**
+     * Set the deadline of the current thread
+     *
+     * @param deadline
+     *            the deadline, or null to remove it
+     * @return the previous deadline, to be restored afterwards
+     */
+    public static RenderDeadline set(RenderDeadline deadline) {
+	RenderDeadline previous = CURRENT.get();
+	if (deadline == null) {
+	    CURRENT.remove();
+	} else {
+	    CURRENT.set(deadline);
+	}
+	return previous;
+    }
+
+    /**
+     * @param unit
+     * @return the time left before the deadline, zero if it is over
+     */
+    public long getRemaining(TimeUnit unit) {
+	return unit.convert(Math.max(0, deadline - System.nanoTime()),
+		TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param future
+     * @param fallback
+     *            the value rendered if the future misses the deadline
+     * @return the future, with its fallback
+     */
+    public static <V> Future<V> withFallback(Future<V> future, V fallback) {
+	return new FallbackFuture<V>(future, fallback);
+    }
+
+    /**
+     * Wait for the value of a future, until the deadline of the current
+     * thread if any
+     *
+     * @param future
+     * @return the value, or its fallback if it missed the deadline
+     */
+    static Object resolve(Future<?> future) {
+	RenderDeadline current = CURRENT.get();
+	try {
+	    if (current == null) {
+		return future.get();
+	    }
+	    return future.get(current.getRemaining(TimeUnit.NANOSECONDS),
+		    TimeUnit.NANOSECONDS);
+	} catch (TimeoutException e) {
+	    return fallback(future);
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    return fallback(future);
+	} catch (ExecutionException e) {
+	    throw new MustacheException("Failed to get value", e.getCause());
+	}
+    }
+
+    private static Object fallback(Future<?> future) {
+	return future instanceof FallbackFuture ? ((FallbackFuture<?>) future).fallback
+		: null;
+    }
+
+    private static class FallbackFuture<V> extends
+	    ForwardingFuture.SimpleForwardingFuture<V> {
+	private final V fallback;
+
+	FallbackFuture(Future<V> delegate, V fallback) {
+	    super(delegate);
+	    this.fallback = fallback;
+	}
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Something the template engine did: compiling or rendering a template,
+ * rendering a partial, invoking a function or handling an error.
+ *
+ * @author kpacha
+ */
+public class RenderEvent {
+
+    public enum Type {
+	/** A template was loaded, parsed and compiled */
+	COMPILE,
+	/** A template was rendered to a response */
+	RENDER,
+	/** A partial was rendered, or copied from the partial cache */
+	PARTIAL,
+	/** A section rendered by a function, as {{#i18n}} */
+	FUNCTION,
+	/** A rendering failed and the error page was served instead */
+	ERROR
+    }
+
+    private final Type type;
+    private final String name;
+    private final long duration;
+    private final long outputSize;
+    private final Throwable error;
+
+    public RenderEvent(Type type, String name, long duration,
+	    long outputSize, Throwable error) {
+	this.type = type;
+	this.name = name;
+	this.duration = duration;
+	this.outputSize = outputSize;
+	this.error = error;
+    }
+
+    public Type getType() {
+	return type;
+    }
+
+    /**
+     * @return the name of the template, of the partial or of the function
+     */
+    public String getName() {
+	return name;
+    }
+
+    public long getDuration(TimeUnit unit) {
+	return unit.convert(duration, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the number of chars written, 0 for a compilation
+     */
+    public long getOutputSize() {
+	return outputSize;
+    }
+
+    /**
+     * @return the cause of an {@link Type#ERROR}, null for the other events
+     */
+    public Throwable getError() {
+	return error;
+    }
+
+    @Override
+    public String toString() {
+	return type + " " + name + " " + getDuration(TimeUnit.MICROSECONDS)
+		+ "us " + outputSize + " chars"
+		+ (error == null ? "" : " " + error);
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache;
+
+/**
+ * Receiver of the {@link RenderEvent}s, registered with
+ * {@link RenderEvents#addListener(RenderEventListener)} or as a service
+ * provider, in a
+ * {@code META-INF/services/ninja.mustache.RenderEventListener} file.
+ *
+ * Events are delivered synchronously, by the thread doing the work: a
+ * listener must be thread safe and fast, and should hand the events over to
+ * a recorder rather than process them.
+ *
+ * @author kpacha
+ */
+public interface RenderEventListener {
+
+    void onEvent(RenderEvent event);
+}
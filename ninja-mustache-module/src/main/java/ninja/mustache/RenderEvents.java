@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
+
+import ninja.mustache.RenderEvent.Type;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Dispatcher of the {@link RenderEvent}s to the registered
+ * {@link RenderEventListener}s.
+ *
+ * The injected instance starts with the listeners declared as service
+ * providers, and is set on the factories built by the
+ * {@link MustacheFactoryProvider}. With no listener registered, the
+ * instrumented code only checks {@link #isEnabled()}: nothing is timed,
+ * counted nor allocated.
+ *
+ * @author kpacha
+ */
+@Singleton
+public class RenderEvents {
+
+    private volatile RenderEventListener[] listeners;
+
+    /**
+     * With the listeners declared in the
+     * META-INF/services/ninja.mustache.RenderEventListener files
+     */
+    @Inject
+    public RenderEvents() {
+	this(ServiceLoader.load(RenderEventListener.class));
+    }
+
+    /**
+     * @param listeners
+     *            the listeners registered from the start
+     */
+    public RenderEvents(Iterable<? extends RenderEventListener> listeners) {
+	List<RenderEventListener> registered = new ArrayList<RenderEventListener>();
+	for (RenderEventListener listener : listeners) {
+	    registered.add(listener);
+	}
+	this.listeners = registered
+		.toArray(new RenderEventListener[registered.size()]);
+    }
+
+    /**
+     * @return a dispatcher without any listener
+     */
+    public static RenderEvents none() {
+	return new RenderEvents(Collections.<RenderEventListener> emptyList());
+    }
+
+    /**
+     * @return true if some listener is registered
+     */
+    public boolean isEnabled() {
+	return listeners.length > 0;
+    }
+
+    public synchronized void addListener(RenderEventListener listener) {
+	List<RenderEventListener> registered = new ArrayList<RenderEventListener>(
+		Arrays.asList(listeners));
+	registered.add(listener);
+	listeners = registered.toArray(new RenderEventListener[registered
+		.size()]);
+    }
+
+    public synchronized void removeListener(RenderEventListener listener) {
+	List<RenderEventListener> registered = new ArrayList<RenderEventListener>(
+		Arrays.asList(listeners));
+	registered.remove(listener);
+	listeners = registered.toArray(new RenderEventListener[registered
+		.size()]);
+    }
+
+    /**
+     * Deliver an event to every listener. A failing listener does not stop
+     * the delivery nor the rendering
+     *
+     * @param type
+     * @param name
+     * @param duration
+     *            in nanoseconds
+     * @param outputSize
+     * @param error
+     */
+    public void fire(Type type, String name, long duration, long outputSize,
+	    Throwable error) {
+	RenderEventListener[] current = listeners;
+	if (current.length == 0) {
+	    return;
+	}
+	RenderEvent event = new RenderEvent(type, name, duration, outputSize,
+		error);
+	for (RenderEventListener listener : current) {
+	    try {
+		listener.onEvent(event);
+	    } catch (RuntimeException e) {
+		// the event is lost for this listener only
+	    }
+	}
+    }
+}
@@ -0,0 +1,359 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ninja.mustache.utils.MustacheConstant;
+import ninja.utils.NinjaProperties;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Hierarchical profiler of the renderings.
+ *
+ * A profiled rendering times every template, section, partial, value, lookup
+ * and escaping it goes through, and adds the times to a call tree shared by
+ * all the profiled renderings, one branch per path from the rendered
+ * template. The tree can be exported in the folded stacks format read by the
+ * flame graph tools.
+ *
+ * The templates must have been compiled for profiling (see
+ * {@link MustacheConstant#PROPERTY_PROFILE}); which renderings are profiled
+ * can then be changed at any time, by route or by sampling one rendering out
+ * of a given number.
+ *
+ * @author kpacha
+ */
+@Singleton
+public class RenderProfiler {
+
+    private static final ThreadLocal<Frame> CURRENT = new ThreadLocal<Frame>();
+    private static final AtomicInteger ACTIVE = new AtomicInteger();
+
+    private final Node root = new Node("root");
+    private final Set<String> routes = new CopyOnWriteArraySet<String>();
+    private final AtomicLong renderings = new AtomicLong();
+    private volatile int rate;
+
+    @Inject
+    public RenderProfiler(NinjaProperties ninjaProperties) {
+	String[] routes = ninjaProperties
+		.getStringArray(MustacheConstant.PROPERTY_PROFILE_ROUTES);
+	if (routes != null) {
+	    this.routes.addAll(Arrays.asList(routes));
+	}
+	this.rate = ninjaProperties.getIntegerWithDefault(
+		MustacheConstant.PROPERTY_PROFILE_RATE, 0);
+    }
+
+    /**
+     * Start profiling the rendering of a template on the current thread, if
+     * its route is profiled or it is sampled
+     *
+     * @param route
+     *            the route of the request, or null
+     * @param templateName
+     * @return the frame of the rendering, to be passed to {@link #stop(Frame)}
+     *         , or null if it is not profiled
+     */
+    public Frame start(String route, String templateName) {
+	if (CURRENT.get() != null) {
+	    return null;
+	}
+	if (!(route != null && routes.contains(route)) && !sample()) {
+	    return null;
+	}
+	ACTIVE.incrementAndGet();
+	Frame frame = new Frame(null, root.child(templateName), templateName,
+		false);
+	CURRENT.set(frame);
+	return frame;
+    }
+
+    private boolean sample() {
+	int sampling = rate;
+	return sampling > 0 && renderings.getAndIncrement() % sampling == 0;
+    }
+
+    /**
+     * Stop profiling the rendering started with {@link #start(String, String)}
+     *
+     * @param frame
+     *            the frame of the rendering, may be null
+     */
+    public static void stop(Frame frame) {
+	if (frame != null) {
+	    exit(frame);
+	    ACTIVE.decrementAndGet();
+	}
+    }
+
+    /**
+     * @return the frame of the current thread, or null if it is not profiled
+     */
+    public static Frame current() {
+	return CURRENT.get();
+    }
+
+    /**
+     * Set the frame of the current thread, so a thread rendering a part of a
+     * profiled page records its frames below the frame of that part
+     *
+     * @param frame
+     *            the frame, or null to remove it
+     * @return the previous frame, to be restored afterwards
+     */
+    public static Frame set(Frame frame) {
+	Frame previous = CURRENT.get();
+	if (frame == null) {
+	    CURRENT.remove();
+	} else {
+	    CURRENT.set(frame);
+	}
+	return previous;
+    }
+
+    /**
+     * Enter a frame of the current rendering, below the frame of its template
+     * if it comes from another template than the current frame
+     *
+     * @param template
+     *            the template the frame comes from, or null if it is the
+     *            current one
+     * @param name
+     * @return the entered frame or null if the rendering is not profiled
+     */
+    public static Frame enter(String template, String name) {
+	if (ACTIVE.get() == 0) {
+	    return null;
+	}
+	Frame current = CURRENT.get();
+	if (current == null) {
+	    return null;
+	}
+	if (template != null && !template.equals(current.template)) {
+	    current = new Frame(current, current.node.child(template),
+		    template, true);
+	}
+	Frame frame = new Frame(current, current.node.child(name),
+		current.template, false);
+	CURRENT.set(frame);
+	return frame;
+    }
+
+    /**
+     * Exit a frame entered with {@link #enter(String, String)}
+     *
+     * @param frame
+     *            may be null
+     */
+    public static void exit(Frame frame) {
+	if (frame == null) {
+	    return;
+	}
+	long now = System.nanoTime();
+	frame.node.add(now - frame.start);
+	Frame parent = frame.parent;
+	if (parent != null && parent.implicit) {
+	    parent.node.add(now - parent.start);
+	    parent = parent.parent;
+	}
+	if (parent == null) {
+	    CURRENT.remove();
+	} else {
+	    CURRENT.set(parent);
+	}
+    }
+
+    /**
+     * @return the root of the call tree, its children are the rendered
+     *         templates
+     */
+    public Node getCallTree() {
+	return root;
+    }
+
+    /**
+     * Forget every time recorded so far
+     */
+    public void reset() {
+	root.children.clear();
+    }
+
+    /**
+     * Write the call tree in the folded stacks format: one line per path,
+     * with the time spent in the last frame itself, in nanoseconds
+     *
+     * @param writer
+     * @throws IOException
+     */
+    public void writeFoldedStacks(Writer writer) throws IOException {
+	for (Node child : root.getChildren()) {
+	    writeFoldedStacks(writer, child, "");
+	}
+	writer.flush();
+    }
+
+    private void writeFoldedStacks(Writer writer, Node node, String prefix)
+	    throws IOException {
+	String path = prefix + node.name.replace(';', ',');
+	long self = node.getSelfTime(TimeUnit.NANOSECONDS);
+	if (self > 0) {
+	    writer.write(path + " " + self + "\n");
+	}
+	for (Node child : node.getChildren()) {
+	    writeFoldedStacks(writer, child, path + ";");
+	}
+    }
+
+    /**
+     * @param rate
+     *            profile one rendering out of rate, 0 to only profile the
+     *            profiled routes
+     */
+    public void setRate(int rate) {
+	this.rate = rate;
+    }
+
+    public int getRate() {
+	return rate;
+    }
+
+    /**
+     * Profile every rendering for the given route
+     *
+     * @param route
+     *            the URI pattern of the route
+     */
+    public void addRoute(String route) {
+	routes.add(route);
+    }
+
+    public void removeRoute(String route) {
+	routes.remove(route);
+    }
+
+    public Set<String> getRoutes() {
+	return Collections.unmodifiableSet(routes);
+    }
+
+    /**
+     * A frame of a profiled rendering
+     */
+    public static final class Frame {
+	private final Frame parent;
+	private final Node node;
+	private final String template;
+	private final boolean implicit;
+	private final long start = System.nanoTime();
+
+	private Frame(Frame parent, Node node, String template,
+		boolean implicit) {
+	    this.parent = parent;
+	    this.node = node;
+	    this.template = template;
+	    this.implicit = implicit;
+	}
+    }
+
+    /**
+     * A node of the call tree: the total time spent in a frame on a given
+     * path, and the number of times it was entered.
+     */
+    public static class Node {
+	private final String name;
+	private final ConcurrentMap<String, Node> children = new ConcurrentHashMap<String, Node>();
+	private final AtomicLong time = new AtomicLong();
+	private final AtomicLong count = new AtomicLong();
+
+	Node(String name) {
+	    this.name = name;
+	}
+
+	private Node child(String name) {
+	    Node child = children.get(name);
+	    if (child == null) {
+		Node created = new Node(name);
+		child = children.putIfAbsent(name, created);
+		if (child == null) {
+		    child = created;
+		}
+	    }
+	    return child;
+	}
+
+	private void add(long nanos) {
+	    time.addAndGet(nanos);
+	    count.incrementAndGet();
+	}
+
+	public String getName() {
+	    return name;
+	}
+
+	public long getCount() {
+	    return count.get();
+	}
+
+	public long getTime(TimeUnit unit) {
+	    return unit.convert(time.get(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @param unit
+	 * @return the time spent in the frame itself, not in its children
+	 */
+	public long getSelfTime(TimeUnit unit) {
+	    long self = time.get();
+	    for (Node child : children.values()) {
+		self -= child.time.get();
+	    }
+	    return unit.convert(Math.max(0, self), TimeUnit.NANOSECONDS);
+	}
+
+	public Collection<Node> getChildren() {
+	    List<Node> sorted = new ArrayList<Node>(children.values());
+	    Collections.sort(sorted, new Comparator<Node>() {
+		@Override
+		public int compare(Node a, Node b) {
+		    return a.name.compareTo(b.name);
+		}
+	    });
+	    return sorted;
+	}
+
+	public Node getChild(String name) {
+	    return children.get(name);
+	}
+    }
+}
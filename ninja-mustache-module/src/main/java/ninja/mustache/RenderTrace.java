@@ -0,0 +1,193 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Breakdown of the time spent handling a single rendering: the time of each
+ * phase, and the time of the sections at the top level of the template when
+ * it was compiled to trace them.
+ *
+ * A trace is started by the rendering thread; the traced sections record
+ * their time into the trace of their thread, if any, and cost nothing
+ * otherwise. The threads rendering parts of a page concurrently are given
+ * the trace of the page with {@link #set(RenderTrace)}, so the sections may
+ * be recorded from several threads.
+ *
+ * @author kpacha
+ */
+public class RenderTrace {
+
+    private static final ThreadLocal<RenderTrace> CURRENT = new ThreadLocal<RenderTrace>();
+
+    private final long start = System.nanoTime();
+    private long mark = start;
+    private long end;
+    private long outputSize;
+    private final Map<String, Long> phases = new LinkedHashMap<String, Long>();
+    private final List<Section> sections = Collections
+	    .synchronizedList(new ArrayList<Section>());
+
+    private RenderTrace() {
+    }
+
+    /**
+     * Start tracing a rendering on the current thread
+     *
+     * @return the trace, to be stopped once done
+     */
+    public static RenderTrace start() {
+	RenderTrace trace = new RenderTrace();
+	CURRENT.set(trace);
+	return trace;
+    }
+
+    /**
+     * @return the trace of the current thread, or null if there is none
+     */
+    public static RenderTrace current() {
+	return CURRENT.get();
+    }
+
+    /**
+     * Set the trace of the current thread
+     *
+     * @param trace
+     *            the trace, or null to remove it
+     * @return the previous trace, to be restored afterwards
+     */
+    public static RenderTrace set(RenderTrace trace) {
+	RenderTrace previous = CURRENT.get();
+	if (trace == null) {
+	    CURRENT.remove();
+	} else {
+	    CURRENT.set(trace);
+	}
+	return previous;
+    }
+
+    /**
+     * End a phase: the time since the end of the previous phase, or since
+     * the start of the trace, is recorded as the time of the given phase
+     *
+     * @param name
+     */
+    public void phase(String name) {
+	long now = System.nanoTime();
+	Long previous = phases.get(name);
+	phases.put(name, (previous == null ? 0 : previous) + now - mark);
+	mark = now;
+    }
+
+    /**
+     * Record the time of a section of the traced rendering
+     *
+     * @param name
+     * @param nanos
+     */
+    public void section(String name, long nanos) {
+	sections.add(new Section(name, nanos));
+    }
+
+    /**
+     * @param outputSize
+     *            the number of chars rendered
+     */
+    public void setOutputSize(long outputSize) {
+	this.outputSize = outputSize;
+    }
+
+    public long getOutputSize() {
+	return outputSize;
+    }
+
+    /**
+     * Stop tracing, on the thread that started the trace
+     */
+    public void stop() {
+	end = System.nanoTime();
+	CURRENT.remove();
+    }
+
+    /**
+     * @param unit
+     * @return the time since the start of the trace, until it was stopped
+     */
+    public long getTime(TimeUnit unit) {
+	return unit.convert((end == 0 ? System.nanoTime() : end) - start,
+		TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param unit
+     * @return the time of each phase, in the order they ended
+     */
+    public Map<String, Long> getPhases(TimeUnit unit) {
+	Map<String, Long> converted = new LinkedHashMap<String, Long>();
+	for (Map.Entry<String, Long> phase : phases.entrySet()) {
+	    converted.put(phase.getKey(),
+		    unit.convert(phase.getValue(), TimeUnit.NANOSECONDS));
+	}
+	return converted;
+    }
+
+    /**
+     * @param count
+     * @return the names and times of the slowest sections, the slowest first
+     */
+    public List<Section> getSlowestSections(int count) {
+	List<Section> slowest;
+	synchronized (sections) {
+	    slowest = new ArrayList<Section>(sections);
+	}
+	Collections.sort(slowest, new Comparator<Section>() {
+	    @Override
+	    public int compare(Section a, Section b) {
+		return a.nanos < b.nanos ? 1 : a.nanos > b.nanos ? -1 : 0;
+	    }
+	});
+	return slowest.subList(0, Math.min(count, slowest.size()));
+    }
+
+    /**
+     * A traced section and the time it took
+     */
+    public static class Section {
+	private final String name;
+	private final long nanos;
+
+	Section(String name, long nanos) {
+	    this.name = name;
+	    this.nanos = nanos;
+	}
+
+	public String getName() {
+	    return name;
+	}
+
+	public long getTime(TimeUnit unit) {
+	    return unit.convert(nanos, TimeUnit.NANOSECONDS);
+	}
+    }
+}
@@ -0,0 +1,225 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import ninja.mustache.compiler.CachePartialsPass;
+import ninja.mustache.compiler.CompilerPass;
+import ninja.mustache.compiler.DonutCachePass;
+import ninja.mustache.compiler.ForwardingCode;
+import ninja.mustache.compiler.OutputCache;
+import ninja.mustache.compiler.TemplateMustache;
+
+import com.github.mustachejava.Code;
+import com.github.mustachejava.Mustache;
+import com.github.mustachejava.MustacheFactory;
+import com.github.mustachejava.codes.PartialCode;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+
+/**
+ * Runtime administration of the compiled templates of the application: list
+ * them, and evict or recompile a template, alone or with every template
+ * including it, without a restart. The output caches can be inspected too.
+ *
+ * A recompiled template is compiled aside and swapped in once ready: the
+ * renderings in flight finish with the previous version, the next ones get
+ * the new version, and nothing else in the cache is lost. Only meaningful
+ * outside of dev mode, where every request gets a fresh factory anyway.
+ *
+ * @author kpacha
+ */
+@Singleton
+public class TemplateAdmin {
+
+    private final Provider<MustacheFactory> mustacheFactoryProvider;
+
+    @Inject
+    public TemplateAdmin(Provider<MustacheFactory> mustacheFactoryProvider) {
+	this.mustacheFactoryProvider = mustacheFactoryProvider;
+    }
+
+    /**
+     * @return the compiled templates, by name
+     */
+    public List<TemplateInfo> getTemplates() {
+	NinjaMustacheFactory factory = getFactory();
+	List<TemplateInfo> templates = new ArrayList<TemplateInfo>();
+	for (String name : new TreeSet<String>(factory.getCompiledTemplates())) {
+	    Mustache mustache = factory.getCompiledTemplate(name);
+	    if (mustache != null) {
+		templates.add(new TemplateInfo(name, mustache, factory
+			.getHits(name)));
+	    }
+	}
+	return templates;
+    }
+
+    /**
+     * @return the output caches of the factory, as "partials" and "donut",
+     *         with their sizes, hits and refreshes
+     */
+    public Map<String, OutputCache> getOutputCaches() {
+	Map<String, OutputCache> outputCaches = new LinkedHashMap<String, OutputCache>();
+	for (CompilerPass compilerPass : getFactory().getCompilerPasses()) {
+	    if (compilerPass instanceof CachePartialsPass) {
+		outputCaches.put("partials",
+			((CachePartialsPass) compilerPass).getOutputCache());
+	    } else if (compilerPass instanceof DonutCachePass) {
+		outputCaches.put("donut",
+			((DonutCachePass) compilerPass).getOutputCache());
+	    }
+	}
+	return outputCaches;
+    }
+
+    /**
+     * Evict a compiled template, and the templates including it if asked
+     *
+     * @param templateName
+     * @param dependents
+     * @return the names of the evicted templates
+     */
+    public Set<String> evict(String templateName, boolean dependents) {
+	NinjaMustacheFactory factory = getFactory();
+	Set<String> evicted = new LinkedHashSet<String>();
+	evicted.add(templateName);
+	if (dependents) {
+	    evicted.addAll(factory.getDependents(templateName));
+	}
+	for (String name : evicted) {
+	    factory.evict(name);
+	}
+	return evicted;
+    }
+
+    /**
+     * Recompile a template, and the templates including it if asked. A
+     * template is recompiled after the partials and layouts it includes, so
+     * it picks their new version
+     *
+     * @param templateName
+     * @param dependents
+     * @return the names of the recompiled templates, in order
+     */
+    public List<String> recompile(String templateName, boolean dependents) {
+	NinjaMustacheFactory factory = getFactory();
+	List<String> recompiled = new ArrayList<String>();
+	factory.recompile(templateName);
+	recompiled.add(templateName);
+	if (!dependents) {
+	    return recompiled;
+	}
+	Set<String> pending = factory.getDependents(templateName);
+	while (!pending.isEmpty()) {
+	    String next = null;
+	    for (String name : pending) {
+		if (Collections.disjoint(getIncludes(factory, name), pending)) {
+		    next = name;
+		    break;
+		}
+	    }
+	    if (next == null) {
+		// recursive partials: any order will do
+		next = pending.iterator().next();
+	    }
+	    pending.remove(next);
+	    factory.recompile(next);
+	    recompiled.add(next);
+	}
+	return recompiled;
+    }
+
+    private static Set<String> getIncludes(NinjaMustacheFactory factory,
+	    String templateName) {
+	Mustache mustache = factory.getCompiledTemplate(templateName);
+	return mustache instanceof TemplateMustache ? ((TemplateMustache) mustache)
+		.getTemplates() : Collections.<String> emptySet();
+    }
+
+    private NinjaMustacheFactory getFactory() {
+	MustacheFactory factory = mustacheFactoryProvider.get();
+	if (!(factory instanceof NinjaMustacheFactory)) {
+	    throw new IllegalStateException("Unsupported factory " + factory);
+	}
+	return (NinjaMustacheFactory) factory;
+    }
+
+    /**
+     * A compiled template: its size as the number of compiled codes, partials
+     * excluded, the
+     * number of times it was asked for and the partials and layouts it
+     * includes
+     */
+    public static class TemplateInfo {
+	private final String name;
+	private final int size;
+	private final long hits;
+	private final Set<String> includes;
+
+	TemplateInfo(String name, Mustache mustache, long hits) {
+	    this.name = name;
+	    this.size = count(mustache.getCodes());
+	    this.hits = hits;
+	    this.includes = mustache instanceof TemplateMustache ? ((TemplateMustache) mustache)
+		    .getTemplates() : Collections.<String> emptySet();
+	}
+
+	private static int count(Code[] codes) {
+	    if (codes == null) {
+		return 0;
+	    }
+	    int count = codes.length;
+	    for (Code code : codes) {
+		if (!(ForwardingCode.unwrap(code) instanceof PartialCode)) {
+		    count += count(code.getCodes());
+		}
+	    }
+	    return count;
+	}
+
+	public String getName() {
+	    return name;
+	}
+
+	public int getSize() {
+	    return size;
+	}
+
+	public long getHits() {
+	    return hits;
+	}
+
+	public Set<String> getIncludes() {
+	    return includes;
+	}
+
+	@Override
+	public String toString() {
+	    return name + " (" + size + " codes, " + hits + " hits)";
+	}
+    }
+}
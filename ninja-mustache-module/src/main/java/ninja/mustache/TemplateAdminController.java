@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache;
+
+import ninja.Context;
+import ninja.Result;
+import ninja.Results;
+import ninja.Router;
+
+import com.github.mustachejava.MustacheException;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+/**
+ * Optional routes exposing the {@link TemplateAdmin} as JSON, registered by
+ * the application with {@link #addRoutes(Router, String)}. The routes change
+ * the running templates: they must be protected as any other admin page.
+ *
+ * @author kpacha
+ */
+@Singleton
+public class TemplateAdminController {
+
+    private final TemplateAdmin templateAdmin;
+
+    @Inject
+    public TemplateAdminController(TemplateAdmin templateAdmin) {
+	this.templateAdmin = templateAdmin;
+    }
+
+    /**
+     * Register the admin routes under a prefix:
+     * <ul>
+     * <li>GET prefix: the compiled templates</li>
+     * <li>GET prefix/caches: the output caches</li>
+     * <li>POST prefix/evict?name=...[&dependents=true]</li>
+     * <li>POST prefix/recompile?name=...[&dependents=true]</li>
+     * </ul>
+     *
+     * @param router
+     * @param prefix
+     *            e.g. /admin/templates
+     */
+    public static void addRoutes(Router router, String prefix) {
+	router.GET().route(prefix)
+		.with(TemplateAdminController.class, "templates");
+	router.GET().route(prefix + "/caches")
+		.with(TemplateAdminController.class, "caches");
+	router.POST().route(prefix + "/evict")
+		.with(TemplateAdminController.class, "evict");
+	router.POST().route(prefix + "/recompile")
+		.with(TemplateAdminController.class, "recompile");
+    }
+
+    public Result templates() {
+	return Results.json().render(templateAdmin.getTemplates());
+    }
+
+    public Result caches() {
+	return Results.json().render(templateAdmin.getOutputCaches());
+    }
+
+    public Result evict(Context context) {
+	String name = context.getParameter("name");
+	if (name == null) {
+	    return Results.badRequest().json().render("Missing name");
+	}
+	return Results.json().render(
+		templateAdmin.evict(name, isDependents(context)));
+    }
+
+    public Result recompile(Context context) {
+	String name = context.getParameter("name");
+	if (name == null) {
+	    return Results.badRequest().json().render("Missing name");
+	}
+	try {
+	    return Results.json().render(
+		    templateAdmin.recompile(name, isDependents(context)));
+	} catch (MustacheException e) {
+	    // the previous version is still in use
+	    return Results.badRequest().json().render(e.getMessage());
+	}
+    }
+
+    private static boolean isDependents(Context context) {
+	return Boolean.parseBoolean(context.getParameter("dependents"));
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Resource root holding the templates of a versioned archive (a zip or a jar
+ * with the views directory at its top level).
+ *
+ * The archive is read once through a memory-mapped buffer and its templates
+ * are kept in memory, so the archive file can be replaced or removed as soon
+ * as it is opened: the root always serves the version it was opened with.
+ *
+ * @author kpacha
+ */
+public class TemplateArchive {
+
+    private final File file;
+    private final Map<String, String> templates;
+
+    private TemplateArchive(File file, Map<String, String> templates) {
+	this.file = file;
+	this.templates = templates;
+    }
+
+    /**
+     * Read all the entries of the given archive
+     *
+     * @param file
+     * @return the archive
+     * @throws IOException
+     *             if the archive can not be read
+     */
+    public static TemplateArchive open(File file) throws IOException {
+	Map<String, String> templates = new HashMap<String, String>();
+	RandomAccessFile input = new RandomAccessFile(file, "r");
+	try {
+	    FileChannel channel = input.getChannel();
+	    ZipInputStream zip = new ZipInputStream(new BufferInputStream(
+		    channel.map(FileChannel.MapMode.READ_ONLY, 0,
+			    channel.size())));
+	    for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip
+		    .getNextEntry()) {
+		if (!entry.isDirectory()) {
+		    templates.put(entry.getName(), new String(ByteStreams
+			    .toByteArray(zip), Charsets.UTF_8));
+		}
+	    }
+	} finally {
+	    input.close();
+	}
+	return new TemplateArchive(file, Collections.unmodifiableMap(templates));
+    }
+
+    public File getFile() {
+	return file;
+    }
+
+    /**
+     * @param resourceName
+     * @return true if the archive holds the given resource
+     */
+    public boolean contains(String resourceName) {
+	return templates.containsKey(resourceName);
+    }
+
+    /**
+     * @return the names of all the resources of the archive
+     */
+    public Set<String> getNames() {
+	return templates.keySet();
+    }
+
+    /**
+     * @param resourceName
+     * @return a reader over the given resource or null if it is not in the
+     *         archive
+     */
+    public Reader getReader(String resourceName) {
+	String template = templates.get(resourceName);
+	return template == null ? null : new StringReader(template);
+    }
+
+    @Override
+    public String toString() {
+	return file.toString();
+    }
+
+    /**
+     * Stream over the remaining bytes of a buffer
+     */
+    private static class BufferInputStream extends InputStream {
+	private final ByteBuffer buffer;
+
+	BufferInputStream(ByteBuffer buffer) {
+	    this.buffer = buffer;
+	}
+
+	@Override
+	public int read() {
+	    return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+	    if (!buffer.hasRemaining()) {
+		return -1;
+	    }
+	    len = Math.min(len, buffer.remaining());
+	    buffer.get(b, off, len);
+	    return len;
+	}
+
+	@Override
+	public int available() {
+	    return buffer.remaining();
+	}
+    }
+}
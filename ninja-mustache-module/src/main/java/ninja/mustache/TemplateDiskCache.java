@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Closeables;
+
+/**
+ * Persistent cache of parsed templates, shared by every instance started from
+ * the same cache directory.
+ *
+ * Each template is stored in its own file together with a fingerprint of its
+ * source and of the module version. An entry whose fingerprint does not match
+ * the current source is stale: it is ignored and rewritten with the new parse.
+ *
+ * @author kpacha
+ */
+public class TemplateDiskCache {
+
+    private static final int MAGIC = 0x4e4d5043;
+    private static final int FORMAT_VERSION = 1;
+    private static final String SUFFIX = ".parsed";
+
+    private final File directory;
+    private final String moduleVersion;
+    private final Logger logger;
+
+    public TemplateDiskCache(File directory, Logger logger) {
+	this(directory, getModuleVersion(), logger);
+    }
+
+    public TemplateDiskCache(File directory, String moduleVersion,
+	    Logger logger) {
+	this.directory = directory;
+	this.moduleVersion = moduleVersion;
+	this.logger = logger;
+	if (!directory.isDirectory() && !directory.mkdirs()) {
+	    logger.warn("Unable to create the template cache directory "
+		    + directory);
+	}
+    }
+
+    /**
+     * Get the cached parse of a template
+     *
+     * @param templateName
+     * @param source
+     *            the current source of the template
+     * @return the parsed template or null if it is not cached or stale
+     */
+    ParsedTemplate read(String templateName, String source) {
+	File file = getFile(templateName);
+	if (!file.isFile()) {
+	    return null;
+	}
+	try {
+	    DataInputStream in = new DataInputStream(new BufferedInputStream(
+		    new FileInputStream(file)));
+	    try {
+		if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION
+			|| !in.readUTF().equals(fingerprint(source))) {
+		    logger.debug("Stale cache entry for " + templateName);
+		    return null;
+		}
+		return ParsedTemplate.readFrom(in);
+	    } finally {
+		Closeables.close(in, true);
+	    }
+	} catch (IOException e) {
+	    logger.debug("Unreadable cache entry for " + templateName, e);
+	    return null;
+	}
+    }
+
+    /**
+     * Store the parse of a template, replacing any previous entry
+     *
+     * @param templateName
+     * @param source
+     * @param parsedTemplate
+     */
+    void write(String templateName, String source,
+	    ParsedTemplate parsedTemplate) {
+	File file = getFile(templateName);
+	File tmp = null;
+	try {
+	    tmp = File.createTempFile(file.getName(), ".tmp", directory);
+	    DataOutputStream out = new DataOutputStream(
+		    new BufferedOutputStream(new FileOutputStream(tmp)));
+	    try {
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeUTF(fingerprint(source));
+		parsedTemplate.writeTo(out);
+		// a failure to flush must not be swallowed
+		out.close();
+	    } finally {
+		Closeables.close(out, true);
+	    }
+	    Files.move(tmp.toPath(), file.toPath(),
+		    StandardCopyOption.REPLACE_EXISTING,
+		    StandardCopyOption.ATOMIC_MOVE);
+	} catch (IOException e) {
+	    logger.warn("Unable to cache the parsed template " + templateName,
+		    e);
+	    if (tmp != null) {
+		tmp.delete();
+	    }
+	}
+    }
+
+    private File getFile(String templateName) {
+	return new File(directory, Hashing.sha1()
+		.hashString(templateName, Charsets.UTF_8).toString()
+		+ SUFFIX);
+    }
+
+    private String fingerprint(String source) {
+	return Hashing.sha1().newHasher()
+		.putString(moduleVersion, Charsets.UTF_8).putByte((byte) 0)
+		.putString(source, Charsets.UTF_8).hash().toString();
+    }
+
+    /**
+     * @return the version of this module, as filtered into
+     *         ninja-mustache.properties at build time
+     */
+    static String getModuleVersion() {
+	InputStream is = TemplateDiskCache.class
+		.getResourceAsStream("ninja-mustache.properties");
+	if (is == null) {
+	    return "unknown";
+	}
+	try {
+	    try {
+		Properties properties = new Properties();
+		properties.load(is);
+		return properties.getProperty("version", "unknown");
+	    } finally {
+		Closeables.close(is, true);
+	    }
+	} catch (IOException e) {
+	    return "unknown";
+	}
+    }
+}
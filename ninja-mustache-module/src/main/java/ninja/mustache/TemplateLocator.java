@@ -0,0 +1,274 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import ninja.mustache.utils.MustacheConstant;
+
+import com.github.mustachejava.MustacheException;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Resolves template names against the resource roots of the fallback factory
+ * and remembers the outcome.
+ *
+ * The roots are probed in the same order (and with the same rules) as
+ * {@link com.github.mustachejava.FallbackMustacheFactory}, but each name is
+ * probed only once: hits are kept in a location index and misses in a bounded
+ * negative cache, so later compilations of the same template or partial never
+ * touch the class loader or the file system again. A name is probed again
+ * once forgotten (see {@link #forget(String)}), as when its template is
+ * evicted or recompiled. The index can also be filled eagerly at startup by
+ * scanning the roots for templates (see {@link #index()}).
+ *
+ * @author kpacha
+ */
+public class TemplateLocator {
+
+    /**
+     * The maximum number of misses remembered
+     */
+    public static final int MISSING_SIZE = 1000;
+
+    private final Object[] resourceRoots;
+    private final ClassLoader classLoader;
+    private final ConcurrentMap<String, Object> locations = new ConcurrentHashMap<String, Object>();
+    private final Cache<String, Boolean> missing = CacheBuilder.newBuilder()
+	    .maximumSize(MISSING_SIZE).build();
+
+    public TemplateLocator(Object... resourceRoots) {
+	this.resourceRoots = resourceRoots.clone();
+	ClassLoader contextClassLoader = Thread.currentThread()
+		.getContextClassLoader();
+	this.classLoader = contextClassLoader != null ? contextClassLoader
+		: TemplateLocator.class.getClassLoader();
+    }
+
+    /**
+     * Open the template with the given name
+     *
+     * @param resourceName
+     * @return a reader over the template source
+     * @throws MustacheException
+     *             if the template does not exist in any root
+     */
+    public Reader getReader(String resourceName) {
+	Object location = locate(resourceName);
+	if (location == null) {
+	    throw new MustacheException("Template " + resourceName
+		    + " not found");
+	}
+	if (location instanceof TemplateArchive) {
+	    return ((TemplateArchive) location).getReader(resourceName);
+	}
+	try {
+	    InputStream is = location instanceof File ? new FileInputStream(
+		    (File) location) : ((URL) location).openStream();
+	    return new BufferedReader(new InputStreamReader(is, "UTF-8"));
+	} catch (IOException e) {
+	    throw new MustacheException("Found template, could not open: "
+		    + location, e);
+	}
+    }
+
+    /**
+     * Resolve the location (a {@link File}, a {@link URL} or the
+     * {@link TemplateArchive} holding it) of the given template, probing the
+     * roots only the first time the name is seen.
+     *
+     * @param resourceName
+     * @return the location or null if the template does not exist
+     */
+    public Object locate(String resourceName) {
+	Object location = locations.get(resourceName);
+	if (location != null || missing.getIfPresent(resourceName) != null) {
+	    return location;
+	}
+	location = probe(resourceName);
+	if (location == null) {
+	    missing.put(resourceName, Boolean.TRUE);
+	    return null;
+	}
+	Object previous = locations.putIfAbsent(resourceName, location);
+	return previous != null ? previous : location;
+    }
+
+    /**
+     * Forget where a template is, or that it is missing, so it is probed
+     * again the next time it is located
+     *
+     * @param resourceName
+     */
+    public void forget(String resourceName) {
+	locations.remove(resourceName);
+	missing.invalidate(resourceName);
+    }
+
+    /**
+     * Scan every root for templates below the views directory and register
+     * them in the location index. Roots are scanned in registration order so
+     * the first root holding a template wins, like a lookup would.
+     *
+     * @return the number of indexed templates
+     */
+    public int index() {
+	for (Object root : resourceRoots) {
+	    if (root instanceof File) {
+		indexDirectory(new File((File) root,
+			MustacheConstant.VIEWS_DIRECTORY),
+			MustacheConstant.VIEWS_DIRECTORY);
+	    } else if (root instanceof String) {
+		indexClasspath((String) root);
+	    } else if (root instanceof TemplateArchive) {
+		indexArchive((TemplateArchive) root);
+	    }
+	}
+	return locations.size();
+    }
+
+    /**
+     * @return the names of all the templates found so far
+     */
+    public Set<String> getTemplateNames() {
+	return Collections.unmodifiableSet(locations.keySet());
+    }
+
+    /**
+     * @return the names of all the templates known not to exist
+     */
+    public Set<String> getMissingTemplateNames() {
+	return Collections.unmodifiableSet(missing.asMap().keySet());
+    }
+
+    private Object probe(String resourceName) {
+	for (Object root : resourceRoots) {
+	    if (root instanceof TemplateArchive) {
+		if (((TemplateArchive) root).contains(resourceName)) {
+		    return root;
+		}
+		continue;
+	    }
+	    if (root instanceof String) {
+		URL url = classLoader.getResource(root + resourceName);
+		if (url != null) {
+		    return url;
+		}
+	    }
+	    File file;
+	    if (root instanceof String) {
+		file = new File((String) root, resourceName);
+	    } else if (root instanceof File) {
+		file = new File((File) root, resourceName);
+	    } else {
+		file = new File(resourceName);
+	    }
+	    if (file.isFile()) {
+		return file;
+	    }
+	}
+	return null;
+    }
+
+    private void indexClasspath(String root) {
+	Enumeration<URL> urls;
+	try {
+	    urls = classLoader.getResources(root
+		    + MustacheConstant.VIEWS_DIRECTORY);
+	} catch (IOException e) {
+	    return;
+	}
+	while (urls.hasMoreElements()) {
+	    URL url = urls.nextElement();
+	    try {
+		if ("file".equals(url.getProtocol())) {
+		    indexDirectory(new File(url.toURI()),
+			    MustacheConstant.VIEWS_DIRECTORY);
+		} else if ("jar".equals(url.getProtocol())) {
+		    indexJar(url, root);
+		}
+	    } catch (IOException e) {
+		// unreadable entries are left to the lazy lookup
+	    } catch (URISyntaxException e) {
+		// unreadable entries are left to the lazy lookup
+	    }
+	}
+    }
+
+    private void indexDirectory(File directory, String prefix) {
+	File[] files = directory.listFiles();
+	if (files == null) {
+	    return;
+	}
+	for (File file : files) {
+	    String name = prefix + "/" + file.getName();
+	    if (file.isDirectory()) {
+		indexDirectory(file, name);
+	    } else if (name.endsWith(MustacheConstant.DEFAULT_EXTENSION)) {
+		locations.putIfAbsent(name, file);
+	    }
+	}
+    }
+
+    private void indexArchive(TemplateArchive archive) {
+	String prefix = MustacheConstant.VIEWS_DIRECTORY + "/";
+	for (String name : archive.getNames()) {
+	    if (name.startsWith(prefix)
+		    && name.endsWith(MustacheConstant.DEFAULT_EXTENSION)) {
+		locations.putIfAbsent(name, archive);
+	    }
+	}
+    }
+
+    private void indexJar(URL url, String root) throws IOException {
+	URLConnection connection = url.openConnection();
+	if (!(connection instanceof JarURLConnection)) {
+	    return;
+	}
+	JarFile jarFile = ((JarURLConnection) connection).getJarFile();
+	String prefix = root + MustacheConstant.VIEWS_DIRECTORY + "/";
+	Enumeration<JarEntry> entries = jarFile.entries();
+	while (entries.hasMoreElements()) {
+	    String entryName = entries.nextElement().getName();
+	    if (entryName.startsWith(prefix)
+		    && entryName.endsWith(MustacheConstant.DEFAULT_EXTENSION)) {
+		String name = entryName.substring(root.length());
+		locations.putIfAbsent(name, new URL("jar:"
+			+ ((JarURLConnection) connection).getJarFileURL()
+			+ "!/" + entryName));
+	    }
+	}
+    }
+}
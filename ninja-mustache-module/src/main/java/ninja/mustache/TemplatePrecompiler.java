@@ -0,0 +1,179 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.mustachejava.MustacheFactory;
+
+/**
+ * Compiles a whole set of templates ahead of traffic using a fork/join pool.
+ *
+ * Templates sharing partials and layouts are safe to compile concurrently
+ * with a {@link NinjaMustacheFactory}: it compiles every template name
+ * exactly once (concurrent requests for the same name wait for the future of
+ * the thread already compiling it), so a shared partial is compiled by a
+ * single thread while the others wait only for that partial.
+ *
+ * Any other factory is compiled on a single thread: mustache.java initializes
+ * a template under its own lock, so two threads compiling templates which
+ * include each other could take these locks in opposite orders.
+ *
+ * @author kpacha
+ */
+public class TemplatePrecompiler {
+
+    private final MustacheFactory mustacheFactory;
+    private final int parallelism;
+
+    /**
+     * @param mustacheFactory
+     * @param parallelism
+     *            the number of compiling threads, only used with a
+     *            {@link NinjaMustacheFactory}
+     */
+    public TemplatePrecompiler(MustacheFactory mustacheFactory, int parallelism) {
+	this.mustacheFactory = mustacheFactory;
+	boolean singleFlight = mustacheFactory instanceof NinjaMustacheFactory;
+	this.parallelism = singleFlight ? Math.max(1, parallelism) : 1;
+    }
+
+    /**
+     * Compile all the given templates and wait for them
+     *
+     * @param templateNames
+     * @return the outcome of the compilation
+     */
+    public Report precompile(Collection<String> templateNames) {
+	List<String> names = new ArrayList<String>(templateNames);
+	Report report = new Report(names.size(), parallelism);
+	ForkJoinPool pool = new ForkJoinPool(parallelism);
+	long start = System.nanoTime();
+	try {
+	    pool.invoke(new CompileTask(names, 0, names.size(), report));
+	} finally {
+	    pool.shutdown();
+	}
+	report.wallTime = System.nanoTime() - start;
+	return report;
+    }
+
+    private class CompileTask extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	private final List<String> names;
+	private final int from;
+	private final int to;
+	private final Report report;
+
+	CompileTask(List<String> names, int from, int to, Report report) {
+	    this.names = names;
+	    this.from = from;
+	    this.to = to;
+	    this.report = report;
+	}
+
+	@Override
+	protected void compute() {
+	    if (to - from > 1) {
+		int middle = (from + to) >>> 1;
+		invokeAll(new CompileTask(names, from, middle, report),
+			new CompileTask(names, middle, to, report));
+		return;
+	    }
+	    if (to > from) {
+		compile(names.get(from), report);
+	    }
+	}
+    }
+
+    private void compile(String name, Report report) {
+	ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+	boolean cpuTimeSupported = threadMXBean
+		.isCurrentThreadCpuTimeSupported();
+	long start = cpuTimeSupported ? threadMXBean.getCurrentThreadCpuTime()
+		: 0;
+	try {
+	    mustacheFactory.compile(name);
+	} catch (RuntimeException e) {
+	    report.failures.put(name, e);
+	} finally {
+	    if (cpuTimeSupported) {
+		report.cpuTime.addAndGet(threadMXBean.getCurrentThreadCpuTime()
+			- start);
+	    }
+	}
+    }
+
+    /**
+     * Outcome of a precompilation: failures and the wall time spent compared
+     * with the CPU time used by all the compiling threads.
+     */
+    public static class Report {
+
+	private final int templates;
+	private final int parallelism;
+	private final Map<String, RuntimeException> failures = new ConcurrentHashMap<String, RuntimeException>();
+	private final AtomicLong cpuTime = new AtomicLong();
+	private long wallTime;
+
+	Report(int templates, int parallelism) {
+	    this.templates = templates;
+	    this.parallelism = parallelism;
+	}
+
+	public int getTemplates() {
+	    return templates;
+	}
+
+	public int getParallelism() {
+	    return parallelism;
+	}
+
+	public Map<String, RuntimeException> getFailures() {
+	    return Collections.unmodifiableMap(failures);
+	}
+
+	public long getWallTime(TimeUnit unit) {
+	    return unit.convert(wallTime, TimeUnit.NANOSECONDS);
+	}
+
+	public long getCpuTime(TimeUnit unit) {
+	    return unit.convert(cpuTime.get(), TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public String toString() {
+	    return templates + " templates compiled (" + failures.size()
+		    + " failures) on " + parallelism + " threads in "
+		    + getWallTime(TimeUnit.MILLISECONDS) + " ms wall time / "
+		    + getCpuTime(TimeUnit.MILLISECONDS) + " ms CPU time";
+	}
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+/**
+ * A value of the scope standing for a stable key in the output caches.
+ *
+ * The cached partials and the donut cached pages key their outputs by the
+ * values they read. A per-request object, as a function bound to the
+ * request, never equals the one of another request: implementing this
+ * interface, it is keyed by what its output depends on instead (the
+ * language, for the i18n function).
+ *
+ * @author kpacha
+ */
+public interface CacheKeyed {
+
+    /**
+     * @return the key of the value, with a value based equality, not holding
+     *         the request
+     */
+    Object getCacheKey();
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import ninja.mustache.NinjaMustacheFactory;
+
+import com.github.mustachejava.Code;
+import com.github.mustachejava.Mustache;
+import com.github.mustachejava.codes.PartialCode;
+
+/**
+ * Caches the output of the partials declaring the CACHE pragma.
+ *
+ * A partial starting with <code>{{%CACHE lang contextPath}}</code> declares
+ * its output only depends on the values of lang and contextPath where it is
+ * included: it is rendered once per distinct pair of values and copied from
+ * the cache afterwards, by every template including it. With no arguments,
+ * <code>{{%CACHE}}</code>, the partial depends on every variable referenced
+ * by its tags, and by the partials and layouts it includes.
+ *
+ * Values are compared with equals, so variables holding per request objects
+ * (like the i18n function) defeat the cache: list the variables that really
+ * matter instead.
+ *
+ * @author kpacha
+ */
+public class CachePartialsPass implements CompilerPass {
+
+    private final OutputCache outputCache;
+
+    /**
+     * @param maximumSize
+     *            the maximum number of rendered outputs to keep
+     */
+    public CachePartialsPass(long maximumSize) {
+	this(new OutputCache(maximumSize));
+    }
+
+    /**
+     * @param outputCache
+     *            the cache of the rendered outputs
+     */
+    public CachePartialsPass(OutputCache outputCache) {
+	this.outputCache = outputCache;
+    }
+
+    public OutputCache getOutputCache() {
+	return outputCache;
+    }
+
+    @Override
+    public Code[] apply(Code[] codes, NinjaMustacheFactory factory) {
+	Code[] transformed = new Code[codes.length];
+	for (int i = 0; i < codes.length; i++) {
+	    Code code = codes[i];
+	    if (code instanceof TemplatePartialCode) {
+		code = cache((TemplatePartialCode) code, factory);
+	    } else if (!(code instanceof PartialCode) && code.getCodes() != null) {
+		code.setCodes(apply(code.getCodes(), factory));
+	    }
+	    transformed[i] = code;
+	}
+	return transformed;
+    }
+
+    private Code cache(TemplatePartialCode partialCode,
+	    NinjaMustacheFactory factory) {
+	Mustache partial = factory.parse(partialCode.getPartialName());
+	if (!isCached(partial)) {
+	    return partialCode;
+	}
+	String declaration = ((TemplateMustache) partial).getCacheDeclaration();
+	List<String> dependencies = declaration.length() == 0 ? detectDependencies(
+		partial, factory) : Arrays.asList(declaration.split("[\\s,]+"));
+	return new CachedPartialCode(partialCode.getTemplateContext(),
+		factory, partialCode.getVariable(), dependencies, outputCache,
+		factory.getRenderEvents());
+    }
+
+    private List<String> detectDependencies(Mustache partial,
+	    NinjaMustacheFactory factory) {
+	Set<String> dependencies = new LinkedHashSet<String>();
+	Set<String> visited = new LinkedHashSet<String>();
+	List<Mustache> pending = new ArrayList<Mustache>();
+	pending.add(partial);
+	while (!pending.isEmpty()) {
+	    TemplateMustache template = (TemplateMustache) pending
+		    .remove(pending.size() - 1);
+	    for (String variable : template.getVariables()) {
+		String root = variable.split("\\.", 2)[0];
+		if (root.length() > 0) {
+		    dependencies.add(root);
+		}
+	    }
+	    for (String name : template.getTemplates()) {
+		if (visited.add(name)) {
+		    pending.add(factory.parse(name));
+		}
+	    }
+	}
+	return new ArrayList<String>(dependencies);
+    }
+
+    /**
+     * Drop the cached outputs of a partial
+     *
+     * @param partialName
+     */
+    public void invalidate(String partialName) {
+	for (List<Object> key : outputCache.keys()) {
+	    if (partialName.equals(key.get(0))) {
+		outputCache.invalidate(key);
+	    }
+	}
+    }
+
+    /**
+     * @param template
+     * @return true if the template declares the CACHE pragma
+     */
+    public static boolean isCached(Mustache template) {
+	return template instanceof TemplateMustache
+		&& ((TemplateMustache) template).getCacheDeclaration() != null;
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import ninja.mustache.RenderEvent.Type;
+import ninja.mustache.RenderEvents;
+
+import com.github.mustachejava.Binding;
+import com.github.mustachejava.DefaultMustacheFactory;
+import com.github.mustachejava.MustacheException;
+import com.github.mustachejava.TemplateContext;
+import com.github.mustachejava.codes.PartialCode;
+
+/**
+ * A partial whose output only depends on the values of a few variables: it is
+ * rendered once per distinct tuple of values and then copied from the cache,
+ * until the output expires (see {@link OutputCache}). Both are reported as
+ * {@link Type#PARTIAL} events.
+ *
+ * @author kpacha
+ */
+public class CachedPartialCode extends PartialCode {
+
+    private final List<String> dependencies;
+    private final Binding[] bindings;
+    private final OutputCache outputCache;
+    private final RenderEvents renderEvents;
+
+    public CachedPartialCode(TemplateContext tc, DefaultMustacheFactory df,
+	    String variable, List<String> dependencies,
+	    OutputCache outputCache, RenderEvents renderEvents) {
+	super(tc, df, variable);
+	this.dependencies = dependencies;
+	this.outputCache = outputCache;
+	this.renderEvents = renderEvents;
+	this.bindings = new Binding[dependencies.size()];
+	for (int i = 0; i < bindings.length; i++) {
+	    bindings[i] = oh.createBinding(dependencies.get(i), tc, this);
+	}
+    }
+
+    /**
+     * @return the name of the included template
+     */
+    public String getPartialName() {
+	return partialName();
+    }
+
+    /**
+     * @return the variables the output of the partial depends on
+     */
+    public List<String> getDependencies() {
+	return dependencies;
+    }
+
+    @Override
+    public Writer execute(Writer writer, final Object[] scopes) {
+	boolean evented = renderEvents.isEnabled();
+	long start = evented ? System.nanoTime() : 0;
+	final List<Object> key = new ArrayList<Object>(bindings.length + 1);
+	key.add(partialName());
+	for (Binding binding : bindings) {
+	    key.add(OutputCache.toKey(binding.get(scopes)));
+	}
+	String output = outputCache.get(key, new Callable<String>() {
+	    @Override
+	    public String call() {
+		String output = render(scopes);
+		outputCache.put(key, output);
+		return output;
+	    }
+	});
+	if (output == null) {
+	    output = render(scopes);
+	    outputCache.put(key, output);
+	}
+	try {
+	    writer.write(output);
+	} catch (IOException e) {
+	    throw new MustacheException(e);
+	}
+	if (evented) {
+	    renderEvents.fire(Type.PARTIAL, partialName(), System.nanoTime()
+		    - start, output.length(), null);
+	}
+	return appendText(writer);
+    }
+
+    private String render(Object[] scopes) {
+	StringWriter partialWriter = new StringWriter();
+	partial.execute(partialWriter, scopes);
+	return partialWriter.toString();
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import ninja.mustache.RenderDeadline;
+import ninja.mustache.RenderEvents;
+import ninja.mustache.RenderTrace;
+
+import com.github.mustachejava.DefaultMustacheFactory;
+import com.github.mustachejava.Mustache;
+import com.github.mustachejava.MustacheException;
+import com.github.mustachejava.TemplateContext;
+
+/**
+ * Section rendering a large list in chunks on a {@link ForkJoinPool}.
+ *
+ * A list longer than a chunk, and with random access, is split into chunks
+ * of consecutive items; each chunk is rendered into its own buffer and the
+ * buffers are written in order once all of them are done. Any other value is
+ * rendered as by a plain section.
+ *
+ * The chunks share the scopes, the {@link RenderDeadline}, the
+ * {@link RenderTrace} and the profiler frame of the page; the scopes and the
+ * items must therefore be safe to read from several
+ * threads.
+ *
+ * @author kpacha
+ */
+public class ChunkedSectionCode extends SectionCode {
+
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+
+    public ChunkedSectionCode(TemplateContext tc, DefaultMustacheFactory df,
+	    Mustache mustache, String variable, RenderEvents renderEvents,
+	    ForkJoinPool pool, int chunkSize) {
+	super(tc, df, mustache, variable, renderEvents);
+	this.pool = pool;
+	this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public Writer execute(Writer writer, Object[] scopes) {
+	Object resolved = get(scopes);
+	if (resolved instanceof List && resolved instanceof RandomAccess
+		&& ((List<?>) resolved).size() > chunkSize) {
+	    List<?> items = (List<?>) resolved;
+	    String[] chunks = new String[(items.size() + chunkSize - 1)
+		    / chunkSize];
+	    pool.invoke(new RenderChunks(items, scopes, chunks, 0,
+		    chunks.length, RenderState.capture()));
+	    try {
+		for (String chunk : chunks) {
+		    writer.write(chunk);
+		}
+	    } catch (IOException e) {
+		throw new MustacheException(e);
+	    }
+	} else {
+	    writer = handle(writer, resolved, scopes);
+	}
+	appendText(writer);
+	return writer;
+    }
+
+    /**
+     * Render the chunks of a range, splitting it in halves until a single
+     * chunk is left
+     */
+    private class RenderChunks extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	private final List<?> items;
+	private final Object[] scopes;
+	private final String[] chunks;
+	private final int from;
+	private final int to;
+	private final RenderState state;
+
+	RenderChunks(List<?> items, Object[] scopes, String[] chunks,
+		int from, int to, RenderState state) {
+	    this.items = items;
+	    this.scopes = scopes;
+	    this.chunks = chunks;
+	    this.from = from;
+	    this.to = to;
+	    this.state = state;
+	}
+
+	@Override
+	protected void compute() {
+	    if (to - from > 1) {
+		int middle = (from + to) >>> 1;
+		invokeAll(new RenderChunks(items, scopes, chunks, from,
+			middle, state), new RenderChunks(items, scopes, chunks,
+			middle, to, state));
+		return;
+	    }
+	    RenderState previous = state.apply();
+	    try {
+		StringWriter buffer = new StringWriter();
+		Writer writer = buffer;
+		int end = Math.min(items.size(), (from + 1) * chunkSize);
+		for (int i = from * chunkSize; i < end; i++) {
+		    writer = next(writer, oh.coerce(items.get(i)), scopes);
+		}
+		chunks[from] = buffer.toString();
+	    } finally {
+		previous.apply();
+	    }
+	}
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import ninja.mustache.NinjaMustacheFactory;
+
+import com.github.mustachejava.Code;
+
+/**
+ * Chunked rendering of the sections named by the CHUNKED pragma.
+ *
+ * In a template declaring <code>{{%CHUNKED rows}}</code>, every
+ * <code>{{#rows}}</code> section, at any depth, renders a large list in
+ * chunks of consecutive items on the given pool, and writes them in order.
+ * See {@link ChunkedSectionCode}.
+ *
+ * @author kpacha
+ */
+public class ChunkedSectionPass implements CompilerPass {
+
+    public static final String CHUNKED_PRAGMA = "CHUNKED";
+
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+
+    /**
+     * @param pool
+     *            the pool rendering the chunks
+     * @param chunkSize
+     *            the number of items per chunk, shorter lists are rendered
+     *            by the calling thread
+     */
+    public ChunkedSectionPass(ForkJoinPool pool, int chunkSize) {
+	this.pool = pool;
+	this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public Code[] apply(Code[] codes, NinjaMustacheFactory factory) {
+	Set<String> variables = new LinkedHashSet<String>();
+	List<Code> rest = new ArrayList<Code>(codes.length);
+	for (Code code : codes) {
+	    if (code instanceof PragmaCode
+		    && CHUNKED_PRAGMA.equalsIgnoreCase(((PragmaCode) code)
+			    .getPragma())) {
+		variables.addAll(Arrays.asList(((PragmaCode) code)
+			.getArguments().split("[\\s,]+")));
+	    } else {
+		rest.add(code);
+	    }
+	}
+	if (rest.size() == codes.length) {
+	    return codes;
+	}
+	variables.remove("");
+	return chunk(rest.toArray(new Code[rest.size()]), variables, factory);
+    }
+
+    private Code[] chunk(Code[] codes, Set<String> variables,
+	    NinjaMustacheFactory factory) {
+	for (int i = 0; i < codes.length; i++) {
+	    Code code = codes[i];
+	    if (code.getCodes() != null) {
+		code.setCodes(chunk(code.getCodes(), variables, factory));
+	    }
+	    if (code instanceof SectionCode
+		    && !(code instanceof ChunkedSectionCode)
+		    && variables.contains(((SectionCode) code).getVariable())) {
+		SectionCode section = (SectionCode) code;
+		codes[i] = new ChunkedSectionCode(
+			section.getTemplateContext(), factory,
+			section.getSection(), section.getVariable(),
+			section.getRenderEvents(), pool, chunkSize);
+	    }
+	}
+	return codes;
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ninja.mustache.NinjaMustacheFactory;
+
+import com.github.mustachejava.Code;
+import com.github.mustachejava.codes.PartialCode;
+
+/**
+ * Merges adjacent static segments into a single {@link TextCode}, so each run
+ * of static text is written with a single call.
+ *
+ * @author kpacha
+ */
+public class CoalesceTextPass implements CompilerPass {
+
+    @Override
+    public Code[] apply(Code[] codes, NinjaMustacheFactory factory) {
+	List<Code> coalesced = new ArrayList<Code>(codes.length);
+	TextCode first = null;
+	StringBuilder text = new StringBuilder();
+	for (Code code : codes) {
+	    if (code instanceof TextCode) {
+		TextCode textCode = (TextCode) code;
+		if (first == null) {
+		    first = textCode;
+		    text.setLength(0);
+		}
+		text.append(textCode.getText());
+		continue;
+	    }
+	    coalesce(coalesced, first, text, factory);
+	    first = null;
+	    if (!(code instanceof PartialCode) && code.getCodes() != null) {
+		code.setCodes(apply(code.getCodes(), factory));
+	    }
+	    coalesced.add(code);
+	}
+	coalesce(coalesced, first, text, factory);
+	return coalesced.toArray(new Code[coalesced.size()]);
+    }
+
+    private void coalesce(List<Code> coalesced, TextCode first,
+	    StringBuilder text, NinjaMustacheFactory factory) {
+	if (first == null) {
+	    return;
+	}
+	if (first.getText().length() == text.length()) {
+	    coalesced.add(first);
+	} else {
+	    coalesced.add(new TextCode(first.getTemplateContext(), factory,
+		    text.toString()));
+	}
+    }
+}
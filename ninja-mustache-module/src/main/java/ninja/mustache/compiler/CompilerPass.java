@@ -0,0 +1,45 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import ninja.mustache.NinjaMustacheFactory;
+
+import com.github.mustachejava.Code;
+
+/**
+ * A transformation applied once to every freshly parsed template, before it is
+ * initialized and cached.
+ *
+ * Passes work on the codes produced by {@link NinjaMustacheVisitor}: static
+ * text lives in its own {@link TextCode}s and layout inheritance is still
+ * expressed with {@link LayoutExtendCode}s and
+ * {@link com.github.mustachejava.codes.ExtendNameCode}s. The codes of a fresh
+ * parse are not shared with any other template, so passes may modify them.
+ *
+ * @author kpacha
+ */
+public interface CompilerPass {
+
+    /**
+     * @param codes
+     *            the top level codes of the template
+     * @param factory
+     *            the factory compiling the template
+     * @return the transformed codes
+     */
+    Code[] apply(Code[] codes, NinjaMustacheFactory factory);
+}
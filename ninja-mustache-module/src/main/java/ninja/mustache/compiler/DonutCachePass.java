@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import ninja.mustache.NinjaMustacheFactory;
+
+import com.github.mustachejava.Code;
+
+/**
+ * Donut caching for the templates declaring the DONUT pragma.
+ *
+ * A page starting with <code>{{%DONUT session flash}}</code> declares that
+ * only the parts using session or flash change from one user to another. The
+ * rest of the page, the shell, is rendered once per distinct value of the
+ * variables it uses and cached; each request only renders the holes, the
+ * parts using the declared variables, and stitches them into the cached
+ * shell. See {@link DonutCode}.
+ *
+ * Best run after every other pass, so the page is as flat as possible.
+ *
+ * @author kpacha
+ */
+public class DonutCachePass implements CompilerPass {
+
+    public static final String DONUT_PRAGMA = "DONUT";
+
+    private final OutputCache outputCache;
+
+    /**
+     * @param maximumSize
+     *            the maximum number of rendered shell segments to keep
+     */
+    public DonutCachePass(long maximumSize) {
+	this(new OutputCache(maximumSize));
+    }
+
+    /**
+     * @param outputCache
+     *            the cache of the rendered shell segments
+     */
+    public DonutCachePass(OutputCache outputCache) {
+	this.outputCache = outputCache;
+    }
+
+    public OutputCache getOutputCache() {
+	return outputCache;
+    }
+
+    @Override
+    public Code[] apply(Code[] codes, NinjaMustacheFactory factory) {
+	PragmaCode declaration = null;
+	List<Code> shell = new ArrayList<Code>(codes.length);
+	for (Code code : codes) {
+	    if (code instanceof PragmaCode
+		    && DONUT_PRAGMA.equalsIgnoreCase(((PragmaCode) code)
+			    .getPragma())) {
+		declaration = (PragmaCode) code;
+	    } else {
+		shell.add(code);
+	    }
+	}
+	if (declaration == null) {
+	    return codes;
+	}
+	Set<String> holes = new LinkedHashSet<String>(
+		Arrays.asList(declaration.getArguments().split("[\\s,]+")));
+	holes.remove("");
+	return new Code[] { new DonutCode(declaration.getTemplateContext(),
+		factory, shell.toArray(new Code[shell.size()]), holes,
+		outputCache) };
+    }
+}
@@ -0,0 +1,256 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.github.mustachejava.Code;
+import com.github.mustachejava.DefaultMustacheFactory;
+import com.github.mustachejava.MustacheException;
+import com.github.mustachejava.TemplateContext;
+import com.github.mustachejava.codes.DefaultCode;
+import com.github.mustachejava.codes.DefaultMustache;
+import com.google.common.collect.ForwardingMap;
+
+/**
+ * A page rendered as a cached shell with holes.
+ *
+ * The root variables read by each code of the page are recorded whenever the
+ * code is rendered. A code reading one of the hole variables becomes a hole,
+ * rendered on every request; the runs of codes between the holes are cached,
+ * keyed by the values of the variables they read. Since a code may read new
+ * variables when the data changes (a section shown for the first time), the
+ * recorded variables are updated on every cache miss and the new entry is
+ * only cached once the recording is stable.
+ *
+ * Only pages rendered with a single Map scope, as the template engine does,
+ * are cached; anything else is rendered as usual.
+ *
+ * @author kpacha
+ */
+public class DonutCode extends DefaultCode {
+
+    private final Set<String> holes;
+    private final OutputCache outputCache;
+    private final AtomicReference<Plan> plan = new AtomicReference<Plan>();
+
+    public DonutCode(TemplateContext tc, DefaultMustacheFactory df,
+	    Code[] codes, Set<String> holes, OutputCache outputCache) {
+	super(tc, df, new DefaultMustache(tc, df, codes, tc.file()), null, null);
+	this.holes = holes;
+	this.outputCache = outputCache;
+    }
+
+    /**
+     * @return the variables making the holes of the page
+     */
+    public Set<String> getHoles() {
+	return holes;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Writer execute(Writer writer, Object[] scopes) {
+	if (scopes.length != 1 || !(scopes[0] instanceof Map)) {
+	    return super.execute(writer, scopes);
+	}
+	final Map<String, Object> root = (Map<String, Object>) scopes[0];
+	final Code[] codes = getCodes();
+	Plan current = plan.get();
+	if (current == null || current.size() != codes.length) {
+	    plan.compareAndSet(current, new Plan(codes.length));
+	    current = plan.get();
+	}
+	final Plan rendered = current;
+	try {
+	    for (final Run run : current.runs) {
+		if (run.hole) {
+		    for (int i = run.from; i < run.to; i++) {
+			writer = codes[i].execute(writer, scopes);
+		    }
+		    continue;
+		}
+		final List<Object> key = new ArrayList<Object>(
+			run.dependencies.size() + 1);
+		key.add(run);
+		for (String dependency : run.dependencies) {
+		    key.add(OutputCache.toKey(root.get(dependency)));
+		}
+		String output = outputCache.get(key, new Callable<String>() {
+		    @Override
+		    public String call() {
+			return render(rendered, run, codes, root, key);
+		    }
+		});
+		if (output == null) {
+		    output = render(current, run, codes, root, key);
+		}
+		writer.write(output);
+	    }
+	} catch (IOException e) {
+	    throw new MustacheException(e);
+	}
+	return appendText(writer);
+    }
+
+    /**
+     * Render a run of the shell while recording the variables each code
+     * reads, and cache it if the recording did not change
+     */
+    private String render(Plan current, Run run, Code[] codes,
+	    Map<String, Object> root, List<Object> key) {
+	RecordingMap recorder = new RecordingMap(root);
+	Object[] scopes = new Object[] { recorder };
+	StringWriter writer = new StringWriter();
+	boolean[] hole = current.hole.clone();
+	List<Set<String>> dependencies = new ArrayList<Set<String>>(
+		current.dependencies);
+	boolean changed = false;
+	for (int i = run.from; i < run.to; i++) {
+	    recorder.keys.clear();
+	    codes[i].execute(writer, scopes);
+	    if (!Collections.disjoint(recorder.keys, holes)) {
+		hole[i] = true;
+		changed = true;
+	    }
+	    if (!dependencies.get(i).containsAll(recorder.keys)) {
+		Set<String> merged = new TreeSet<String>(dependencies.get(i));
+		merged.addAll(recorder.keys);
+		dependencies.set(i, merged);
+		changed = true;
+	    }
+	}
+	String output = writer.toString();
+	if (changed) {
+	    plan.compareAndSet(current, new Plan(hole, dependencies, current));
+	} else {
+	    outputCache.put(key, output);
+	}
+	return output;
+    }
+
+    /**
+     * What is known about the codes of the page: which ones are holes and
+     * which variables the others read
+     */
+    private static class Plan {
+	private final boolean[] hole;
+	private final List<Set<String>> dependencies;
+	private final List<Run> runs = new ArrayList<Run>();
+
+	Plan(int size) {
+	    this(new boolean[size], Collections.nCopies(size,
+		    Collections.<String> emptySet()), null);
+	}
+
+	/**
+	 * The runs left unchanged from the previous plan are reused, so their
+	 * cached entries are still found
+	 */
+	Plan(boolean[] hole, List<Set<String>> dependencies, Plan previous) {
+	    this.hole = hole;
+	    this.dependencies = dependencies;
+	    int from = 0;
+	    for (int i = 1; i <= hole.length; i++) {
+		if (i == hole.length || hole[i] != hole[from]) {
+		    Set<String> runDependencies = new TreeSet<String>();
+		    for (int j = from; j < i; j++) {
+			runDependencies.addAll(dependencies.get(j));
+		    }
+		    Run run = new Run(from, i, hole[from],
+			    new ArrayList<String>(runDependencies));
+		    runs.add(previous == null ? run : previous.find(run));
+		    from = i;
+		}
+	    }
+	}
+
+	int size() {
+	    return hole.length;
+	}
+
+	Run find(Run run) {
+	    for (Run candidate : runs) {
+		if (candidate.from == run.from && candidate.to == run.to
+			&& candidate.hole == run.hole
+			&& candidate.dependencies.equals(run.dependencies)) {
+		    return candidate;
+		}
+	    }
+	    return run;
+	}
+    }
+
+    /**
+     * Consecutive codes of the page, either a hole or a cached segment of the
+     * shell. Compared by identity, so the entries cached for an outdated run
+     * are never read again
+     */
+    private static class Run {
+	private final int from;
+	private final int to;
+	private final boolean hole;
+	private final List<String> dependencies;
+
+	Run(int from, int to, boolean hole, List<String> dependencies) {
+	    this.from = from;
+	    this.to = to;
+	    this.hole = hole;
+	    this.dependencies = dependencies;
+	}
+    }
+
+    /**
+     * Root scope recording the variables looked up
+     */
+    private static class RecordingMap extends ForwardingMap<String, Object> {
+	private final Map<String, Object> delegate;
+	private final Set<String> keys = new HashSet<String>();
+
+	RecordingMap(Map<String, Object> delegate) {
+	    this.delegate = delegate;
+	}
+
+	@Override
+	protected Map<String, Object> delegate() {
+	    return delegate;
+	}
+
+	@Override
+	public Object get(Object key) {
+	    keys.add(String.valueOf(key));
+	    return delegate.get(key);
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+	    keys.add(String.valueOf(key));
+	    return delegate.containsKey(key);
+	}
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import ninja.mustache.NinjaMustacheFactory;
+
+import com.github.mustachejava.Code;
+import com.github.mustachejava.MustacheException;
+import com.github.mustachejava.codes.ExtendNameCode;
+import com.github.mustachejava.codes.PartialCode;
+
+/**
+ * Resolves layout inheritance at compile time.
+ *
+ * Every {@link LayoutExtendCode} is replaced by the codes of the layout it
+ * extends, with each block of the layout replaced by its override or, when
+ * not overridden, by its default content. Layouts extending other layouts are
+ * resolved the same way, the most derived override winning. The result is a
+ * linear list of segments, with no layout left to load, parse or walk at
+ * render time.
+ *
+ * @author kpacha
+ */
+public class FlattenInheritancePass implements CompilerPass {
+
+    @Override
+    public Code[] apply(Code[] codes, NinjaMustacheFactory factory) {
+	return flatten(codes, Collections.<String, Code[]> emptyMap(),
+		factory, new LinkedList<String>());
+    }
+
+    private Code[] flatten(Code[] codes, Map<String, Code[]> overrides,
+	    NinjaMustacheFactory factory, LinkedList<String> layouts) {
+	List<Code> flattened = new ArrayList<Code>(codes.length);
+	for (Code code : codes) {
+	    if (code instanceof LayoutExtendCode) {
+		LayoutExtendCode extendCode = (LayoutExtendCode) code;
+		for (Code layoutCode : extend(extendCode, overrides, factory,
+			layouts)) {
+		    flattened.add(layoutCode);
+		}
+	    } else if (code instanceof ExtendNameCode) {
+		Code[] block = overrides.get(((ExtendNameCode) code).getName());
+		if (block == null) {
+		    block = flatten(code.getCodes(), overrides, factory,
+			    layouts);
+		}
+		for (Code blockCode : block) {
+		    flattened.add((Code) blockCode.clone());
+		}
+	    } else {
+		if (!(code instanceof PartialCode) && code.getCodes() != null) {
+		    code.setCodes(flatten(code.getCodes(), overrides, factory,
+			    layouts));
+		}
+		flattened.add(code);
+	    }
+	}
+	return flattened.toArray(new Code[flattened.size()]);
+    }
+
+    private Code[] extend(LayoutExtendCode extendCode,
+	    Map<String, Code[]> overrides, NinjaMustacheFactory factory,
+	    LinkedList<String> layouts) {
+	String layoutName = extendCode.getLayoutName();
+	if (layouts.contains(layoutName)) {
+	    throw new MustacheException("Circular layout inheritance: "
+		    + layouts + " extends " + layoutName);
+	}
+	Map<String, Code[]> blocks = new HashMap<String, Code[]>();
+	for (Code code : extendCode.getBlocks()) {
+	    if (code instanceof ExtendNameCode) {
+		blocks.put(((ExtendNameCode) code).getName(),
+			flatten(code.getCodes(), overrides, factory, layouts));
+	    } else if (!(code instanceof TextCode)) {
+		throw new MustacheException("Illegal code in extend section: "
+			+ code.getClass().getName());
+	    }
+	}
+	blocks.putAll(overrides);
+	layouts.push(layoutName);
+	try {
+	    return flatten(factory.parse(layoutName).getCodes(), blocks,
+		    factory, layouts);
+	} finally {
+	    layouts.pop();
+	}
+    }
+}
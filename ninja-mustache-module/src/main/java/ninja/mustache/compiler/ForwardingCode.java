@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import java.io.Writer;
+import java.util.Set;
+
+import com.github.mustachejava.Code;
+
+/**
+ * Code forwarding every call to the code it wraps, the base of the codes
+ * adding behavior around the execution of another.
+ *
+ * @author kpacha
+ */
+public abstract class ForwardingCode implements Code {
+
+    protected final Code code;
+
+    protected ForwardingCode(Code code) {
+	this.code = code;
+    }
+
+    /**
+     * @return the wrapped code
+     */
+    public Code getCode() {
+	return code;
+    }
+
+    /**
+     * @param code
+     * @return the same wrapper around another code
+     */
+    protected abstract ForwardingCode wrap(Code code);
+
+    /**
+     * @param code
+     * @return the code wrapped by the given code and its wrappers, if any
+     */
+    public static Code unwrap(Code code) {
+	while (code instanceof ForwardingCode) {
+	    code = ((ForwardingCode) code).code;
+	}
+	return code;
+    }
+
+    @Override
+    public Writer execute(Writer writer, Object scope) {
+	return code.execute(writer, scope);
+    }
+
+    @Override
+    public Writer execute(Writer writer, Object[] scopes) {
+	return code.execute(writer, scopes);
+    }
+
+    @Override
+    public void identity(Writer writer) {
+	code.identity(writer);
+    }
+
+    @Override
+    public void append(String text) {
+	code.append(text);
+    }
+
+    @Override
+    public Code[] getCodes() {
+	return code.getCodes();
+    }
+
+    @Override
+    public void setCodes(Code[] codes) {
+	code.setCodes(codes);
+    }
+
+    @Override
+    public void init() {
+	code.init();
+    }
+
+    @Override
+    public Object clone() {
+	return wrap((Code) code.clone());
+    }
+
+    @Override
+    public Object clone(Set<Code> seen) {
+	return wrap((Code) code.clone(seen));
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import ninja.mustache.NinjaMustacheFactory;
+
+import com.github.mustachejava.Code;
+import com.github.mustachejava.Mustache;
+import com.github.mustachejava.codes.PartialCode;
+
+/**
+ * Replaces every partial by the codes of the template it includes, so they
+ * are rendered as part of the including template instead of through a
+ * separate partial invocation. Followed by a {@link CoalesceTextPass}, a
+ * partial without any tag ends up as constant text merged into its
+ * surroundings.
+ *
+ * Recursive partials are inlined down to the first repeated template, which
+ * is left as a regular partial. Partials extending a layout are left as
+ * regular partials too, they are compiled on their own with every pass, and
+ * so are the partials declaring the CACHE pragma, see
+ * {@link CachePartialsPass}.
+ *
+ * @author kpacha
+ */
+public class InlinePartialsPass implements CompilerPass {
+
+    @Override
+    public Code[] apply(Code[] codes, NinjaMustacheFactory factory) {
+	return inline(codes, factory, new LinkedList<String>());
+    }
+
+    private Code[] inline(Code[] codes, NinjaMustacheFactory factory,
+	    LinkedList<String> partials) {
+	List<Code> inlined = new ArrayList<Code>(codes.length);
+	for (Code code : codes) {
+	    if (code instanceof TemplatePartialCode) {
+		String partialName = ((TemplatePartialCode) code)
+			.getPartialName();
+		Mustache partial = partials.contains(partialName) ? null
+			: factory.parse(partialName);
+		if (partial == null || CachePartialsPass.isCached(partial)
+			|| extendsLayout(partial.getCodes())) {
+		    inlined.add(code);
+		    continue;
+		}
+		partials.push(partialName);
+		try {
+		    for (Code partialCode : inline(partial.getCodes(), factory,
+			    partials)) {
+			inlined.add(partialCode);
+		    }
+		} finally {
+		    partials.pop();
+		}
+	    } else {
+		if (!(code instanceof PartialCode) && code.getCodes() != null) {
+		    code.setCodes(inline(code.getCodes(), factory, partials));
+		}
+		inlined.add(code);
+	    }
+	}
+	return inlined.toArray(new Code[inlined.size()]);
+    }
+
+    private boolean extendsLayout(Code[] codes) {
+	for (Code code : codes) {
+	    if (code instanceof LayoutExtendCode) {
+		return true;
+	    }
+	    if (!(code instanceof PartialCode) && code.getCodes() != null
+		    && extendsLayout(code.getCodes())) {
+		return true;
+	    }
+	}
+	return false;
+    }
+}
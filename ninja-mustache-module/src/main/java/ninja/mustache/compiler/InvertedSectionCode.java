@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import com.github.mustachejava.DefaultMustacheFactory;
+import com.github.mustachejava.Mustache;
+import com.github.mustachejava.TemplateContext;
+import com.github.mustachejava.codes.NotIterableCode;
+
+/**
+ * A {@link NotIterableCode} exposing the variable it tests.
+ *
+ * @author kpacha
+ */
+public class InvertedSectionCode extends NotIterableCode {
+
+    public InvertedSectionCode(TemplateContext tc, DefaultMustacheFactory df,
+	    Mustache mustache, String variable) {
+	super(tc, df, mustache, variable);
+    }
+
+    public String getVariable() {
+	return name;
+    }
+
+    public TemplateContext getTemplateContext() {
+	return tc;
+    }
+}
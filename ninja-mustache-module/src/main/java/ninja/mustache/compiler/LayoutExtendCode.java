@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import com.github.mustachejava.Code;
+import com.github.mustachejava.DefaultMustacheFactory;
+import com.github.mustachejava.Mustache;
+import com.github.mustachejava.MustacheException;
+import com.github.mustachejava.TemplateContext;
+import com.github.mustachejava.codes.ExtendCode;
+
+/**
+ * An {@link ExtendCode} exposing the layout it extends and the blocks it
+ * overrides, so layout inheritance can be resolved at compile time.
+ *
+ * @author kpacha
+ */
+public class LayoutExtendCode extends ExtendCode {
+
+    public LayoutExtendCode(TemplateContext tc, DefaultMustacheFactory mf,
+	    Mustache codes, String name) throws MustacheException {
+	super(tc, mf, codes, name);
+    }
+
+    /**
+     * @return the name of the extended layout template
+     */
+    public String getLayoutName() {
+	return partialName();
+    }
+
+    /**
+     * @return the codes of the extend section, the overridden blocks among
+     *         them
+     */
+    public Code[] getBlocks() {
+	return mustache.getCodes();
+    }
+}
@@ -0,0 +1,313 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import ninja.mustache.NinjaMustacheFactory;
+
+import com.github.mustachejava.Code;
+import com.github.mustachejava.codes.PartialCode;
+
+/**
+ * Minifies the static HTML of a template: runs of whitespace are collapsed to
+ * a single space (or a single new line when the run contains one) and
+ * comments are stripped, along with the tags they contain. The contents of
+ * pre, textarea, script and style elements, attribute values and conditional
+ * comments are kept as they are.
+ *
+ * The static segments are read in document order, so an element or a tag
+ * spanning several segments is handled as a whole; a {@code <} ending a
+ * segment only opens a tag if the next segment starts with a tag name, as in
+ * {@code <{{tag}}>} but not in {@code a <{{n}} items}. A section may render
+ * any number of times, so it must end where it started, e.g. in the text or
+ * within the same pre element: a section opening or closing an element or a
+ * comment is left as it is, and so is the rest of the template. Best run
+ * after {@link CoalesceTextPass}, so the segments are as large as possible.
+ *
+ * @author kpacha
+ */
+public class MinifyHtmlPass implements CompilerPass {
+
+    private static final List<String> RAW_ELEMENTS = Arrays.asList("pre",
+	    "textarea", "script", "style");
+
+    @Override
+    public Code[] apply(Code[] codes, NinjaMustacheFactory factory) {
+	return minify(codes, new HtmlMinifier(), factory);
+    }
+
+    private Code[] minify(Code[] codes, HtmlMinifier minifier,
+	    NinjaMustacheFactory factory) {
+	List<Code> minified = new ArrayList<Code>(codes.length);
+	for (Code code : codes) {
+	    if (code instanceof TextCode) {
+		TextCode textCode = (TextCode) code;
+		String text = minifier.minify(textCode.getText());
+		if (text.length() > 0) {
+		    minified.add(new TextCode(textCode.getTemplateContext(),
+			    factory, text));
+		}
+		continue;
+	    }
+	    if (minifier.isStrippingComment()) {
+		continue;
+	    }
+	    if (!(code instanceof PartialCode) && code.getCodes() != null
+		    && !minifier.isVerbatim()) {
+		HtmlMinifier sectionMinifier = new HtmlMinifier(minifier);
+		Code[] section = minify(code.getCodes(), sectionMinifier,
+			factory);
+		if (sectionMinifier.getPosition().equals(
+			minifier.getPosition())) {
+		    code.setCodes(section);
+		} else {
+		    minifier.setVerbatim();
+		}
+	    }
+	    minified.add(code);
+	}
+	return minified.toArray(new Code[minified.size()]);
+    }
+
+    /**
+     * Minifier keeping its position in the document between segments
+     */
+    private static class HtmlMinifier {
+
+	private static final int TEXT = 0;
+	private static final int TAG = 1;
+	private static final int RAW = 2;
+	private static final int COMMENT = 3;
+	private static final int LESS_THAN = 4;
+
+	private int state = TEXT;
+	private final StringBuilder tagName = new StringBuilder();
+	private boolean tagNameDone;
+	private boolean closingTag;
+	private char quote;
+	private String rawElement;
+	private boolean keepComment;
+	private boolean verbatim;
+
+	HtmlMinifier() {
+	}
+
+	/**
+	 * A minifier starting where another one is
+	 */
+	HtmlMinifier(HtmlMinifier other) {
+	    state = other.state;
+	    tagName.append(other.tagName);
+	    tagNameDone = other.tagNameDone;
+	    closingTag = other.closingTag;
+	    quote = other.quote;
+	    rawElement = other.rawElement;
+	    keepComment = other.keepComment;
+	    verbatim = other.verbatim;
+	}
+
+	/**
+	 * @return where the minifier is in the document, comparable with
+	 *         equals
+	 */
+	String getPosition() {
+	    if (verbatim) {
+		return "verbatim";
+	    }
+	    switch (state) {
+	    case TAG:
+		return "tag:" + tagName + ":" + tagNameDone + ":" + closingTag
+			+ ":" + (int) quote;
+	    case RAW:
+		return "raw:" + rawElement;
+	    case COMMENT:
+		return "comment:" + keepComment;
+	    default:
+		return String.valueOf(state);
+	    }
+	}
+
+	boolean isStrippingComment() {
+	    return state == COMMENT && !keepComment && !verbatim;
+	}
+
+	boolean isVerbatim() {
+	    return verbatim;
+	}
+
+	/**
+	 * Leave the rest of the document as it is
+	 */
+	void setVerbatim() {
+	    verbatim = true;
+	}
+
+	String minify(String text) {
+	    if (verbatim) {
+		return text;
+	    }
+	    StringBuilder out = new StringBuilder(text.length());
+	    int i = 0;
+	    if (state == LESS_THAN && text.length() > 0) {
+		state = TEXT;
+		if (isTagStart(text.charAt(0))) {
+		    openTag(text.charAt(0) == '/');
+		    if (closingTag) {
+			out.append('/');
+			i++;
+		    }
+		}
+	    }
+	    while (i < text.length()) {
+		switch (state) {
+		case TEXT:
+		    i = text(text, i, out);
+		    break;
+		case TAG:
+		    i = tag(text, i, out);
+		    break;
+		case RAW:
+		    i = raw(text, i, out);
+		    break;
+		default:
+		    i = comment(text, i, out);
+		    break;
+		}
+	    }
+	    return out.toString();
+	}
+
+	private int text(String text, int i, StringBuilder out) {
+	    char c = text.charAt(i);
+	    if (Character.isWhitespace(c)) {
+		return whitespace(text, i, out);
+	    }
+	    if (c != '<' || i + 1 < text.length()
+		    && !isTagStart(text.charAt(i + 1))) {
+		out.append(c);
+		return i + 1;
+	    }
+	    if (i + 1 == text.length()) {
+		// decided by the first char of the next segment
+		state = LESS_THAN;
+		out.append(c);
+		return i + 1;
+	    }
+	    if (text.startsWith("<!--", i)) {
+		state = COMMENT;
+		keepComment = text.startsWith("<!--[", i);
+		if (keepComment) {
+		    out.append("<!--");
+		}
+		return i + 4;
+	    }
+	    openTag(text.startsWith("</", i));
+	    out.append(closingTag ? "</" : "<");
+	    return closingTag ? i + 2 : i + 1;
+	}
+
+	private int tag(String text, int i, StringBuilder out) {
+	    char c = text.charAt(i);
+	    if (quote != 0) {
+		out.append(c);
+		if (c == quote) {
+		    quote = 0;
+		}
+		return i + 1;
+	    }
+	    if (!tagNameDone) {
+		if (Character.isLetterOrDigit(c)) {
+		    tagName.append(c);
+		} else {
+		    tagNameDone = true;
+		}
+	    }
+	    if (Character.isWhitespace(c)) {
+		int end = i;
+		while (end < text.length()
+			&& Character.isWhitespace(text.charAt(end))) {
+		    end++;
+		}
+		out.append(' ');
+		return end;
+	    }
+	    if (c == '"' || c == '\'') {
+		quote = c;
+	    } else if (c == '>') {
+		String name = tagName.toString().toLowerCase(Locale.ENGLISH);
+		if (!closingTag && RAW_ELEMENTS.contains(name)) {
+		    state = RAW;
+		    rawElement = "</" + name;
+		} else {
+		    state = TEXT;
+		}
+	    }
+	    out.append(c);
+	    return i + 1;
+	}
+
+	private int raw(String text, int i, StringBuilder out) {
+	    int end = text.toLowerCase(Locale.ENGLISH).indexOf(rawElement, i);
+	    if (end < 0) {
+		out.append(text, i, text.length());
+		return text.length();
+	    }
+	    out.append(text, i, end + 2);
+	    openTag(true);
+	    return end + 2;
+	}
+
+	private void openTag(boolean closing) {
+	    state = TAG;
+	    tagName.setLength(0);
+	    tagNameDone = false;
+	    closingTag = closing;
+	}
+
+	private int comment(String text, int i, StringBuilder out) {
+	    int end = text.indexOf("-->", i);
+	    int next = end < 0 ? text.length() : end + 3;
+	    if (keepComment) {
+		out.append(text, i, next);
+	    }
+	    if (end >= 0) {
+		state = TEXT;
+	    }
+	    return next;
+	}
+
+	private boolean isTagStart(char c) {
+	    return Character.isLetter(c) || c == '/' || c == '!' || c == '?';
+	}
+
+	private int whitespace(String text, int i, StringBuilder out) {
+	    boolean newLine = false;
+	    int end = i;
+	    while (end < text.length()
+		    && Character.isWhitespace(text.charAt(end))) {
+		newLine |= text.charAt(end) == '\n';
+		end++;
+	    }
+	    out.append(newLine ? '\n' : ' ');
+	    return end;
+	}
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import ninja.mustache.RenderEvents;
+
+import com.github.mustachejava.Code;
+import com.github.mustachejava.DefaultMustacheFactory;
+import com.github.mustachejava.DefaultMustacheVisitor;
+import com.github.mustachejava.Mustache;
+import com.github.mustachejava.TemplateContext;
+
+/**
+ * Visitor producing codes the {@link CompilerPass}es can work on.
+ *
+ * Unlike the default visitor, static text is never appended to the preceding
+ * code but kept in its own {@link TextCode} segment, so no end of file marker
+ * is needed. Values, sections, inverted sections, partials and extend
+ * sections become {@link VariableCode}s, {@link SectionCode}s,
+ * {@link InvertedSectionCode}s, {@link TemplatePartialCode}s and
+ * {@link LayoutExtendCode}s.
+ *
+ * The resulting {@link TemplateMustache} also knows the variables and
+ * templates it refers to, and whether it declared itself cacheable with the
+ * CACHE pragma. The DONUT, PARALLEL and CHUNKED pragmas are kept in place as
+ * {@link PragmaCode}s.
+ *
+ * @author kpacha
+ */
+public class NinjaMustacheVisitor extends DefaultMustacheVisitor {
+
+    private static final String CACHE_PRAGMA = "CACHE";
+
+    private final Set<String> variables = new LinkedHashSet<String>();
+    private final Set<String> templates = new LinkedHashSet<String>();
+    private final RenderEvents renderEvents;
+    private String cacheDeclaration;
+
+    public NinjaMustacheVisitor(DefaultMustacheFactory df,
+	    RenderEvents renderEvents) {
+	super(df);
+	this.renderEvents = renderEvents;
+    }
+
+    @Override
+    public Mustache mustache(TemplateContext templateContext) {
+	return new TemplateMustache(templateContext, df,
+		list.toArray(new Code[list.size()]),
+		templateContext.file(), variables, templates, cacheDeclaration);
+    }
+
+    @Override
+    public void iterable(TemplateContext templateContext, String variable,
+	    Mustache mustache) {
+	addReferences(variable, mustache);
+	list.add(new SectionCode(templateContext, df, mustache, variable,
+		renderEvents));
+    }
+
+    @Override
+    public void notIterable(TemplateContext templateContext, String variable,
+	    Mustache mustache) {
+	addReferences(variable, mustache);
+	list.add(new InvertedSectionCode(templateContext, df, mustache,
+		variable));
+    }
+
+    @Override
+    public void name(TemplateContext templateContext, String variable,
+	    Mustache mustache) {
+	addReferences(null, mustache);
+	super.name(templateContext, variable, mustache);
+    }
+
+    @Override
+    public void value(TemplateContext templateContext, String variable,
+	    boolean encoded) {
+	variables.add(variable);
+	list.add(new VariableCode(templateContext, df, variable, encoded));
+    }
+
+    @Override
+    public void write(TemplateContext templateContext, String text) {
+	if (text.length() > 0) {
+	    list.add(new TextCode(templateContext, df, text));
+	}
+    }
+
+    @Override
+    public void partial(TemplateContext templateContext, String variable) {
+	TemplateContext partialContext = new TemplateContext("{{", "}}",
+		templateContext.file(), templateContext.line(),
+		templateContext.startOfLine());
+	TemplatePartialCode partialCode = new TemplatePartialCode(
+		partialContext, df, variable, renderEvents);
+	templates.add(partialCode.getPartialName());
+	list.add(partialCode);
+    }
+
+    @Override
+    public void pragma(TemplateContext templateContext, String pragma,
+	    String args) {
+	if (CACHE_PRAGMA.equalsIgnoreCase(pragma)) {
+	    cacheDeclaration = args == null ? "" : args.trim();
+	} else if (DonutCachePass.DONUT_PRAGMA.equalsIgnoreCase(pragma)
+		|| ParallelRenderPass.PARALLEL_PRAGMA.equalsIgnoreCase(pragma)
+		|| ChunkedSectionPass.CHUNKED_PRAGMA.equalsIgnoreCase(pragma)) {
+	    list.add(new PragmaCode(templateContext, df, pragma, args));
+	} else {
+	    super.pragma(templateContext, pragma, args);
+	}
+    }
+
+    @Override
+    public void eof(TemplateContext templateContext) {
+    }
+
+    @Override
+    public void extend(TemplateContext templateContext, String variable,
+	    Mustache mustache) {
+	LayoutExtendCode extendCode = new LayoutExtendCode(templateContext, df,
+		mustache, variable);
+	addReferences(null, mustache);
+	templates.add(extendCode.getLayoutName());
+	list.add(extendCode);
+    }
+
+    private void addReferences(String variable, Mustache section) {
+	if (variable != null) {
+	    variables.add(variable);
+	}
+	if (section instanceof TemplateMustache) {
+	    variables.addAll(((TemplateMustache) section).getVariables());
+	    templates.addAll(((TemplateMustache) section).getTemplates());
+	}
+    }
+}
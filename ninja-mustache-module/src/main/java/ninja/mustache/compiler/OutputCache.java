@@ -0,0 +1,222 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Rendered outputs kept by the cached partials and the donut cached pages.
+ *
+ * An output can be given a time to live. Once expired, it can still be
+ * served for a while as stale: the first request finding it stale renders it
+ * again, with its own values, while the concurrent requests keep getting the
+ * stale output, so the requests of a hot page never render it all at once
+ * when its entry expires. Nothing of the request is kept for later.
+ *
+ * @author kpacha
+ */
+public class OutputCache {
+
+    private final Cache<List<Object>, Entry> entries;
+    private final long timeToLive;
+    private final long staleTime;
+    private final Set<List<Object>> refreshing = Collections
+	    .newSetFromMap(new ConcurrentHashMap<List<Object>, Boolean>());
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong refreshFailures = new AtomicLong();
+
+    /**
+     * @param maximumSize
+     *            the maximum number of rendered outputs to keep
+     */
+    public OutputCache(long maximumSize) {
+	this(maximumSize, 0, 0);
+    }
+
+    /**
+     * @param maximumSize
+     *            the maximum number of rendered outputs to keep
+     * @param timeToLive
+     *            the time an output is fresh, in milliseconds, 0 to keep it
+     *            until evicted
+     * @param staleTime
+     *            the time an expired output is still served while refreshed,
+     *            in milliseconds
+     */
+    public OutputCache(long maximumSize, long timeToLive, long staleTime) {
+	this.timeToLive = TimeUnit.MILLISECONDS.toNanos(timeToLive);
+	this.staleTime = TimeUnit.MILLISECONDS.toNanos(staleTime);
+	CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder()
+		.maximumSize(maximumSize);
+	if (timeToLive > 0) {
+	    builder.expireAfterWrite(this.timeToLive + this.staleTime,
+		    TimeUnit.NANOSECONDS);
+	}
+	this.entries = builder.build();
+    }
+
+    /**
+     * Look up an output. A stale output is refreshed by the calling thread
+     * unless another one is already refreshing it, in which case it is
+     * returned as is
+     *
+     * @param key
+     * @param renderer
+     *            the rendering of the output with the values of the calling
+     *            thread, keeping the new output in this cache if it can be
+     * @return the output or null if it must be rendered
+     */
+    public String get(List<Object> key, Callable<String> renderer) {
+	Entry entry = entries.getIfPresent(key);
+	if (entry == null) {
+	    misses.incrementAndGet();
+	    return null;
+	}
+	if (timeToLive == 0) {
+	    hits.incrementAndGet();
+	    return entry.output;
+	}
+	long age = System.nanoTime() - entry.created;
+	if (age < timeToLive) {
+	    hits.incrementAndGet();
+	    return entry.output;
+	}
+	if (age >= timeToLive + staleTime) {
+	    misses.incrementAndGet();
+	    return null;
+	}
+	if (!refreshing.add(key)) {
+	    staleHits.incrementAndGet();
+	    return entry.output;
+	}
+	try {
+	    String output = renderer.call();
+	    refreshes.incrementAndGet();
+	    return output;
+	} catch (Exception e) {
+	    // the stale output is served until it is too old
+	    refreshFailures.incrementAndGet();
+	    staleHits.incrementAndGet();
+	    return entry.output;
+	} finally {
+	    refreshing.remove(key);
+	}
+    }
+
+    /**
+     * @param key
+     * @param output
+     *            the output just rendered
+     */
+    public void put(List<Object> key, String output) {
+	entries.put(key, new Entry(output));
+    }
+
+    /**
+     * @param value
+     *            a value read by a cached output
+     * @return the value to key the output by: its cache key if it is
+     *         {@link CacheKeyed}, the value itself otherwise
+     */
+    public static Object toKey(Object value) {
+	return value instanceof CacheKeyed ? ((CacheKeyed) value).getCacheKey()
+		: value;
+    }
+
+    public void invalidate(List<Object> key) {
+	entries.invalidate(key);
+    }
+
+    /**
+     * @return the keys of the kept outputs
+     */
+    Set<List<Object>> keys() {
+	return Collections.unmodifiableSet(entries.asMap().keySet());
+    }
+
+    /**
+     * @return the number of kept outputs
+     */
+    public long getSize() {
+	return entries.size();
+    }
+
+    /**
+     * @return the number of fresh outputs served
+     */
+    public long getHits() {
+	return hits.get();
+    }
+
+    /**
+     * @return the number of stale outputs served while refreshed by another
+     *         request, or because their refresh failed
+     */
+    public long getStaleHits() {
+	return staleHits.get();
+    }
+
+    /**
+     * @return the number of outputs rendered by the requests, missing or too
+     *         old
+     */
+    public long getMisses() {
+	return misses.get();
+    }
+
+    /**
+     * @return the number of stale outputs refreshed
+     */
+    public long getRefreshes() {
+	return refreshes.get();
+    }
+
+    /**
+     * @return the number of refreshes which failed
+     */
+    public long getRefreshFailures() {
+	return refreshFailures.get();
+    }
+
+    @Override
+    public String toString() {
+	return entries.size() + " outputs, " + hits + " hits, " + staleHits
+		+ " stale hits, " + misses + " misses, " + refreshes
+		+ " refreshes, " + refreshFailures + " failed refreshes";
+    }
+
+    private static class Entry {
+	private final String output;
+	private final long created = System.nanoTime();
+
+	Entry(String output) {
+	    this.output = output;
+	}
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import ninja.mustache.RenderDeadline;
+
+import com.github.mustachejava.Code;
+import com.github.mustachejava.DefaultMustacheFactory;
+import com.github.mustachejava.MustacheException;
+import com.github.mustachejava.TemplateContext;
+import com.github.mustachejava.codes.DefaultCode;
+import com.github.mustachejava.codes.DefaultMustache;
+import com.github.mustachejava.codes.PartialCode;
+import com.google.common.base.Throwables;
+
+/**
+ * Codes rendered concurrently: every section or partial is rendered on the
+ * executor into its own buffer, while the static text and the values are
+ * rendered by the calling thread. The buffers are then written in document
+ * order, so the page takes about as long as its slowest section.
+ *
+ * The sections share the scopes, the {@link RenderDeadline}, the trace and
+ * the profiler frame of the page;
+ * the scopes must therefore be safe to read from several threads. The page
+ * waits for its sections until its deadline at most. A parallel template
+ * rendered by a section, as a parallel partial, is rendered sequentially by
+ * the worker, which never waits for the executor it runs on.
+ *
+ * @author kpacha
+ */
+public class ParallelCode extends DefaultCode {
+
+    private static final ThreadLocal<Boolean> WORKER = new ThreadLocal<Boolean>();
+
+    private final ExecutorService executor;
+
+    public ParallelCode(TemplateContext tc, DefaultMustacheFactory df,
+	    Code[] codes, ExecutorService executor) {
+	super(tc, df, new DefaultMustache(tc, df, codes, tc.file()), null, null);
+	this.executor = executor;
+    }
+
+    @Override
+    public Writer execute(Writer writer, final Object[] scopes) {
+	Code[] codes = getCodes();
+	List<Future<String>> parts = new ArrayList<Future<String>>(
+		codes.length);
+	int sections = 0;
+	for (Code code : codes) {
+	    if (code instanceof PartialCode || code.getCodes() != null) {
+		sections++;
+	    }
+	}
+	if (sections < 2 || WORKER.get() != null) {
+	    return super.execute(writer, scopes);
+	}
+	final RenderState state = RenderState.capture();
+	RenderDeadline deadline = state.getDeadline();
+	try {
+	    for (final Code code : codes) {
+		if (code instanceof PartialCode || code.getCodes() != null) {
+		    parts.add(executor.submit(new Callable<String>() {
+			@Override
+			public String call() {
+			    RenderState previous = state.apply();
+			    Boolean worker = WORKER.get();
+			    WORKER.set(Boolean.TRUE);
+			    try {
+				return render(code, scopes);
+			    } finally {
+				if (worker == null) {
+				    WORKER.remove();
+				}
+				previous.apply();
+			    }
+			}
+		    }));
+		} else {
+		    parts.add(null);
+		}
+	    }
+	    for (int i = 0; i < codes.length; i++) {
+		if (parts.get(i) == null) {
+		    writer = codes[i].execute(writer, scopes);
+		} else {
+		    writer.write(await(parts.get(i), deadline));
+		}
+	    }
+	} catch (IOException e) {
+	    throw new MustacheException(e);
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new MustacheException("Interrupted while rendering", e);
+	} catch (ExecutionException e) {
+	    Throwables.propagateIfPossible(e.getCause());
+	    throw new MustacheException(e.getCause());
+	} catch (TimeoutException e) {
+	    throw new MustacheException("Section missed the render deadline", e);
+	} finally {
+	    for (Future<String> part : parts) {
+		if (part != null) {
+		    part.cancel(true);
+		}
+	    }
+	}
+	return appendText(writer);
+    }
+
+    /**
+     * Wait for a section, until the deadline of the page if any
+     */
+    private static String await(Future<String> part, RenderDeadline deadline)
+	    throws InterruptedException, ExecutionException, TimeoutException {
+	if (deadline == null) {
+	    return part.get();
+	}
+	return part.get(deadline.getRemaining(TimeUnit.NANOSECONDS),
+		TimeUnit.NANOSECONDS);
+    }
+
+    private String render(Code code, Object[] scopes) {
+	StringWriter writer = new StringWriter();
+	code.execute(writer, scopes);
+	return writer.toString();
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import ninja.mustache.NinjaMustacheFactory;
+
+import com.github.mustachejava.Code;
+
+/**
+ * Parallel rendering for the templates declaring the PARALLEL pragma.
+ *
+ * The sections and partials at the top level of a template starting with
+ * <code>{{%PARALLEL}}</code> are rendered concurrently on the given executor,
+ * each into its own buffer, and written in document order. See
+ * {@link ParallelCode}.
+ *
+ * @author kpacha
+ */
+public class ParallelRenderPass implements CompilerPass {
+
+    public static final String PARALLEL_PRAGMA = "PARALLEL";
+
+    private final ExecutorService executor;
+
+    /**
+     * @param executor
+     *            the executor rendering the sections, better bounded and
+     *            running the tasks it rejects in the caller thread
+     */
+    public ParallelRenderPass(ExecutorService executor) {
+	this.executor = executor;
+    }
+
+    @Override
+    public Code[] apply(Code[] codes, NinjaMustacheFactory factory) {
+	PragmaCode declaration = null;
+	List<Code> siblings = new ArrayList<Code>(codes.length);
+	for (Code code : codes) {
+	    if (code instanceof PragmaCode
+		    && PARALLEL_PRAGMA.equalsIgnoreCase(((PragmaCode) code)
+			    .getPragma())) {
+		declaration = (PragmaCode) code;
+	    } else {
+		siblings.add(code);
+	    }
+	}
+	if (declaration == null) {
+	    return codes;
+	}
+	return new Code[] { new ParallelCode(declaration.getTemplateContext(),
+		factory, siblings.toArray(new Code[siblings.size()]), executor) };
+    }
+}
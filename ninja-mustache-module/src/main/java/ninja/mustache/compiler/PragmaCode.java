@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import java.io.Writer;
+
+import com.github.mustachejava.DefaultMustacheFactory;
+import com.github.mustachejava.TemplateContext;
+import com.github.mustachejava.codes.DefaultCode;
+
+/**
+ * Marks the position of a pragma handled by a {@link CompilerPass}. Renders
+ * nothing.
+ *
+ * @author kpacha
+ */
+public class PragmaCode extends DefaultCode {
+
+    private final String pragma;
+    private final String arguments;
+
+    public PragmaCode(TemplateContext tc, DefaultMustacheFactory df,
+	    String pragma, String arguments) {
+	super(tc, df, null, null, null);
+	this.pragma = pragma;
+	this.arguments = arguments == null ? "" : arguments.trim();
+    }
+
+    public String getPragma() {
+	return pragma;
+    }
+
+    public String getArguments() {
+	return arguments;
+    }
+
+    public TemplateContext getTemplateContext() {
+	return tc;
+    }
+
+    @Override
+    public Writer execute(Writer writer, Object[] scopes) {
+	return writer;
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import ninja.mustache.NinjaMustacheFactory;
+import ninja.mustache.RenderProfiler;
+
+import com.github.mustachejava.Code;
+import com.github.mustachejava.TemplateContext;
+import com.github.mustachejava.codes.PartialCode;
+
+/**
+ * Wraps every value, section and partial in a {@link ProfiledCode}, so the
+ * {@link RenderProfiler} can time them. Frames are named after the tag of the
+ * code, and placed below the frame of the template the code comes from, which
+ * keeps the time spent in inlined partials and flattened layouts apart.
+ *
+ * Must run after every other pass.
+ *
+ * @author kpacha
+ */
+public class ProfilePass implements CompilerPass {
+
+    @Override
+    public Code[] apply(Code[] codes, NinjaMustacheFactory factory) {
+	Code[] profiled = new Code[codes.length];
+	for (int i = 0; i < codes.length; i++) {
+	    Code code = codes[i];
+	    if (!(ForwardingCode.unwrap(code) instanceof PartialCode)
+		    && code.getCodes() != null) {
+		code.setCodes(apply(code.getCodes(), factory));
+	    }
+	    profiled[i] = profile(code);
+	}
+	return profiled;
+    }
+
+    private Code profile(Code code) {
+	String label = label(code);
+	return label == null ? code : new ProfiledCode(code, template(code),
+		label);
+    }
+
+    /**
+     * @param code
+     * @return the tag of a value, section or partial, or of the pragma
+     *         wrapping a page, null for any other code
+     */
+    static String label(Code code) {
+	code = ForwardingCode.unwrap(code);
+	if (code instanceof VariableCode) {
+	    VariableCode value = (VariableCode) code;
+	    return value.isEncoded() ? "{{" + value.getVariable() + "}}"
+		    : "{{{" + value.getVariable() + "}}}";
+	}
+	if (code instanceof SectionCode) {
+	    return "{{#" + ((SectionCode) code).getVariable() + "}}";
+	}
+	if (code instanceof InvertedSectionCode) {
+	    return "{{^" + ((InvertedSectionCode) code).getVariable() + "}}";
+	}
+	if (code instanceof TemplatePartialCode) {
+	    return "{{>" + ((TemplatePartialCode) code).getPartialName() + "}}";
+	}
+	if (code instanceof CachedPartialCode) {
+	    return "{{>" + ((CachedPartialCode) code).getPartialName()
+		    + "}} (cached)";
+	}
+	if (code instanceof ParallelCode) {
+	    return "{{%" + ParallelRenderPass.PARALLEL_PRAGMA + "}}";
+	}
+	if (code instanceof DonutCode) {
+	    return "{{%" + DonutCachePass.DONUT_PRAGMA + "}}";
+	}
+	return null;
+    }
+
+    /**
+     * @param code
+     * @return the template the code comes from, or null if unknown
+     */
+    static String template(Code code) {
+	code = ForwardingCode.unwrap(code);
+	if (code instanceof VariableCode) {
+	    return template(((VariableCode) code).getTemplateContext());
+	}
+	if (code instanceof SectionCode) {
+	    return template(((SectionCode) code).getTemplateContext());
+	}
+	if (code instanceof InvertedSectionCode) {
+	    return template(((InvertedSectionCode) code).getTemplateContext());
+	}
+	if (code instanceof TemplatePartialCode) {
+	    return template(((TemplatePartialCode) code).getTemplateContext());
+	}
+	return null;
+    }
+
+    private static String template(TemplateContext tc) {
+	return tc == null ? null : tc.file();
+    }
+}
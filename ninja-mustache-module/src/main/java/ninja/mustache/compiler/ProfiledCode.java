@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import java.io.Writer;
+
+import ninja.mustache.RenderProfiler;
+import ninja.mustache.RenderProfiler.Frame;
+
+import com.github.mustachejava.Code;
+
+/**
+ * Code timing the code it wraps in a frame of the {@link RenderProfiler} when
+ * the rendering is profiled.
+ *
+ * @author kpacha
+ */
+public class ProfiledCode extends ForwardingCode {
+
+    private final String template;
+    private final String name;
+
+    /**
+     * @param code
+     * @param template
+     *            the template the code comes from, or null
+     * @param name
+     *            the name of the frame
+     */
+    public ProfiledCode(Code code, String template, String name) {
+	super(code);
+	this.template = template;
+	this.name = name;
+    }
+
+    @Override
+    protected ForwardingCode wrap(Code code) {
+	return new ProfiledCode(code, template, name);
+    }
+
+    @Override
+    public Writer execute(Writer writer, Object scope) {
+	Frame frame = RenderProfiler.enter(template, name);
+	try {
+	    return code.execute(writer, scope);
+	} finally {
+	    RenderProfiler.exit(frame);
+	}
+    }
+
+    @Override
+    public Writer execute(Writer writer, Object[] scopes) {
+	Frame frame = RenderProfiler.enter(template, name);
+	try {
+	    return code.execute(writer, scopes);
+	} finally {
+	    RenderProfiler.exit(frame);
+	}
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import ninja.mustache.RenderDeadline;
+import ninja.mustache.RenderProfiler;
+import ninja.mustache.RenderProfiler.Frame;
+import ninja.mustache.RenderTrace;
+
+/**
+ * What a rendering keeps per thread: its {@link RenderDeadline}, its
+ * {@link RenderTrace} and its {@link RenderProfiler} frame. Captured by the
+ * thread rendering a page and set on the threads rendering parts of it.
+ *
+ * @author kpacha
+ */
+final class RenderState {
+
+    private final RenderDeadline deadline;
+    private final RenderTrace trace;
+    private final Frame frame;
+
+    private RenderState(RenderDeadline deadline, RenderTrace trace,
+	    Frame frame) {
+	this.deadline = deadline;
+	this.trace = trace;
+	this.frame = frame;
+    }
+
+    /**
+     * @return the state of the current thread
+     */
+    static RenderState capture() {
+	return new RenderState(RenderDeadline.current(), RenderTrace.current(),
+		RenderProfiler.current());
+    }
+
+    /**
+     * @return the deadline of the rendering, or null
+     */
+    RenderDeadline getDeadline() {
+	return deadline;
+    }
+
+    /**
+     * Set this state on the current thread
+     *
+     * @return the previous state of the thread, to be applied back afterwards
+     */
+    RenderState apply() {
+	return new RenderState(RenderDeadline.set(deadline),
+		RenderTrace.set(trace), RenderProfiler.set(frame));
+    }
+}
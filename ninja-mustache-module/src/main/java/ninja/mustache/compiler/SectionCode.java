@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import java.io.Writer;
+
+import ninja.mustache.RenderEvent.Type;
+import ninja.mustache.RenderEvents;
+import ninja.mustache.template.CountingWriter;
+
+import com.github.mustachejava.DefaultMustacheFactory;
+import com.github.mustachejava.Iteration;
+import com.github.mustachejava.Mustache;
+import com.github.mustachejava.TemplateContext;
+import com.github.mustachejava.codes.IterableCode;
+import com.google.common.base.Function;
+
+/**
+ * An {@link IterableCode} exposing the variable it iterates over and its
+ * section, so it can be replaced at compile time. The sections rendered by a
+ * function are reported as {@link Type#FUNCTION} events.
+ *
+ * @author kpacha
+ */
+public class SectionCode extends IterableCode {
+
+    private final RenderEvents renderEvents;
+
+    public SectionCode(TemplateContext tc, DefaultMustacheFactory df,
+	    Mustache mustache, String variable, RenderEvents renderEvents) {
+	super(tc, df, mustache, variable);
+	this.renderEvents = renderEvents;
+    }
+
+    public String getVariable() {
+	return name;
+    }
+
+    public TemplateContext getTemplateContext() {
+	return tc;
+    }
+
+    public Mustache getSection() {
+	return mustache;
+    }
+
+    public RenderEvents getRenderEvents() {
+	return renderEvents;
+    }
+
+    /**
+     * Declared with an array, as in {@link Iteration}. {@link IterableCode}
+     * implements it with a variable arity, and javac reports that mismatch on
+     * every subclass. Only the override of IterableCode is left to suppress.
+     */
+    @Override
+    @SuppressWarnings("overrides")
+    public Writer next(Writer writer, Object next, Object[] scopes) {
+	return super.next(writer, next, scopes);
+    }
+
+    /**
+     * The function stays raw, as declared by {@link IterableCode}: a
+     * parameterized override would clash with it.
+     *
+     * The section is counted only when rendered synchronously, so the counter
+     * is always left out of the rest of the rendering: with an executor
+     * service, the writer returned may still be written to once the event is
+     * fired.
+     */
+    @Override
+    @SuppressWarnings("rawtypes")
+    protected Writer handleFunction(Writer writer, Function function,
+	    Object[] scopes) {
+	if (!renderEvents.isEnabled() || df.getExecutorService() != null) {
+	    return super.handleFunction(writer, function, scopes);
+	}
+	long start = System.nanoTime();
+	CountingWriter counter = new CountingWriter(writer);
+	super.handleFunction(counter, function, scopes);
+	renderEvents.fire(Type.FUNCTION, name, System.nanoTime() - start,
+		counter.getCount(), null);
+	return writer;
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import com.github.mustachejava.Code;
+import com.github.mustachejava.DefaultMustacheFactory;
+import com.github.mustachejava.TemplateContext;
+import com.github.mustachejava.codes.DefaultMustache;
+
+/**
+ * A template, or a section of a template, as built by
+ * {@link NinjaMustacheVisitor}.
+ *
+ * @author kpacha
+ */
+public class TemplateMustache extends DefaultMustache {
+
+    private final Set<String> variables;
+    private final Set<String> templates;
+    private final String cacheDeclaration;
+
+    public TemplateMustache(TemplateContext tc, DefaultMustacheFactory df,
+	    Code[] codes, String name, Set<String> variables,
+	    Set<String> templates, String cacheDeclaration) {
+	super(tc, df, codes, name);
+	this.variables = Collections
+		.unmodifiableSet(new LinkedHashSet<String>(variables));
+	this.templates = new LinkedHashSet<String>(templates);
+	this.cacheDeclaration = cacheDeclaration;
+    }
+
+    /**
+     * @return the variables referenced by the tags of the template, as
+     *         written in the template
+     */
+    public Set<String> getVariables() {
+	return variables;
+    }
+
+    /**
+     * @return the names of the partials and layouts the template includes,
+     *         directly or through the templates merged into it
+     */
+    public Set<String> getTemplates() {
+	return Collections.unmodifiableSet(templates);
+    }
+
+    /**
+     * Record templates merged into this one by the compiler passes, such as
+     * inlined partials and flattened layouts. Only called before the template
+     * is initialized
+     *
+     * @param names
+     */
+    public void addTemplates(Collection<String> names) {
+	templates.addAll(names);
+    }
+
+    /**
+     * @return the arguments of the CACHE pragma of the template, or null if it
+     *         does not declare one
+     */
+    public String getCacheDeclaration() {
+	return cacheDeclaration;
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import java.io.Writer;
+
+import ninja.mustache.RenderEvent.Type;
+import ninja.mustache.RenderEvents;
+import ninja.mustache.template.CountingWriter;
+
+import com.github.mustachejava.DefaultMustacheFactory;
+import com.github.mustachejava.TemplateContext;
+import com.github.mustachejava.codes.PartialCode;
+
+/**
+ * A {@link PartialCode} exposing the name of the template it includes, so it
+ * can be inlined at compile time. Its renderings are reported as
+ * {@link Type#PARTIAL} events.
+ *
+ * @author kpacha
+ */
+public class TemplatePartialCode extends PartialCode {
+
+    private final RenderEvents renderEvents;
+
+    public TemplatePartialCode(TemplateContext tc, DefaultMustacheFactory df,
+	    String variable, RenderEvents renderEvents) {
+	super(tc, df, variable);
+	this.renderEvents = renderEvents;
+    }
+
+    public String getVariable() {
+	return name;
+    }
+
+    public TemplateContext getTemplateContext() {
+	return tc;
+    }
+
+    /**
+     * @return the name of the included template
+     */
+    public String getPartialName() {
+	return partialName();
+    }
+
+    @Override
+    public Writer execute(Writer writer, Object[] scopes) {
+	if (!renderEvents.isEnabled()) {
+	    return super.execute(writer, scopes);
+	}
+	long start = System.nanoTime();
+	CountingWriter counter = new CountingWriter(writer);
+	Writer written = partial.execute(counter, scopes);
+	renderEvents.fire(Type.PARTIAL, partialName(), System.nanoTime()
+		- start, counter.getCount(), null);
+	return appendText(written == counter ? writer : written);
+    }
+}
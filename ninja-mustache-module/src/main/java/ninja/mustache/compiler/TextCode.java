@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import com.github.mustachejava.DefaultMustacheFactory;
+import com.github.mustachejava.MustacheException;
+import com.github.mustachejava.TemplateContext;
+import com.github.mustachejava.codes.WriteCode;
+
+/**
+ * A static segment of a template.
+ *
+ * @author kpacha
+ */
+public class TextCode extends WriteCode {
+
+    public TextCode(TemplateContext tc, DefaultMustacheFactory df, String text) {
+	super(tc, df, text);
+    }
+
+    public String getText() {
+	return appended;
+    }
+
+    public TemplateContext getTemplateContext() {
+	return tc;
+    }
+
+    @Override
+    public Writer execute(Writer writer, Object[] scopes) {
+	try {
+	    writer.write(appended);
+	} catch (IOException e) {
+	    throw new MustacheException(e);
+	}
+	return writer;
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import ninja.mustache.NinjaMustacheFactory;
+import ninja.mustache.RenderTrace;
+
+import com.github.mustachejava.Code;
+import com.github.mustachejava.codes.PartialCode;
+
+/**
+ * Wraps the sections and partials at the top level of a template in
+ * {@link TracedCode}s, so a {@link RenderTrace} can tell which of them the
+ * rendering time went into. Only the top level is traced, to keep the cost
+ * of a traced rendering to a couple of clock reads per section.
+ *
+ * Must run before the {@link ParallelRenderPass} and the
+ * {@link DonutCachePass}, which wrap the whole page. The sections of a
+ * parallel page record their time from the render threads, into the trace
+ * of the page.
+ *
+ * @author kpacha
+ */
+public class TraceSectionsPass implements CompilerPass {
+
+    @Override
+    public Code[] apply(Code[] codes, NinjaMustacheFactory factory) {
+	Code[] traced = new Code[codes.length];
+	for (int i = 0; i < codes.length; i++) {
+	    Code code = codes[i];
+	    String label = ProfilePass.label(code);
+	    boolean section = ForwardingCode.unwrap(code) instanceof PartialCode
+		    || code.getCodes() != null;
+	    traced[i] = label != null && section ? new TracedCode(code, label)
+		    : code;
+	}
+	return traced;
+    }
+}
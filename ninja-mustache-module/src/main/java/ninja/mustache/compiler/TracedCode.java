@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import java.io.Writer;
+
+import ninja.mustache.RenderTrace;
+
+import com.github.mustachejava.Code;
+
+/**
+ * Code recording the time of the code it wraps into the {@link RenderTrace}
+ * of the rendering, if it is traced.
+ *
+ * @author kpacha
+ */
+public class TracedCode extends ForwardingCode {
+
+    private final String name;
+
+    /**
+     * @param code
+     * @param name
+     *            the name of the section in the trace
+     */
+    public TracedCode(Code code, String name) {
+	super(code);
+	this.name = name;
+    }
+
+    @Override
+    protected ForwardingCode wrap(Code code) {
+	return new TracedCode(code, name);
+    }
+
+    @Override
+    public Writer execute(Writer writer, Object scope) {
+	RenderTrace trace = RenderTrace.current();
+	if (trace == null) {
+	    return code.execute(writer, scope);
+	}
+	long start = System.nanoTime();
+	try {
+	    return code.execute(writer, scope);
+	} finally {
+	    trace.section(name, System.nanoTime() - start);
+	}
+    }
+
+    @Override
+    public Writer execute(Writer writer, Object[] scopes) {
+	RenderTrace trace = RenderTrace.current();
+	if (trace == null) {
+	    return code.execute(writer, scopes);
+	}
+	long start = System.nanoTime();
+	try {
+	    return code.execute(writer, scopes);
+	} finally {
+	    trace.section(name, System.nanoTime() - start);
+	}
+    }
+}
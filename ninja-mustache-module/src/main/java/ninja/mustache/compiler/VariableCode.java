@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.compiler;
+
+import com.github.mustachejava.DefaultMustacheFactory;
+import com.github.mustachejava.TemplateContext;
+import com.github.mustachejava.codes.ValueCode;
+
+/**
+ * A {@link ValueCode} exposing the variable it renders.
+ *
+ * @author kpacha
+ */
+public class VariableCode extends ValueCode {
+
+    private final boolean encoded;
+
+    public VariableCode(TemplateContext tc, DefaultMustacheFactory df,
+	    String variable, boolean encoded) {
+	super(tc, df, variable, encoded);
+	this.encoded = encoded;
+    }
+
+    public String getVariable() {
+	return name;
+    }
+
+    public TemplateContext getTemplateContext() {
+	return tc;
+    }
+
+    /**
+     * @return true if the value is escaped, false for a triple mustache
+     */
+    public boolean isEncoded() {
+	return encoded;
+    }
+}
@@ -0,0 +1,225 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.site;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON reader for the model files: objects are read as
+ * {@link LinkedHashMap}s, arrays as {@link ArrayList}s, numbers as
+ * {@link Long}s or {@link Double}s.
+ *
+ * @author kpacha
+ */
+class JsonReader {
+
+    private final String json;
+    private int position;
+
+    private JsonReader(String json) {
+	this.json = json;
+    }
+
+    /**
+     * @param json
+     * @return the value of the document
+     * @throws IllegalArgumentException
+     *             if the document is not valid JSON
+     */
+    static Object read(String json) {
+	JsonReader reader = new JsonReader(json);
+	Object value = reader.readValue();
+	reader.skipWhitespace();
+	if (reader.position < json.length()) {
+	    throw reader.error("Unexpected content");
+	}
+	return value;
+    }
+
+    private Object readValue() {
+	skipWhitespace();
+	if (position >= json.length()) {
+	    throw error("Unexpected end of document");
+	}
+	char c = json.charAt(position);
+	switch (c) {
+	case '{':
+	    return readObject();
+	case '[':
+	    return readArray();
+	case '"':
+	    return readString();
+	case 't':
+	    return readLiteral("true", Boolean.TRUE);
+	case 'f':
+	    return readLiteral("false", Boolean.FALSE);
+	case 'n':
+	    return readLiteral("null", null);
+	default:
+	    if (c == '-' || (c >= '0' && c <= '9')) {
+		return readNumber();
+	    }
+	    throw error("Unexpected character '" + c + "'");
+	}
+    }
+
+    private Map<String, Object> readObject() {
+	Map<String, Object> object = new LinkedHashMap<String, Object>();
+	position++;
+	skipWhitespace();
+	if (consume('}')) {
+	    return object;
+	}
+	do {
+	    skipWhitespace();
+	    if (position >= json.length() || json.charAt(position) != '"') {
+		throw error("Expected a member name");
+	    }
+	    String name = readString();
+	    skipWhitespace();
+	    expect(':');
+	    object.put(name, readValue());
+	    skipWhitespace();
+	} while (consume(','));
+	expect('}');
+	return object;
+    }
+
+    private List<Object> readArray() {
+	List<Object> array = new ArrayList<Object>();
+	position++;
+	skipWhitespace();
+	if (consume(']')) {
+	    return array;
+	}
+	do {
+	    array.add(readValue());
+	    skipWhitespace();
+	} while (consume(','));
+	expect(']');
+	return array;
+    }
+
+    private String readString() {
+	StringBuilder builder = new StringBuilder();
+	position++;
+	while (position < json.length()) {
+	    char c = json.charAt(position++);
+	    if (c == '"') {
+		return builder.toString();
+	    }
+	    if (c != '\\') {
+		builder.append(c);
+		continue;
+	    }
+	    if (position >= json.length()) {
+		break;
+	    }
+	    char escaped = json.charAt(position++);
+	    switch (escaped) {
+	    case 'b':
+		builder.append('\b');
+		break;
+	    case 'f':
+		builder.append('\f');
+		break;
+	    case 'n':
+		builder.append('\n');
+		break;
+	    case 'r':
+		builder.append('\r');
+		break;
+	    case 't':
+		builder.append('\t');
+		break;
+	    case 'u':
+		if (position + 4 > json.length()) {
+		    throw error("Invalid unicode escape");
+		}
+		try {
+		    builder.append((char) Integer.parseInt(
+			    json.substring(position, position + 4), 16));
+		} catch (NumberFormatException e) {
+		    throw error("Invalid unicode escape");
+		}
+		position += 4;
+		break;
+	    default:
+		builder.append(escaped);
+	    }
+	}
+	throw error("Unterminated string");
+    }
+
+    private Object readLiteral(String literal, Object value) {
+	if (!json.startsWith(literal, position)) {
+	    throw error("Unexpected token");
+	}
+	position += literal.length();
+	return value;
+    }
+
+    private Number readNumber() {
+	int start = position;
+	boolean decimal = false;
+	while (position < json.length()) {
+	    char c = json.charAt(position);
+	    if (c == '.' || c == 'e' || c == 'E') {
+		decimal = true;
+	    } else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) {
+		break;
+	    }
+	    position++;
+	}
+	String number = json.substring(start, position);
+	try {
+	    return decimal ? (Number) Double.valueOf(number) : (Number) Long
+		    .valueOf(number);
+	} catch (NumberFormatException e) {
+	    throw error("Invalid number " + number);
+	}
+    }
+
+    private void skipWhitespace() {
+	while (position < json.length()
+		&& Character.isWhitespace(json.charAt(position))) {
+	    position++;
+	}
+    }
+
+    private boolean consume(char c) {
+	if (position < json.length() && json.charAt(position) == c) {
+	    position++;
+	    return true;
+	}
+	return false;
+    }
+
+    private void expect(char c) {
+	if (!consume(c)) {
+	    throw error("Expected '" + c + "'");
+	}
+    }
+
+    private IllegalArgumentException error(String message) {
+	return new IllegalArgumentException(message + " at position "
+		+ position);
+    }
+}
@@ -0,0 +1,580 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.site;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import ninja.mustache.NinjaMustacheFactory;
+import ninja.mustache.compiler.CoalesceTextPass;
+import ninja.mustache.compiler.FlattenInheritancePass;
+import ninja.mustache.compiler.InlinePartialsPass;
+import ninja.mustache.compiler.TemplateMustache;
+import ninja.mustache.utils.MustacheConstant;
+
+import com.github.mustachejava.Mustache;
+import com.github.mustachejava.TemplateFunction;
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CharStreams;
+import com.google.common.io.Closeables;
+
+/**
+ * Renders static pages from the templates of a views directory, offline.
+ *
+ * Every model file below the models directory, a JSON object or a properties
+ * file, is a page: <code>models/Application/index.json</code> is rendered
+ * with <code>views/Application/index.mustache</code> into
+ * <code>Application/index.html</code>. Pages are rendered once per language
+ * with a <code>messages_&lt;language&gt;.properties</code> bundle, in a
+ * directory named after the language, and translated with
+ * <code>{{#i18n}}key{{/i18n}}</code> as when served by Ninja; the
+ * <code>messages.properties</code> bundle holds the default messages. Without
+ * any language bundle, pages are rendered once with the default messages.
+ *
+ * Pages are rendered in parallel. A page is only rendered again when its
+ * model, its messages or one of the templates it uses changed since the last
+ * run, as recorded in the output directory.
+ *
+ * @author kpacha
+ */
+public class StaticSiteGenerator {
+
+    private static final Pattern BUNDLE = Pattern
+	    .compile("messages(?:_(.+))?\\.properties");
+    private static final String MANIFEST = ".fingerprints";
+    private static final String OUTPUT_EXTENSION = ".html";
+
+    private final File messagesDirectory;
+    private final File modelsDirectory;
+    private final File outputDirectory;
+    private final int parallelism;
+    private final NinjaMustacheFactory factory;
+    private final ConcurrentMap<String, Set<String>> dependencies = new ConcurrentHashMap<String, Set<String>>();
+
+    /**
+     * @param viewsDirectory
+     *            the directory of the templates, named as the views are named
+     *            in a Ninja application
+     * @param messagesDirectory
+     *            the directory of the messages bundles
+     * @param modelsDirectory
+     *            the directory of the model files
+     * @param outputDirectory
+     * @param parallelism
+     *            the number of pages rendered at the same time
+     */
+    public StaticSiteGenerator(File viewsDirectory, File messagesDirectory,
+	    File modelsDirectory, File outputDirectory, int parallelism) {
+	this.messagesDirectory = messagesDirectory;
+	this.modelsDirectory = modelsDirectory;
+	this.outputDirectory = outputDirectory;
+	this.parallelism = Math.max(1, parallelism);
+	this.factory = new NinjaMustacheFactory(viewsDirectory
+		.getAbsoluteFile().getParentFile());
+	factory.addCompilerPass(new FlattenInheritancePass());
+	factory.addCompilerPass(new InlinePartialsPass());
+	factory.addCompilerPass(new CoalesceTextPass());
+    }
+
+    /**
+     * Usage: StaticSiteGenerator &lt;views directory&gt; &lt;messages
+     * directory&gt; &lt;models directory&gt; &lt;output directory&gt;
+     * [threads]
+     *
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+	if (args.length < 4 || args.length > 5) {
+	    System.err.println("Usage: " + StaticSiteGenerator.class.getName()
+		    + " <views directory> <messages directory>"
+		    + " <models directory> <output directory> [threads]");
+	    System.exit(2);
+	}
+	int parallelism = args.length == 5 ? Integer.parseInt(args[4])
+		: Runtime.getRuntime().availableProcessors();
+	Report report = new StaticSiteGenerator(new File(args[0]), new File(
+		args[1]), new File(args[2]), new File(args[3]), parallelism)
+		.generate();
+	System.out.print(report);
+	for (Page page : report.getPages()) {
+	    if (page.getFailure() != null) {
+		System.err.println(page.getOutputName() + ":");
+		page.getFailure().printStackTrace();
+	    }
+	}
+	System.exit(report.getFailures() == 0 ? 0 : 1);
+    }
+
+    /**
+     * Render every page in every language and wait for them
+     *
+     * @return the outcome of the generation
+     * @throws IOException
+     *             if the messages or the record of the last run cannot be
+     *             read or written
+     */
+    public Report generate() throws IOException {
+	Map<String, List<File>> bundles = findBundles();
+	List<Page> pages = new ArrayList<Page>();
+	for (String model : findModels(modelsDirectory, "",
+		new ArrayList<String>())) {
+	    for (Map.Entry<String, List<File>> bundle : bundles.entrySet()) {
+		pages.add(new Page(model, new File(modelsDirectory, model),
+			bundle.getKey(), bundle.getValue()));
+	    }
+	}
+	Map<String, String> fingerprints = new ConcurrentHashMap<String, String>(
+		readManifest());
+	ForkJoinPool pool = new ForkJoinPool(parallelism);
+	long start = System.nanoTime();
+	try {
+	    pool.invoke(new GenerateTask(pages, 0, pages.size(),
+		    fingerprints));
+	} finally {
+	    pool.shutdown();
+	}
+	long wallTime = System.nanoTime() - start;
+	writeManifest(fingerprints);
+	return new Report(pages, parallelism, wallTime);
+    }
+
+    private class GenerateTask extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	private final List<Page> pages;
+	private final int from;
+	private final int to;
+	private final Map<String, String> fingerprints;
+
+	GenerateTask(List<Page> pages, int from, int to,
+		Map<String, String> fingerprints) {
+	    this.pages = pages;
+	    this.from = from;
+	    this.to = to;
+	    this.fingerprints = fingerprints;
+	}
+
+	@Override
+	protected void compute() {
+	    if (to - from > 1) {
+		int middle = (from + to) >>> 1;
+		invokeAll(new GenerateTask(pages, from, middle, fingerprints),
+			new GenerateTask(pages, middle, to, fingerprints));
+		return;
+	    }
+	    if (to > from) {
+		generate(pages.get(from), fingerprints);
+	    }
+	}
+    }
+
+    private void generate(Page page, Map<String, String> fingerprints) {
+	long start = System.nanoTime();
+	try {
+	    String fingerprint = fingerprint(page);
+	    File output = new File(outputDirectory, page.outputName);
+	    if (output.isFile()
+		    && fingerprint.equals(fingerprints.get(page.outputName))) {
+		page.skipped = true;
+		return;
+	    }
+	    fingerprints.remove(page.outputName);
+	    Map<String, Object> model = readModel(page);
+	    if (page.language.length() > 0) {
+		model.put("lang", page.language);
+	    }
+	    model.put("i18n", new MessagesFunction(readMessages(page)));
+	    Mustache mustache = factory.compile(page.templateName);
+	    write(output, mustache.execute(new StringWriter(), model)
+		    .toString());
+	    fingerprints.put(page.outputName, fingerprint);
+	} catch (IOException e) {
+	    page.failure = e;
+	} catch (RuntimeException e) {
+	    page.failure = e;
+	} finally {
+	    page.time = System.nanoTime() - start;
+	}
+    }
+
+    /**
+     * @param page
+     * @return the fingerprint of every input of the page
+     * @throws IOException
+     */
+    private String fingerprint(Page page) throws IOException {
+	Hasher hasher = Hashing.sha1().newHasher();
+	for (String templateName : getTemplates(page.templateName,
+		new TreeSet<String>())) {
+	    hasher.putString(templateName, Charsets.UTF_8).putByte((byte) 0)
+		    .putString(readTemplate(templateName), Charsets.UTF_8)
+		    .putByte((byte) 0);
+	}
+	hasher.putBytes(Files.readAllBytes(page.modelFile.toPath()));
+	for (File bundle : page.bundles) {
+	    hasher.putByte((byte) 0).putBytes(
+		    Files.readAllBytes(bundle.toPath()));
+	}
+	return hasher.hash().toString();
+    }
+
+    /**
+     * Collect a template and all the partials and layouts it uses,
+     * transitively
+     */
+    private Set<String> getTemplates(String templateName,
+	    Set<String> templates) {
+	if (!templates.add(templateName)) {
+	    return templates;
+	}
+	Set<String> direct = dependencies.get(templateName);
+	if (direct == null) {
+	    Mustache mustache = factory.parse(templateName);
+	    direct = mustache instanceof TemplateMustache ? ((TemplateMustache) mustache)
+		    .getTemplates() : Collections.<String> emptySet();
+	    dependencies.putIfAbsent(templateName, direct);
+	}
+	for (String dependency : direct) {
+	    getTemplates(dependency, templates);
+	}
+	return templates;
+    }
+
+    private String readTemplate(String templateName) throws IOException {
+	Reader reader = factory.getReader(templateName);
+	try {
+	    return CharStreams.toString(reader);
+	} finally {
+	    Closeables.close(reader, true);
+	}
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> readModel(Page page) throws IOException {
+	if (page.modelFile.getName().endsWith(".properties")) {
+	    Properties properties = load(Collections
+		    .singletonList(page.modelFile));
+	    Map<String, Object> model = new LinkedHashMap<String, Object>();
+	    for (String name : properties.stringPropertyNames()) {
+		model.put(name, properties.getProperty(name));
+	    }
+	    return model;
+	}
+	Object model = JsonReader.read(new String(Files.readAllBytes(
+		page.modelFile.toPath()), Charsets.UTF_8));
+	if (!(model instanceof Map)) {
+	    throw new IllegalArgumentException(page.modelFile
+		    + " does not hold a JSON object");
+	}
+	return (Map<String, Object>) model;
+    }
+
+    private Properties readMessages(Page page) throws IOException {
+	return load(page.bundles);
+    }
+
+    /**
+     * Load properties files, the later ones overriding the former
+     */
+    private static Properties load(List<File> files) throws IOException {
+	Properties properties = null;
+	for (File file : files) {
+	    properties = properties == null ? new Properties()
+		    : new Properties(properties);
+	    InputStream is = new FileInputStream(file);
+	    try {
+		properties.load(new InputStreamReader(is, Charsets.UTF_8));
+	    } finally {
+		Closeables.close(is, true);
+	    }
+	}
+	return properties == null ? new Properties() : properties;
+    }
+
+    /**
+     * @return the bundles of every language, the default one first, by
+     *         language
+     */
+    private Map<String, List<File>> findBundles() {
+	File defaults = null;
+	Map<String, File> languages = new TreeMap<String, File>();
+	File[] files = messagesDirectory.listFiles();
+	if (files != null) {
+	    for (File file : files) {
+		Matcher matcher = BUNDLE.matcher(file.getName());
+		if (!file.isFile() || !matcher.matches()) {
+		    continue;
+		}
+		if (matcher.group(1) == null) {
+		    defaults = file;
+		} else {
+		    languages.put(matcher.group(1), file);
+		}
+	    }
+	}
+	List<File> defaultBundles = defaults == null ? Collections
+		.<File> emptyList() : Collections.singletonList(defaults);
+	Map<String, List<File>> bundles = new LinkedHashMap<String, List<File>>();
+	if (languages.isEmpty()) {
+	    bundles.put("", defaultBundles);
+	}
+	for (Map.Entry<String, File> language : languages.entrySet()) {
+	    List<File> languageBundles = new ArrayList<File>(defaultBundles);
+	    languageBundles.add(language.getValue());
+	    bundles.put(language.getKey(), languageBundles);
+	}
+	return bundles;
+    }
+
+    private static List<String> findModels(File directory, String prefix,
+	    List<String> models) {
+	File[] files = directory.listFiles();
+	if (files == null) {
+	    return models;
+	}
+	for (File file : files) {
+	    if (file.isDirectory()) {
+		findModels(file, prefix + file.getName() + "/", models);
+	    } else if (file.getName().endsWith(".json")
+		    || file.getName().endsWith(".properties")) {
+		models.add(prefix + file.getName());
+	    }
+	}
+	Collections.sort(models);
+	return models;
+    }
+
+    private Map<String, String> readManifest() throws IOException {
+	File file = new File(outputDirectory, MANIFEST);
+	Map<String, String> fingerprints = new TreeMap<String, String>();
+	if (file.isFile()) {
+	    Properties properties = load(Collections.singletonList(file));
+	    for (String name : properties.stringPropertyNames()) {
+		fingerprints.put(name, properties.getProperty(name));
+	    }
+	}
+	return fingerprints;
+    }
+
+    private void writeManifest(Map<String, String> fingerprints)
+	    throws IOException {
+	Properties properties = new Properties();
+	properties.putAll(fingerprints);
+	StringWriter writer = new StringWriter();
+	properties.store(writer, "Inputs of the generated pages");
+	write(new File(outputDirectory, MANIFEST), writer.toString());
+    }
+
+    /**
+     * Replace the content of a file at once, so a file is never seen half
+     * written
+     */
+    private static void write(File file, String content) throws IOException {
+	File directory = file.getParentFile();
+	// another page of the same directory may create it at the same time
+	if (!directory.mkdirs() && !directory.isDirectory()) {
+	    throw new IOException("Unable to create the directory "
+		    + directory);
+	}
+	File tmp = File.createTempFile(file.getName(), ".tmp", directory);
+	OutputStream out = new FileOutputStream(tmp);
+	try {
+	    out.write(content.getBytes(Charsets.UTF_8));
+	    out.close();
+	    Files.move(tmp.toPath(), file.toPath(),
+		    StandardCopyOption.REPLACE_EXISTING,
+		    StandardCopyOption.ATOMIC_MOVE);
+	} finally {
+	    Closeables.close(out, true);
+	    tmp.delete();
+	}
+    }
+
+    /**
+     * The {{#i18n}}key{{/i18n}} function, reading the messages of the page
+     * language
+     */
+    private static class MessagesFunction implements TemplateFunction {
+
+	private final Properties messages;
+
+	MessagesFunction(Properties messages) {
+	    this.messages = messages;
+	}
+
+	@Override
+	public String apply(String input) {
+	    return messages.getProperty(input, input);
+	}
+    }
+
+    /**
+     * A page in a language, and the outcome of its generation
+     */
+    public static class Page {
+
+	private final String templateName;
+	private final String language;
+	private final String outputName;
+	private final File modelFile;
+	private final List<File> bundles;
+	private volatile boolean skipped;
+	private volatile Exception failure;
+	private volatile long time;
+
+	Page(String model, File modelFile, String language,
+		List<File> bundles) {
+	    String path = model.substring(0, model.lastIndexOf('.'));
+	    this.templateName = MustacheConstant.VIEWS_DIRECTORY + "/" + path
+		    + MustacheConstant.DEFAULT_EXTENSION;
+	    this.language = language;
+	    this.outputName = (language.length() > 0 ? language + "/" : "")
+		    + path + OUTPUT_EXTENSION;
+	    this.modelFile = modelFile;
+	    this.bundles = bundles;
+	}
+
+	public String getTemplateName() {
+	    return templateName;
+	}
+
+	public String getLanguage() {
+	    return language;
+	}
+
+	/**
+	 * @return the path of the generated file, relative to the output
+	 *         directory
+	 */
+	public String getOutputName() {
+	    return outputName;
+	}
+
+	/**
+	 * @return true if the page was not rendered because none of its
+	 *         inputs changed
+	 */
+	public boolean isSkipped() {
+	    return skipped;
+	}
+
+	/**
+	 * @return the exception that prevented the generation or null
+	 */
+	public Exception getFailure() {
+	    return failure;
+	}
+
+	public long getTime(TimeUnit unit) {
+	    return unit.convert(time, TimeUnit.NANOSECONDS);
+	}
+    }
+
+    /**
+     * Outcome of a generation: the time spent on each page and the totals.
+     */
+    public static class Report {
+
+	private final List<Page> pages;
+	private final int parallelism;
+	private final long wallTime;
+
+	Report(List<Page> pages, int parallelism, long wallTime) {
+	    this.pages = Collections.unmodifiableList(pages);
+	    this.parallelism = parallelism;
+	    this.wallTime = wallTime;
+	}
+
+	public List<Page> getPages() {
+	    return pages;
+	}
+
+	public int getSkipped() {
+	    int skipped = 0;
+	    for (Page page : pages) {
+		if (page.isSkipped()) {
+		    skipped++;
+		}
+	    }
+	    return skipped;
+	}
+
+	public int getFailures() {
+	    int failures = 0;
+	    for (Page page : pages) {
+		if (page.getFailure() != null) {
+		    failures++;
+		}
+	    }
+	    return failures;
+	}
+
+	public long getWallTime(TimeUnit unit) {
+	    return unit.convert(wallTime, TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public String toString() {
+	    StringBuilder builder = new StringBuilder();
+	    for (Page page : pages) {
+		builder.append(String.format("%8d ms  %s%s%n", page
+			.getTime(TimeUnit.MILLISECONDS), page.getOutputName(),
+			page.getFailure() != null ? " FAILED" : page
+				.isSkipped() ? " (unchanged)" : ""));
+	    }
+	    int skipped = getSkipped();
+	    int failures = getFailures();
+	    builder.append(pages.size() - skipped - failures)
+		    .append(" pages generated, ").append(skipped)
+		    .append(" unchanged (").append(failures)
+		    .append(" failures) on ").append(parallelism)
+		    .append(" threads in ")
+		    .append(getWallTime(TimeUnit.MILLISECONDS))
+		    .append(" ms").append(String.format("%n"));
+	    return builder.toString();
+	}
+    }
+}
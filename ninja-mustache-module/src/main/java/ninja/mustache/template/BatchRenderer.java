@@ -0,0 +1,318 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.template;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.mustachejava.Mustache;
+import com.github.mustachejava.MustacheException;
+import com.github.mustachejava.MustacheFactory;
+import com.google.common.base.Throwables;
+import com.google.common.io.Closeables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Renders one template for every model of a batch, typically the emails of a
+ * mailing, without any request, response or {@link ninja.Context}.
+ *
+ * The template is compiled once and the models are rendered by a fixed number
+ * of threads, each pulling the next model from the batch as it is done with
+ * the previous one; a lazy batch is therefore never loaded in memory as a
+ * whole. The output of each model is either rendered into a buffer reused by
+ * the rendering thread and handed to a {@link BufferSink}, or written
+ * straight to the {@link Writer} opened by a {@link WriterSink}. Failed models
+ * are counted and only the first {@link #FAILURE_SAMPLE_SIZE} are reported,
+ * by their position in the batch.
+ *
+ * @author kpacha
+ */
+public class BatchRenderer {
+
+    public static final int FAILURE_SAMPLE_SIZE = 100;
+
+    private final MustacheFactory mustacheFactory;
+    private final int parallelism;
+
+    public BatchRenderer(MustacheFactory mustacheFactory) {
+	this(mustacheFactory, Runtime.getRuntime().availableProcessors());
+    }
+
+    public BatchRenderer(MustacheFactory mustacheFactory, int parallelism) {
+	this.mustacheFactory = mustacheFactory;
+	this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Render the template for every model into a pooled buffer
+     *
+     * @param templateName
+     * @param models
+     * @param sink
+     *            receives the output of each model
+     * @return the outcome of the rendering
+     */
+    public <T> Report render(String templateName, Iterable<T> models,
+	    final BufferSink<? super T> sink) {
+	return render(templateName, models, new Output<T>() {
+	    @Override
+	    public void render(Mustache mustache, T model, StringWriter buffer)
+		    throws IOException {
+		buffer.getBuffer().setLength(0);
+		mustache.execute(buffer, model);
+		sink.accept(model, buffer.getBuffer());
+	    }
+	});
+    }
+
+    /**
+     * Render the template for every model into the writer opened for it
+     *
+     * @param templateName
+     * @param models
+     * @param sink
+     *            opens the writer of each model, closed once rendered
+     * @return the outcome of the rendering
+     */
+    public <T> Report render(String templateName, Iterable<T> models,
+	    final WriterSink<? super T> sink) {
+	return render(templateName, models, new Output<T>() {
+	    @Override
+	    public void render(Mustache mustache, T model, StringWriter buffer)
+		    throws IOException {
+		Writer writer = sink.open(model);
+		try {
+		    mustache.execute(writer, model).flush();
+		} finally {
+		    Closeables.close(writer, false);
+		}
+	    }
+	});
+    }
+
+    private <T> Report render(String templateName, Iterable<T> models,
+	    final Output<T> output) {
+	final Mustache mustache = mustacheFactory.compile(templateName);
+	final Iterator<T> iterator = models.iterator();
+	final Report report = new Report(templateName, parallelism);
+	ExecutorService executor = Executors.newFixedThreadPool(
+		parallelism,
+		new ThreadFactoryBuilder().setDaemon(true)
+			.setNameFormat("mustache-batch-%d").build());
+	long start = System.nanoTime();
+	try {
+	    List<Future<Void>> workers = new ArrayList<Future<Void>>(
+		    parallelism);
+	    for (int i = 0; i < parallelism; i++) {
+		workers.add(executor.submit(new Callable<Void>() {
+		    @Override
+		    public Void call() {
+			work(mustache, iterator, output, report);
+			return null;
+		    }
+		}));
+	    }
+	    for (Future<Void> worker : workers) {
+		worker.get();
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new MustacheException("Interrupted while rendering", e);
+	} catch (ExecutionException e) {
+	    throw Throwables.propagate(e.getCause());
+	} finally {
+	    executor.shutdownNow();
+	}
+	report.wallTime = System.nanoTime() - start;
+	return report;
+    }
+
+    /**
+     * Render models until the batch is exhausted
+     */
+    private <T> void work(Mustache mustache, Iterator<T> iterator,
+	    Output<T> output, Report report) {
+	ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+	boolean cpuTimeSupported = threadMXBean
+		.isCurrentThreadCpuTimeSupported();
+	long start = cpuTimeSupported ? threadMXBean.getCurrentThreadCpuTime()
+		: 0;
+	StringWriter buffer = new StringWriter();
+	try {
+	    while (true) {
+		T model;
+		long index;
+		synchronized (iterator) {
+		    if (!iterator.hasNext()) {
+			return;
+		    }
+		    model = iterator.next();
+		    index = report.taken++;
+		}
+		try {
+		    output.render(mustache, model, buffer);
+		    report.rendered.incrementAndGet();
+		} catch (IOException e) {
+		    report.failed(index, e);
+		} catch (RuntimeException e) {
+		    report.failed(index, e);
+		}
+	    }
+	} finally {
+	    if (cpuTimeSupported) {
+		report.cpuTime.addAndGet(threadMXBean.getCurrentThreadCpuTime()
+			- start);
+	    }
+	}
+    }
+
+    private interface Output<T> {
+	void render(Mustache mustache, T model, StringWriter buffer)
+		throws IOException;
+    }
+
+    /**
+     * Receives the output of each model, rendered into a buffer reused for
+     * the next model of the same thread: the output must be copied or
+     * written out before returning. Called concurrently.
+     */
+    public interface BufferSink<T> {
+	void accept(T model, CharSequence output) throws IOException;
+    }
+
+    /**
+     * Opens the writer each model is rendered to. Called concurrently.
+     */
+    public interface WriterSink<T> {
+	Writer open(T model) throws IOException;
+    }
+
+    /**
+     * Outcome of a batch: the models rendered, the ones that failed and the
+     * throughput. The failed models themselves are not retained.
+     */
+    public static class Report {
+
+	private final String templateName;
+	private final int parallelism;
+	private final AtomicLong rendered = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final List<Failure> failures = Collections
+		.synchronizedList(new ArrayList<Failure>());
+	private final AtomicLong cpuTime = new AtomicLong();
+	private long wallTime;
+	// guarded by the lock of the batch iterator
+	private long taken;
+
+	Report(String templateName, int parallelism) {
+	    this.templateName = templateName;
+	    this.parallelism = parallelism;
+	}
+
+	private void failed(long index, Exception e) {
+	    if (failed.incrementAndGet() <= FAILURE_SAMPLE_SIZE) {
+		failures.add(new Failure(index, e));
+	    }
+	}
+
+	public long getRendered() {
+	    return rendered.get();
+	}
+
+	public long getFailed() {
+	    return failed.get();
+	}
+
+	/**
+	 * @return the first {@link BatchRenderer#FAILURE_SAMPLE_SIZE} failures,
+	 *         in no particular order
+	 */
+	public List<Failure> getFailures() {
+	    synchronized (failures) {
+		return Collections
+			.unmodifiableList(new ArrayList<Failure>(failures));
+	    }
+	}
+
+	public long getWallTime(TimeUnit unit) {
+	    return unit.convert(wallTime, TimeUnit.NANOSECONDS);
+	}
+
+	public long getCpuTime(TimeUnit unit) {
+	    return unit.convert(cpuTime.get(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return the number of models rendered per second of wall time
+	 */
+	public double getThroughput() {
+	    return wallTime == 0 ? 0 : rendered.get()
+		    * (double) TimeUnit.SECONDS.toNanos(1) / wallTime;
+	}
+
+	@Override
+	public String toString() {
+	    return rendered.get() + " models rendered with " + templateName
+		    + " (" + failed.get() + " failures) on " + parallelism
+		    + " threads in " + getWallTime(TimeUnit.MILLISECONDS)
+		    + " ms wall time / " + getCpuTime(TimeUnit.MILLISECONDS)
+		    + " ms CPU time, "
+		    + String.format("%.1f", getThroughput()) + " models/s";
+	}
+    }
+
+    /**
+     * A model that failed, by its position in the batch.
+     */
+    public static class Failure {
+
+	private final long index;
+	private final Exception exception;
+
+	Failure(long index, Exception exception) {
+	    this.index = index;
+	    this.exception = exception;
+	}
+
+	public long getIndex() {
+	    return index;
+	}
+
+	public Exception getException() {
+	    return exception;
+	}
+
+	@Override
+	public String toString() {
+	    return "#" + index + ": " + exception;
+	}
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.template;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writer counting the chars written through it.
+ *
+ * @author kpacha
+ */
+public class CountingWriter extends FilterWriter {
+
+    private long count;
+
+    public CountingWriter(Writer out) {
+	super(out);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+	out.write(c);
+	count++;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+	out.write(cbuf, off, len);
+	count += len;
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+	out.write(str, off, len);
+	count += len;
+    }
+
+    /**
+     * @return the number of chars written so far
+     */
+    public long getCount() {
+	return count;
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.template;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writer flushing the underlying writer every time a given number of chars
+ * has been written through it, so a long rendering is sent to the client
+ * while it goes on instead of piling up in the response buffers.
+ *
+ * @author kpacha
+ */
+public class FlushingWriter extends FilterWriter {
+
+    private final int flushSize;
+    private int pending;
+
+    /**
+     * @param out
+     * @param flushSize
+     *            the number of chars written between two flushes
+     */
+    public FlushingWriter(Writer out, int flushSize) {
+	super(out);
+	this.flushSize = flushSize;
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+	out.write(c);
+	written(1);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+	out.write(cbuf, off, len);
+	written(len);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+	out.write(str, off, len);
+	written(len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+	pending = 0;
+	out.flush();
+    }
+
+    private void written(int len) throws IOException {
+	pending += len;
+	if (pending >= flushSize) {
+	    flush();
+	}
+    }
+}
@@ -0,0 +1,264 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.template;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.github.mustachejava.Mustache;
+
+/**
+ * {@link RenderPublisher} rendering a template on an {@link Executor}.
+ *
+ * Rendering starts with the first request and pauses whenever a buffer is
+ * full and the subscriber has no outstanding demand, so a slow client holds
+ * a rendering thread of the executor at most, never a server thread. The
+ * rendering is aborted when the subscription is cancelled. Any failure of
+ * the rendering, compilation included when {@link #render(Writer)} is
+ * overridden, is signalled to the subscriber.
+ *
+ * A publisher renders once, for a single subscriber.
+ *
+ * @author kpacha
+ */
+public class MustacheRenderPublisher implements RenderPublisher {
+
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private final Mustache mustache;
+    private final Object scope;
+    private final Charset charset;
+    private final Executor executor;
+    private final int bufferSize;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    public MustacheRenderPublisher(Mustache mustache, Object scope,
+	    Charset charset, Executor executor) {
+	this(mustache, scope, charset, executor, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param mustache
+     * @param scope
+     * @param charset
+     * @param executor
+     *            the executor rendering the template
+     * @param bufferSize
+     *            the number of chars per emitted buffer
+     */
+    public MustacheRenderPublisher(Mustache mustache, Object scope,
+	    Charset charset, Executor executor, int bufferSize) {
+	this.mustache = mustache;
+	this.scope = scope;
+	this.charset = charset;
+	this.executor = executor;
+	this.bufferSize = bufferSize;
+    }
+
+    /**
+     * For subclasses rendering by themselves in {@link #render(Writer)}
+     *
+     * @param charset
+     * @param executor
+     * @param bufferSize
+     */
+    protected MustacheRenderPublisher(Charset charset, Executor executor,
+	    int bufferSize) {
+	this(null, null, charset, executor, bufferSize);
+    }
+
+    /**
+     * Render the output, on the executor
+     *
+     * @param writer
+     *            the writer emitting the output, to close once rendered
+     * @throws IOException
+     */
+    protected void render(Writer writer) throws IOException {
+	mustache.execute(writer, scope).close();
+    }
+
+    @Override
+    public void subscribe(RenderSubscriber subscriber) {
+	if (subscribed.compareAndSet(false, true)) {
+	    subscriber.onSubscribe(new Subscription(subscriber));
+	} else {
+	    subscriber.onSubscribe(new Subscription(null));
+	    subscriber.onError(new IllegalStateException(
+		    "Only one subscriber is allowed"));
+	}
+    }
+
+    private class Subscription implements RenderSubscription, Runnable {
+
+	private final RenderSubscriber subscriber;
+	private long demand;
+	private boolean cancelled;
+	private boolean started;
+
+	Subscription(RenderSubscriber subscriber) {
+	    this.subscriber = subscriber;
+	    this.cancelled = subscriber == null;
+	}
+
+	@Override
+	public void request(long n) {
+	    boolean start;
+	    synchronized (this) {
+		if (cancelled) {
+		    return;
+		}
+		notifyAll();
+		if (n <= 0) {
+		    cancelled = true;
+		    start = false;
+		} else {
+		    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+		    start = !started;
+		    started = true;
+		}
+	    }
+	    if (n <= 0) {
+		// signalled out of the lock, the subscriber may call back
+		subscriber.onError(new IllegalArgumentException(
+			"Non-positive request " + n));
+	    } else if (start) {
+		executor.execute(this);
+	    }
+	}
+
+	@Override
+	public synchronized void cancel() {
+	    cancelled = true;
+	    notifyAll();
+	}
+
+	@Override
+	public void run() {
+	    try {
+		render(new DemandWriter(this));
+	    } catch (CancellationException e) {
+		return;
+	    } catch (Throwable t) {
+		if (!isCancelled()) {
+		    subscriber.onError(t);
+		}
+		return;
+	    }
+	    if (!isCancelled()) {
+		subscriber.onComplete();
+	    }
+	}
+
+	/**
+	 * Wait for demand, then emit the buffer
+	 */
+	void emit(ByteBuffer buffer) {
+	    synchronized (this) {
+		while (demand == 0 && !cancelled) {
+		    try {
+			wait();
+		    } catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cancelled = true;
+		    }
+		}
+		if (cancelled) {
+		    throw new CancellationException();
+		}
+		demand--;
+	    }
+	    subscriber.onNext(buffer);
+	}
+
+	synchronized boolean isCancelled() {
+	    return cancelled;
+	}
+    }
+
+    /**
+     * Writer emitting a buffer every bufferSize chars
+     */
+    private class DemandWriter extends Writer {
+
+	private final Subscription subscription;
+	private final StringBuilder chars = new StringBuilder(bufferSize);
+
+	DemandWriter(Subscription subscription) {
+	    this.subscription = subscription;
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) {
+	    while (len > 0) {
+		int count = Math.min(len, bufferSize - chars.length());
+		chars.append(cbuf, off, count);
+		off += count;
+		len -= count;
+		if (chars.length() >= bufferSize) {
+		    emit(false);
+		}
+	    }
+	}
+
+	@Override
+	public void write(String str, int off, int len) {
+	    while (len > 0) {
+		int count = Math.min(len, bufferSize - chars.length());
+		chars.append(str, off, off + count);
+		off += count;
+		len -= count;
+		if (chars.length() >= bufferSize) {
+		    emit(false);
+		}
+	    }
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	    emit(true);
+	}
+
+	/**
+	 * Encode and emit the buffered chars, keeping a trailing high
+	 * surrogate for the next buffer unless this is the last one
+	 */
+	private void emit(boolean last) {
+	    int end = chars.length();
+	    if (!last && end > 0
+		    && Character.isHighSurrogate(chars.charAt(end - 1))) {
+		end--;
+	    }
+	    if (end == 0) {
+		return;
+	    }
+	    ByteBuffer buffer = charset.encode(CharBuffer.wrap(chars, 0, end));
+	    chars.delete(0, end);
+	    subscription.emit(buffer);
+	}
+    }
+}
@@ -19,13 +19,27 @@ package ninja.mustache.template;
 import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.util.Arrays;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import ninja.Context;
 import ninja.Result;
 import ninja.Results;
 import ninja.i18n.Lang;
 import ninja.i18n.Messages;
+import ninja.mustache.RenderBreaker;
+import ninja.mustache.RenderBreaker.Circuit;
+import ninja.mustache.RenderDeadline;
+import ninja.mustache.RenderEvent.Type;
+import ninja.mustache.RenderEvents;
+import ninja.mustache.RenderProfiler;
+import ninja.mustache.RenderProfiler.Frame;
+import ninja.mustache.RenderTrace;
+import ninja.mustache.RenderTrace.Section;
 import ninja.mustache.exception.NinjaExceptionHandler;
 import ninja.mustache.utils.MustacheConstant;
 import ninja.template.TemplateEngineManager;
@@ -34,61 +48,450 @@ import ninja.utils.ResponseStreams;
 
 import org.slf4j.Logger;
 
+import com.github.mustachejava.Mustache;
 import com.github.mustachejava.MustacheException;
 import com.github.mustachejava.MustacheFactory;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
 import com.google.common.collect.Maps;
 import com.google.inject.Inject;
+import com.google.inject.Provider;
 
 /**
  * Render Ninja with Mustache template engine (http://mustache.github.io/).
  * 
+ * The factory is asked for on every rendering, so a new version of the
+ * templates deployed by the {@link ninja.mustache.MustacheFactoryProvider} is
+ * rendered at once.
+ * 
  * @author kpacha
  */
 public class MustacheTemplateEngine extends AbstractTemplateEngine {
 
+    private static final String SERVER_TIMING = "Server-Timing";
+
     private final MustacheTemplateEngineHelper templateEngineHelper;
 
     private final NinjaExceptionHandler exceptionHandler;
 
-    private final MustacheFactory mustacheFactory;
+    private final Provider<MustacheFactory> mustacheFactoryProvider;
+
+    private final NinjaProperties ninjaProperties;
+
+    private final RenderProfiler renderProfiler;
+
+    private final RenderBreaker renderBreaker;
+
+    private final RenderEvents renderEvents;
+
+    private final int slowThreshold;
+
+    private final int slowSections;
+
+    private final boolean serverTiming;
+
+    private final String serverTimingHeader;
 
     @Inject
     public MustacheTemplateEngine(Messages messages, Lang lang,
 	    Logger ninjaLogger, NinjaExceptionHandler exceptionHandler,
 	    MustacheTemplateEngineHelper templateEngineHelper,
 	    TemplateEngineManager templateEngineManager,
-	    NinjaProperties ninjaProperties, MustacheFactory mustacheFactory)
-	    throws Exception {
+	    NinjaProperties ninjaProperties,
+	    Provider<MustacheFactory> mustacheFactoryProvider,
+	    RenderProfiler renderProfiler, RenderBreaker renderBreaker,
+	    RenderEvents renderEvents) throws Exception {
 
 	this.messages = messages;
 	this.lang = lang;
 	this.logger = ninjaLogger;
 	this.templateEngineHelper = templateEngineHelper;
 	this.exceptionHandler = exceptionHandler;
-	this.mustacheFactory = mustacheFactory;
+	this.mustacheFactoryProvider = mustacheFactoryProvider;
+	this.ninjaProperties = ninjaProperties;
+	this.renderProfiler = renderProfiler;
+	this.renderBreaker = renderBreaker;
+	this.renderEvents = renderEvents;
+	this.slowThreshold = ninjaProperties.getIntegerWithDefault(
+		MustacheConstant.PROPERTY_SLOW_THRESHOLD, 0);
+	this.slowSections = ninjaProperties.getIntegerWithDefault(
+		MustacheConstant.PROPERTY_SLOW_SECTIONS, 3);
+	this.serverTiming = ninjaProperties.getBooleanWithDefault(
+		MustacheConstant.PROPERTY_SERVER_TIMING, ninjaProperties.isDev());
+	this.serverTimingHeader = ninjaProperties
+		.get(MustacheConstant.PROPERTY_SERVER_TIMING_HEADER);
     }
 
     @Override
     public void invoke(Context context, Result result) {
-	ResponseStreams responseStreams = context.finalizeHeaders(result);
 	String templateName = templateEngineHelper.getTemplateForResult(
 		context.getRoute(), result, MustacheConstant.DEFAULT_EXTENSION);
+	Circuit circuit = renderBreaker.getCircuit(templateName);
+	if (circuit != null && !circuit.allowRender()) {
+	    renderFallback(context, result, circuit);
+	    return;
+	}
+	boolean timed = isServerTimingRequested(context);
+	// the Server-Timing header is only known once rendered, and the last
+	// good outputs are kept whole: the headers are then finalized after
+	// the rendering, into a buffer
+	boolean buffered = timed || renderBreaker.keepsOutputs(templateName);
+	ResponseStreams responseStreams = buffered ? null : context
+		.finalizeHeaders(result);
 
-	render(context, responseStreams,
-		getTemplateProperties(context, result), templateName);
+	if (slowThreshold <= 0 && !timed) {
+	    render(context, result, responseStreams,
+		    getTemplateProperties(context, result), templateName, null);
+	    return;
+	}
+	RenderTrace trace = RenderTrace.start();
+	try {
+	    Map templateProperties = getTemplateProperties(context, result);
+	    trace.phase("properties");
+	    render(context, result, responseStreams, templateProperties,
+		    templateName, trace);
+	} finally {
+	    trace.stop();
+	    if (slowThreshold > 0
+		    && trace.getTime(TimeUnit.MILLISECONDS) >= slowThreshold) {
+		logSlowRender(context, templateName, trace);
+	    }
+	}
+    }
+
+    /**
+     * Render a template to the response streams, or to a buffer written once
+     * the rendering is done (and the Server-Timing header added, if
+     * requested) when there are no response streams yet. The outcome is
+     * reported to the circuit of the template, if any
+     * 
+     * @param context
+     * @param result
+     * @param responseStreams
+     *            the finalized response streams, or null to render into a
+     *            buffer
+     * @param templateProperties
+     * @param templateName
+     * @param trace
+     *            the trace of the rendering, required with the Server-Timing
+     *            header
+     */
+    private void render(Context context, Result result,
+	    ResponseStreams responseStreams, Map templateProperties,
+	    String templateName, RenderTrace trace) {
+	RenderDeadline previous = RenderDeadline.set(getDeadline(templateName));
+	Frame frame = renderProfiler.start(getRoute(context), templateName);
+	boolean evented = renderEvents.isEnabled();
+	long start = evented ? System.nanoTime() : 0;
+	CountingWriter counter = null;
+	try {
+	    Mustache mustache = mustacheFactoryProvider.get().compile(
+		    templateName);
+	    if (trace != null) {
+		trace.phase("compile");
+	    }
+	    StringWriter buffer = responseStreams == null ? new StringWriter()
+		    : null;
+	    Writer writer = buffer != null ? buffer : getWriter(responseStreams);
+	    if (trace != null || evented) {
+		writer = counter = new CountingWriter(writer);
+	    }
+	    writer = mustache.execute(writer, templateProperties);
+	    if (buffer != null) {
+		writer.close();
+		if (trace != null) {
+		    trace.phase("render");
+		}
+		if (isServerTimingRequested(context)) {
+		    result.addHeader(SERVER_TIMING, getServerTiming(trace));
+		}
+		writer = getWriter(context.finalizeHeaders(result));
+		writer.write(buffer.toString());
+	    } else if (trace != null) {
+		trace.phase("render");
+	    }
+	    writer.flush();
+	    writer.close();
+	    if (trace != null) {
+		trace.phase("flush");
+	    }
+	    Circuit circuit = renderBreaker.getCircuit(templateName);
+	    if (circuit != null) {
+		circuit.success(getRenderKey(context, result),
+			buffer != null && isAnonymous(context) ? buffer
+				.toString() : null);
+	    }
+	} catch (IOException e) {
+	    handleServerError(context, templateName, e);
+	} catch (MustacheException e) {
+	    handleServerError(context, templateName, e);
+	} finally {
+	    if (trace != null && counter != null) {
+		trace.setOutputSize(counter.getCount());
+	    }
+	    if (evented) {
+		renderEvents.fire(Type.RENDER, templateName, System.nanoTime()
+			- start, counter == null ? 0 : counter.getCount(), null);
+	    }
+	    RenderProfiler.stop(frame);
+	    RenderDeadline.set(previous);
+	}
     }
 
-    private void render(Context context, ResponseStreams responseStreams,
-	    Map templateProperties, String templateName) {
+    /**
+     * Answer a request for a template whose circuit is open without rendering
+     * it: with the last good output of the same key if kept, the error page
+     * otherwise
+     * 
+     * @param context
+     * @param result
+     * @param circuit
+     */
+    private void renderFallback(Context context, Result result,
+	    Circuit circuit) {
+	String output = circuit.getLastGoodOutput(getRenderKey(context, result));
+	ResponseStreams responseStreams;
+	if (output != null) {
+	    responseStreams = context.finalizeHeaders(result);
+	} else {
+	    output = getErrorPage();
+	    responseStreams = context.finalizeHeaders(Results
+		    .internalServerError());
+	}
 	try {
-	    Writer writer = mustacheFactory.compile(templateName).execute(
-		    responseStreams.getWriter(), templateProperties);
+	    Writer writer = getWriter(responseStreams);
+	    writer.write(output);
 	    writer.flush();
 	    writer.close();
 	} catch (IOException e) {
-	    handleServerError(context, e);
+	    logger.debug("Unable to write the fallback of "
+		    + circuit.getTemplateName(), e);
+	}
+    }
+
+    /**
+     * @param context
+     * @param result
+     * @return the key of the kept outputs of a rendering: the request path
+     *         and parameters, and the language
+     */
+    private String getRenderKey(Context context, Result result) {
+	StringBuilder key = new StringBuilder().append(
+		context.getRequestPath()).append('|');
+	Optional<String> language = lang.getLanguage(context,
+		Optional.of(result));
+	if (language.isPresent()) {
+	    key.append(language.get());
+	}
+	Map<String, String[]> parameters = context.getParameters();
+	if (parameters != null) {
+	    parameters = new TreeMap<String, String[]>(parameters);
+	    for (Map.Entry<String, String[]> parameter : parameters.entrySet()) {
+		key.append('|').append(parameter.getKey()).append('=')
+			.append(Arrays.toString(parameter.getValue()));
+	    }
+	}
+	return key.toString();
+    }
+
+    /**
+     * @param context
+     * @return true if the request carries no session nor flash data, so its
+     *         page can be served to another visitor
+     */
+    private static boolean isAnonymous(Context context) {
+	return context.getSession().isEmpty()
+		&& context.getFlashScope().getCurrentFlashCookieData()
+			.isEmpty();
+    }
+
+    /**
+     * @param context
+     * @return true if the response gets a Server-Timing header: always when
+     *         {@link MustacheConstant#PROPERTY_SERVER_TIMING} is set, or when
+     *         the request has the
+     *         {@link MustacheConstant#PROPERTY_SERVER_TIMING_HEADER} header
+     */
+    private boolean isServerTimingRequested(Context context) {
+	return serverTiming || serverTimingHeader != null
+		&& context.getHeader(serverTimingHeader) != null;
+    }
+
+    /**
+     * @param trace
+     * @return the Server-Timing header value of the traced rendering: the
+     *         model assembly, the template lookup and compilation, and the
+     *         rendering, in milliseconds
+     */
+    private String getServerTiming(RenderTrace trace) {
+	Map<String, Long> phases = trace.getPhases(TimeUnit.MICROSECONDS);
+	return "model;dur=" + millis(phases.get("properties"))
+		+ ", compile;dur=" + millis(phases.get("compile"))
+		+ ", render;dur=" + millis(phases.get("render"));
+    }
+
+    private static String millis(Long micros) {
+	return String.format(Locale.ROOT, "%.3f", micros / 1000.0);
+    }
+
+    /**
+     * Log the breakdown of a rendering slower than
+     * {@link MustacheConstant#PROPERTY_SLOW_THRESHOLD}, in a single line
+     * 
+     * @param context
+     * @param templateName
+     * @param trace
+     */
+    private void logSlowRender(Context context, String templateName,
+	    RenderTrace trace) {
+	StringBuilder line = new StringBuilder("Slow render: template=")
+		.append(templateName).append(" route=")
+		.append(getRoute(context)).append(" total=")
+		.append(trace.getTime(TimeUnit.MILLISECONDS)).append("ms");
+	for (Map.Entry<String, Long> phase : trace.getPhases(
+		TimeUnit.MILLISECONDS).entrySet()) {
+	    line.append(' ').append(phase.getKey()).append('=')
+		    .append(phase.getValue()).append("ms");
+	}
+	line.append(" chars=").append(trace.getOutputSize())
+		.append(" slowest=[");
+	String separator = "";
+	for (Section section : trace.getSlowestSections(slowSections)) {
+	    line.append(separator).append(section.getName()).append(' ')
+		    .append(section.getTime(TimeUnit.MILLISECONDS)).append("ms");
+	    separator = ", ";
+	}
+	logger.warn(line.append(']').toString());
+    }
+
+    /**
+     * @param context
+     * @return the URI pattern of the route of the request, or null
+     */
+    private String getRoute(Context context) {
+	return context.getRoute() == null ? null : context.getRoute().getUri();
+    }
+
+    /**
+     * Get the writer of the response, flushed every
+     * {@link MustacheConstant#PROPERTY_FLUSH_CHARS} chars if set
+     * 
+     * @param responseStreams
+     * @return
+     * @throws IOException
+     */
+    private Writer getWriter(ResponseStreams responseStreams)
+	    throws IOException {
+	int flushSize = ninjaProperties.getIntegerWithDefault(
+		MustacheConstant.PROPERTY_FLUSH_CHARS, 0);
+	return flushSize > 0 ? new FlushingWriter(responseStreams.getWriter(),
+		flushSize) : responseStreams.getWriter();
+    }
+
+    /**
+     * Get the render time budget of a template, in milliseconds: the one set
+     * for the template itself if any, the default one otherwise
+     * 
+     * @param templateName
+     * @return the deadline of the rendering or null if it has no budget
+     */
+    private RenderDeadline getDeadline(String templateName) {
+	Integer budget = ninjaProperties
+		.getInteger(MustacheConstant.PROPERTY_RENDER_DEADLINE + "."
+			+ templateName);
+	if (budget == null) {
+	    budget = ninjaProperties.getIntegerWithDefault(
+		    MustacheConstant.PROPERTY_RENDER_DEADLINE, 0);
+	}
+	return budget == null || budget <= 0 ? null : RenderDeadline.after(
+		budget, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Render the template of the result as a {@link RenderPublisher}, emitting
+     * the output on the subscriber's demand instead of writing it to the
+     * response streams. Meant for non-blocking servers: the response headers
+     * are not finalized and the emitted buffers are written by the caller.
+     * The model is assembled and the template compiled and rendered on the
+     * executor, and their failures signalled to the subscriber
+     * 
+     * @param context
+     * @param result
+     * @param executor
+     *            the executor rendering the template
+     * @return the publisher of the rendered output, encoded in UTF-8
+     */
+    public RenderPublisher publish(final Context context, final Result result,
+	    Executor executor) {
+	final String templateName = templateEngineHelper.getTemplateForResult(
+		context.getRoute(), result, MustacheConstant.DEFAULT_EXTENSION);
+	return new MustacheRenderPublisher(Charsets.UTF_8, executor,
+		MustacheRenderPublisher.DEFAULT_BUFFER_SIZE) {
+	    @Override
+	    protected void render(Writer writer) throws IOException {
+		publish(context, result, templateName, writer);
+	    }
+	};
+    }
+
+    /**
+     * Render a template for a {@link RenderPublisher}, within its deadline,
+     * profiled and reported to its circuit and as events like a rendering to
+     * the response streams. The last good output is emitted when the circuit
+     * is open, an error thrown if there is none
+     * 
+     * @param context
+     * @param result
+     * @param templateName
+     * @param writer
+     *            the writer emitting the output, closed once rendered
+     * @throws IOException
+     */
+    private void publish(Context context, Result result, String templateName,
+	    Writer writer) throws IOException {
+	Circuit circuit = renderBreaker.getCircuit(templateName);
+	if (circuit != null && !circuit.allowRender()) {
+	    String output = circuit.getLastGoodOutput(getRenderKey(context,
+		    result));
+	    if (output == null) {
+		throw new MustacheException("The circuit of " + templateName
+			+ " is open");
+	    }
+	    writer.write(output);
+	    writer.close();
+	    return;
+	}
+	RenderDeadline previous = RenderDeadline.set(getDeadline(templateName));
+	Frame frame = renderProfiler.start(getRoute(context), templateName);
+	boolean evented = renderEvents.isEnabled();
+	long start = evented ? System.nanoTime() : 0;
+	CountingWriter counter = null;
+	try {
+	    Map templateProperties = getTemplateProperties(context, result);
+	    Mustache mustache = mustacheFactoryProvider.get().compile(
+		    templateName);
+	    if (evented) {
+		writer = counter = new CountingWriter(writer);
+	    }
+	    mustache.execute(writer, templateProperties).close();
+	    if (circuit != null) {
+		circuit.success(getRenderKey(context, result), null);
+	    }
 	} catch (MustacheException e) {
-	    handleServerError(context, e);
+	    if (circuit != null) {
+		circuit.failure();
+	    }
+	    if (evented) {
+		renderEvents.fire(Type.ERROR, templateName, 0, 0, e);
+	    }
+	    throw e;
+	} finally {
+	    if (evented) {
+		renderEvents.fire(Type.RENDER, templateName, System.nanoTime()
+			- start, counter == null ? 0 : counter.getCount(), null);
+	    }
+	    RenderProfiler.stop(frame);
+	    RenderDeadline.set(previous);
 	}
     }
 
@@ -102,25 +505,48 @@ public class MustacheTemplateEngine extends AbstractTemplateEngine {
      * @param map
      */
     protected void insertI18nProperties(Context context, Result result, Map map) {
-	map.put("i18n", new MustacheTranslateBundleFunction(messages, context,
-		result));
+	map.put("i18n", new MustacheTranslateBundleFunction(messages, lang,
+		context, result));
     }
 
     /**
-     * handle the error: finalize the response headers, get the error template
-     * and delegate the rendering to the exceptionHandler
+     * handle the error: count a template failure against its circuit,
+     * finalize the response headers, get the error template and delegate the
+     * rendering to the exceptionHandler
      * 
      * @param context
+     * @param templateName
+     *            the template whose rendering failed
      * @param e
      */
-    private void handleServerError(Context context, Exception e) {
+    private void handleServerError(Context context, String templateName,
+	    Exception e) {
+	boolean evented = renderEvents.isEnabled();
+	long start = evented ? System.nanoTime() : 0;
 	ResponseStreams outStream = context.finalizeHeaders(Results
 		.internalServerError());
-	String errorTemplate = mustacheFactory
+	if (e instanceof MustacheException) {
+	    Circuit circuit = renderBreaker.getCircuit(templateName);
+	    if (circuit != null) {
+		circuit.failure();
+	    }
+	}
+	String errorTemplate = getErrorPage();
+	exceptionHandler.handleException(e, errorTemplate, outStream);
+	if (evented) {
+	    renderEvents.fire(Type.ERROR, templateName, System.nanoTime()
+		    - start, errorTemplate.length(), e);
+	}
+    }
+
+    /**
+     * @return the error page, rendered from its compiled template
+     */
+    private String getErrorPage() {
+	return mustacheFactoryProvider.get()
 		.compile(
 			MustacheConstant.LOCATION_VIEW_HTML_INTERNAL_SERVER_ERROR)
 		.execute(new StringWriter(), Maps.newHashMap()).toString();
-	exceptionHandler.handleException(e, errorTemplate, outStream);
     }
 
     @Override
@@ -16,9 +16,13 @@
 
 package ninja.mustache.template;
 
+import java.util.Arrays;
+
 import ninja.Context;
 import ninja.Result;
+import ninja.i18n.Lang;
 import ninja.i18n.Messages;
+import ninja.mustache.compiler.CacheKeyed;
 
 import com.github.mustachejava.TemplateFunction;
 import com.google.common.base.Optional;
@@ -26,22 +30,30 @@ import com.google.common.base.Optional;
 /**
  * A Mustache TemplateFunction useful for i18n
  * 
+ * In the output caches, it is keyed by the language of the request, so the
+ * cached outputs translated with it are shared by the requests in the same
+ * language.
+ * 
  * @author kpacha
  */
-public class MustacheTranslateBundleFunction implements TemplateFunction {
+public class MustacheTranslateBundleFunction implements TemplateFunction,
+	CacheKeyed {
 
     private final Messages messages;
+    private final Lang lang;
     private final Context context;
     private final Optional<Result> result;
 
     /**
      * @param messages
+     * @param lang
      * @param context
      * @param result
      */
-    public MustacheTranslateBundleFunction(Messages messages, Context context,
-	    Result result) {
+    public MustacheTranslateBundleFunction(Messages messages, Lang lang,
+	    Context context, Result result) {
 	this.messages = messages;
+	this.lang = lang;
 	this.context = context;
 	this.result = Optional.of(result);
     }
@@ -51,4 +63,10 @@ public class MustacheTranslateBundleFunction implements TemplateFunction {
 	return messages.get(input, context, result).or(input);
     }
 
+    @Override
+    public Object getCacheKey() {
+	return Arrays.asList(MustacheTranslateBundleFunction.class.getName(),
+		lang.getLanguage(context, result).orNull());
+    }
+
 }
@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ninja.mustache.template;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Source of the rendered output of a template, emitted as byte buffers on the
+ * subscriber's demand.
+ *
+ * Mirrors the Reactive Streams Publisher contract (java.util.concurrent.Flow
+ * in Java 9), so adapting it to a reactive library takes a few lines.
+ *
+ * @author kpacha
+ */
+public interface RenderPublisher {
+
+    /**
+     * @param subscriber
+     *            the subscriber receiving the output
+     */
+    void subscribe(RenderSubscriber subscriber);
+
+    /**
+     * Receiver of the output of a {@link RenderPublisher}
+     */
+    interface RenderSubscriber {
+
+	void onSubscribe(RenderSubscription subscription);
+
+	void onNext(ByteBuffer buffer);
+
+	void onError(Throwable throwable);
+
+	void onComplete();
+    }
+
+    /**
+     * Link between a {@link RenderPublisher} and its {@link RenderSubscriber}
+     */
+    interface RenderSubscription {
+
+	/**
+	 * @param n
+	 *            the number of additional buffers the subscriber accepts
+	 */
+	void request(long n);
+
+	void cancel();
+    }
+}
@@ -24,6 +24,40 @@ package ninja.mustache.utils;
 public class MustacheConstant {
 
     public static final String DEFAULT_EXTENSION = ".mustache";
+    public static final String VIEWS_DIRECTORY = "views";
     public static final String LOCATION_VIEW_HTML_INTERNAL_SERVER_ERROR = "views/system/500internalServerError"
 	    + DEFAULT_EXTENSION;
+
+    public static final String PROPERTY_PRECOMPILE = "mustache.precompile";
+    public static final String PROPERTY_PRECOMPILE_PARALLELISM = "mustache.precompile.parallelism";
+    public static final String PROPERTY_CACHE_DIRECTORY = "mustache.cache.directory";
+    public static final String PROPERTY_TEMPLATES_SOURCE = "mustache.templates.source";
+    public static final String PROPERTY_FLATTEN_INHERITANCE = "mustache.compiler.flattenInheritance";
+    public static final String PROPERTY_INLINE_PARTIALS = "mustache.compiler.inlinePartials";
+    public static final String PROPERTY_MINIFY_HTML = "mustache.compiler.minifyHtml";
+    public static final String PROPERTY_PARTIAL_CACHE_SIZE = "mustache.cache.partials.size";
+    public static final String PROPERTY_DONUT_CACHE_SIZE = "mustache.cache.donut.size";
+    public static final String PROPERTY_PARTIAL_CACHE_TTL = "mustache.cache.partials.ttl";
+    public static final String PROPERTY_PARTIAL_CACHE_STALE = "mustache.cache.partials.stale";
+    public static final String PROPERTY_DONUT_CACHE_TTL = "mustache.cache.donut.ttl";
+    public static final String PROPERTY_DONUT_CACHE_STALE = "mustache.cache.donut.stale";
+    public static final String PROPERTY_PARALLEL_THREADS = "mustache.render.parallel.threads";
+    public static final String PROPERTY_RENDER_DEADLINE = "mustache.render.deadline";
+    public static final String PROPERTY_FLUSH_ITEMS = "mustache.render.flush.items";
+    public static final String PROPERTY_FLUSH_CHARS = "mustache.render.flush.chars";
+    public static final String PROPERTY_CHUNK_SIZE = "mustache.render.chunk.size";
+    public static final String PROPERTY_CHUNK_PARALLELISM = "mustache.render.chunk.parallelism";
+    public static final String PROPERTY_PROFILE = "mustache.profile";
+    public static final String PROPERTY_PROFILE_RATE = "mustache.profile.rate";
+    public static final String PROPERTY_PROFILE_ROUTES = "mustache.profile.routes";
+    public static final String PROPERTY_PROFILE_LOOKUPS = "mustache.profile.lookups";
+    public static final String PROPERTY_SLOW_THRESHOLD = "mustache.render.slow.threshold";
+    public static final String PROPERTY_SLOW_SECTIONS = "mustache.render.slow.sections";
+    public static final String PROPERTY_SERVER_TIMING = "mustache.render.serverTiming";
+    public static final String PROPERTY_SERVER_TIMING_HEADER = "mustache.render.serverTiming.header";
+    public static final String PROPERTY_BREAKER_FAILURES = "mustache.breaker.failures";
+    public static final String PROPERTY_BREAKER_WINDOW = "mustache.breaker.window";
+    public static final String PROPERTY_BREAKER_OPEN = "mustache.breaker.open";
+    public static final String PROPERTY_BREAKER_OUTPUTS = "mustache.breaker.outputs";
+    public static final String PROPERTY_BREAKER_OUTPUTS_TEMPLATES = "mustache.breaker.outputs.templates";
 }
@@ -0,0 +1,108 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.mustache;
+
+import static ninja.mustache.TemplateFixtures.write;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import ninja.mustache.LookupStatistics.Lookup;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.Maps;
+
+public class LookupStatisticsTest {
+
+    private static final String PAGE = "views/page.mustache";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    LookupStatistics statistics;
+
+    NinjaMustacheFactory factory;
+
+    Map<String, Object> scope;
+
+    @Before
+    public void setUp() throws Exception {
+	File root = folder.newFolder();
+	write(root, PAGE, "{{#cacheKey}}cached{{/cacheKey}}<h1>{{title}}</h1>"
+		+ "{{#items}}<p>{{name}} {{title}} {{missing}}</p>{{/items}}");
+	statistics = new LookupStatistics();
+	factory = new NinjaMustacheFactory(root);
+	factory.setObjectHandler(new NinjaObjectHandler(0, false, statistics));
+	scope = Maps.newHashMap();
+	scope.put("title", "Title");
+	scope.put("items", Arrays.asList(Collections.singletonMap("name", "a"),
+		Collections.singletonMap("name", "b")));
+    }
+
+    @Test
+    public void testHitsAreCountedByDepth() {
+	assertEquals("<h1>Title</h1><p>a Title </p><p>b Title </p>", render());
+	render();
+
+	Lookup name = statistics.getLookup(PAGE, "name");
+	assertEquals(4, name.getHits());
+	assertEquals(4, name.getHits(0));
+	Lookup title = statistics.getLookup(PAGE, "title");
+	assertEquals(6, title.getHits());
+	assertEquals(4, title.getHits(1));
+	assertEquals(0, title.getMisses());
+    }
+
+    @Test
+    public void testMissesAreRankedByScopesWalked() {
+	render();
+	render();
+
+	List<Lookup> misses = statistics.getMostExpensiveMisses(5);
+	assertEquals(2, misses.size());
+	assertEquals("missing", misses.get(0).getName());
+	assertEquals(4, misses.get(0).getMisses());
+	assertEquals("cacheKey", misses.get(1).getName());
+	assertEquals(2, misses.get(1).getMisses());
+	assertEquals(0, misses.get(1).getHits());
+	assertEquals(1, statistics.getMostExpensiveMisses(1).size());
+    }
+
+    @Test
+    public void testReset() {
+	render();
+	statistics.reset();
+
+	assertEquals(0, statistics.getLookup(PAGE, "title").getHits());
+	assertEquals(0, statistics.getMostExpensiveMisses(5).size());
+	render();
+	assertEquals(3, statistics.getLookup(PAGE, "title").getHits());
+    }
+
+    private String render() {
+	return factory.compile(PAGE).execute(new StringWriter(), scope)
+		.toString();
+    }
+}
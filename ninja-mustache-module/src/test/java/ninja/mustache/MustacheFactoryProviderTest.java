@@ -0,0 +1,154 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.mustache;
+
+import static ninja.mustache.TemplateFixtures.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import ninja.mustache.utils.MustacheConstant;
+import ninja.utils.NinjaProperties;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.Logger;
+
+import com.github.mustachejava.MustacheFactory;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+
+public class MustacheFactoryProviderTest {
+
+    private static final String PAGE = "views/page.mustache";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    NinjaProperties ninjaProperties;
+
+    File source;
+
+    @Before
+    public void setUp() throws Exception {
+	ninjaProperties = mock(NinjaProperties.class);
+	when(ninjaProperties.isProd()).thenReturn(true);
+	when(ninjaProperties.getIntegerWithDefault(anyString(), anyInt()))
+		.thenAnswer(new DefaultAnswer());
+	when(ninjaProperties.getBooleanWithDefault(anyString(), anyBoolean()))
+		.thenAnswer(new DefaultAnswer());
+	source = folder.newFolder("v1");
+	write(source, PAGE, "<p>v1</p>");
+	when(ninjaProperties.get(MustacheConstant.PROPERTY_TEMPLATES_SOURCE))
+		.thenReturn(source.getPath());
+    }
+
+    @Test
+    public void testTemplatesOfTheSourceAreLookedUpFirst() {
+	assertEquals("<p>v1</p>", render(newProvider().get()));
+    }
+
+    @Test
+    public void testArchiveKeepsTheVersionItWasOpenedWith() throws Exception {
+	File archive = archive("v2.zip", PAGE, "<p>v2</p>");
+	TemplateArchive templateArchive = TemplateArchive.open(archive);
+	assertTrue(archive.delete());
+
+	assertTrue(templateArchive.contains(PAGE));
+	assertEquals("<p>v2</p>", render(new NinjaMustacheFactory(
+		templateArchive, "")));
+    }
+
+    @Test
+    public void testDeploySwapsTheCompiledVersion() throws Exception {
+	MustacheFactoryProvider provider = newProvider();
+	MustacheFactory previous = provider.get();
+
+	TemplatePrecompiler.Report report = provider.deploy(
+		archive("v2.zip", PAGE, "<p>v2</p>")).get();
+
+	assertTrue(report.getFailures().isEmpty());
+	MustacheFactory current = provider.get();
+	assertNotSame(previous, current);
+	// compiled before the swap
+	assertNotNull(((NinjaMustacheFactory) current).getCompiledTemplate(PAGE));
+	assertEquals("<p>v2</p>", render(current));
+	assertEquals("<p>v1</p>", render(previous));
+    }
+
+    @Test
+    public void testFailedDeployKeepsTheCurrentVersion() throws Exception {
+	MustacheFactoryProvider provider = newProvider();
+	MustacheFactory previous = provider.get();
+	File broken = folder.newFolder("broken");
+	write(broken, PAGE, "{{#items}}<p>v2</p>");
+
+	TemplatePrecompiler.Report report = provider.deploy(broken).get();
+
+	assertTrue(report.getFailures().containsKey(PAGE));
+	assertSame(previous, provider.get());
+	assertEquals("<p>v1</p>", render(provider.get()));
+    }
+
+    private MustacheFactoryProvider newProvider() {
+	return new MustacheFactoryProvider(mock(Logger.class), ninjaProperties,
+		new LookupStatistics(), RenderEvents.none());
+    }
+
+    private String render(MustacheFactory factory) {
+	return factory.compile(PAGE)
+		.execute(new StringWriter(), Maps.newHashMap()).toString();
+    }
+
+    private File archive(String name, String entry, String content)
+	    throws IOException {
+	File archive = folder.newFile(name);
+	ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(archive));
+	zip.putNextEntry(new ZipEntry(entry));
+	zip.write(content.getBytes(Charsets.UTF_8));
+	zip.closeEntry();
+	zip.close();
+	return archive;
+    }
+
+    /**
+     * Answer the default value given to the properties
+     */
+    private static class DefaultAnswer implements Answer<Object> {
+	@Override
+	public Object answer(InvocationOnMock invocation) {
+	    return invocation.getArguments()[1];
+	}
+    }
+}
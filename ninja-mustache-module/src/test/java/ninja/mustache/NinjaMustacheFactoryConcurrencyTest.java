@@ -0,0 +1,253 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.mustache;
+
+import static ninja.mustache.TemplateFixtures.render;
+import static ninja.mustache.TemplateFixtures.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.mustachejava.Mustache;
+import com.github.mustachejava.MustacheException;
+import com.google.common.collect.Maps;
+
+public class NinjaMustacheFactoryConcurrencyTest {
+
+    private static final int THREADS = 32;
+    private static final String PAGE = "views/page.mustache";
+    private static final String OTHER = "views/other.mustache";
+    private static final String FOOTER = "views/footer.mustache";
+    private static final String PARENT = "views/parent.mustache";
+    private static final String CHILD = "views/child.mustache";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    File root;
+
+    CountingFactory factory;
+
+    ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+	root = folder.newFolder();
+	write(root, PAGE, "<main>{{>views/footer}}</main>");
+	write(root, OTHER, "<aside>{{>views/footer}}</aside>");
+	write(root, FOOTER, "<p>footer</p>");
+	write(root, PARENT,
+		"<ul>{{#children}}{{>views/child}}{{/children}}</ul>");
+	write(root, CHILD,
+		"<li>{{#children}}{{>views/parent}}{{/children}}</li>");
+	factory = new CountingFactory(root);
+	executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown() {
+	executor.shutdownNow();
+    }
+
+    @Test
+    public void testConcurrentFirstRequestsCompileOnce() throws Exception {
+	factory.delay = 50;
+
+	List<Future<Mustache>> compilations = compileAtOnce(PAGE, THREADS);
+
+	Mustache compiled = compilations.get(0).get(5, TimeUnit.SECONDS);
+	for (Future<Mustache> compilation : compilations) {
+	    assertSame(compiled, compilation.get(5, TimeUnit.SECONDS));
+	}
+	assertEquals(1, factory.getParses(PAGE));
+	assertEquals(1, factory.getParses(FOOTER));
+	assertEquals(THREADS, factory.getHits(PAGE));
+	assertEquals("<main><p>footer</p></main>", render(compiled));
+    }
+
+    @Test
+    public void testSharedPartialIsCompiledOnce() throws Exception {
+	factory.delay = 50;
+	List<Future<Mustache>> pages = compileAtOnce(PAGE, THREADS / 2);
+	List<Future<Mustache>> others = compileAtOnce(OTHER, THREADS / 2);
+
+	for (Future<Mustache> page : pages) {
+	    assertEquals("<main><p>footer</p></main>", render(page.get(5,
+		    TimeUnit.SECONDS)));
+	}
+	for (Future<Mustache> other : others) {
+	    assertEquals("<aside><p>footer</p></aside>", render(other.get(5,
+		    TimeUnit.SECONDS)));
+	}
+	assertEquals(1, factory.getParses(FOOTER));
+    }
+
+    @Test
+    public void testWaitersDoNotBlockOtherTemplates() throws Exception {
+	factory.blocked = PAGE;
+	List<Future<Mustache>> pages = compileAtOnce(PAGE, THREADS / 2);
+	assertTrue(factory.parsing.await(5, TimeUnit.SECONDS));
+
+	// the page is stuck in its compilation, the other template is not
+	Future<Mustache> other = executor.submit(new Compile(OTHER));
+	assertEquals("<aside><p>footer</p></aside>", render(other.get(5,
+		TimeUnit.SECONDS)));
+	for (Future<Mustache> page : pages) {
+	    assertFalse(page.isDone());
+	}
+
+	factory.release.countDown();
+	for (Future<Mustache> page : pages) {
+	    assertEquals("<main><p>footer</p></main>", render(page.get(5,
+		    TimeUnit.SECONDS)));
+	}
+	assertEquals(1, factory.getParses(PAGE));
+    }
+
+    @Test
+    public void testFailedCompilationIsReportedAndRetried() throws Exception {
+	write(root, PAGE, "<main>{{#items}}</main>");
+	factory.delay = 50;
+
+	for (Future<Mustache> compilation : compileAtOnce(PAGE, THREADS)) {
+	    try {
+		compilation.get(5, TimeUnit.SECONDS);
+		fail("the template does not compile");
+	    } catch (ExecutionException e) {
+		assertTrue(e.getCause() instanceof MustacheException);
+	    }
+	}
+
+	write(root, PAGE, "<main>{{#items}}{{.}}{{/items}}</main>");
+	assertEquals("<main></main>", render(factory.compile(PAGE)));
+    }
+
+    @Test
+    public void testTemplatesIncludingEachOtherDoNotDeadlock()
+	    throws Exception {
+	factory.barrier = new CyclicBarrier(2);
+	Future<Mustache> parent = executor.submit(new Compile(PARENT));
+	Future<Mustache> child = executor.submit(new Compile(CHILD));
+
+	Map<String, Object> leaf = Maps.newHashMap();
+	leaf.put("children", false);
+	Map<String, Object> scope = Maps.newHashMap();
+	scope.put("children", leaf);
+	assertEquals("<ul><li></li></ul>", parent.get(5, TimeUnit.SECONDS)
+		.execute(new StringWriter(), scope).toString());
+	assertEquals("<li><ul></ul></li>", child.get(5,
+		TimeUnit.SECONDS).execute(new StringWriter(), scope)
+		.toString());
+    }
+
+    private List<Future<Mustache>> compileAtOnce(String name, int threads) {
+	CountDownLatch start = new CountDownLatch(1);
+	List<Future<Mustache>> compilations = new ArrayList<Future<Mustache>>();
+	for (int i = 0; i < threads; i++) {
+	    compilations.add(executor.submit(new Compile(name, start)));
+	}
+	start.countDown();
+	return compilations;
+    }
+
+    private class Compile implements Callable<Mustache> {
+	private final String name;
+	private final CountDownLatch start;
+
+	Compile(String name) {
+	    this(name, new CountDownLatch(0));
+	}
+
+	Compile(String name, CountDownLatch start) {
+	    this.name = name;
+	    this.start = start;
+	}
+
+	@Override
+	public Mustache call() throws Exception {
+	    start.await();
+	    return factory.compile(name);
+	}
+    }
+
+    /**
+     * Factory counting the parses of each template, which can be slowed
+     * down, blocked, or synchronized with another parse
+     */
+    private static class CountingFactory extends NinjaMustacheFactory {
+	private final ConcurrentMap<String, AtomicInteger> parses = new ConcurrentHashMap<String, AtomicInteger>();
+	private final CountDownLatch parsing = new CountDownLatch(1);
+	private final CountDownLatch release = new CountDownLatch(1);
+	private volatile long delay;
+	private volatile String blocked;
+	private volatile CyclicBarrier barrier;
+
+	CountingFactory(File root) {
+	    super(root);
+	}
+
+	int getParses(String name) {
+	    AtomicInteger count = parses.get(name);
+	    return count == null ? 0 : count.get();
+	}
+
+	@Override
+	public Mustache parse(String templateName) {
+	    parses.putIfAbsent(templateName, new AtomicInteger());
+	    parses.get(templateName).incrementAndGet();
+	    try {
+		Thread.sleep(delay);
+		if (templateName.equals(blocked)) {
+		    parsing.countDown();
+		    release.await(5, TimeUnit.SECONDS);
+		}
+		if (barrier != null) {
+		    // both ends of the cycle are loaded before either is
+		    // initialized
+		    barrier.await(5, TimeUnit.SECONDS);
+		}
+	    } catch (Exception e) {
+		throw new IllegalStateException(e);
+	    }
+	    return super.parse(templateName);
+	}
+    }
+}
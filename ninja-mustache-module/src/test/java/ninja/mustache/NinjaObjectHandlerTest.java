@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.mustache;
+
+import static ninja.mustache.TemplateFixtures.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.Maps;
+
+public class NinjaObjectHandlerTest {
+
+    private static final String PAGE = "views/page.mustache";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    File root;
+
+    Map<String, Object> scope;
+
+    @Before
+    public void setUp() throws Exception {
+	root = folder.newFolder("src");
+	write(root, PAGE, "{{#items}}<b>{{.}}</b>{{/items}}");
+	scope = Maps.newHashMap();
+    }
+
+    @Test
+    public void testIteratorIsConsumedLazily() throws Exception {
+	scope.put("items", Arrays.asList("a", "b").iterator());
+	assertEquals("<b>a</b><b>b</b>", render(new NinjaObjectHandler(),
+		new StringWriter()));
+    }
+
+    @Test
+    public void testEnumeration() throws Exception {
+	scope.put("items", Collections.enumeration(Arrays.asList("a", "b")));
+	assertEquals("<b>a</b><b>b</b>", render(new NinjaObjectHandler(),
+		new StringWriter()));
+    }
+
+    @Test
+    public void testCursorIsIteratedAndClosed() throws Exception {
+	Cursor cursor = new Cursor("a", "b", "c");
+	scope.put("items", cursor);
+	assertEquals("<b>a</b><b>b</b><b>c</b>", render(
+		new NinjaObjectHandler(), new StringWriter()));
+	assertTrue(cursor.closed);
+    }
+
+    @Test
+    public void testOutputIsFlushedEveryFlushInterval() throws Exception {
+	scope.put("items", Arrays.asList("a", "b", "c", "d", "e").iterator());
+	CountingWriter writer = new CountingWriter();
+	assertEquals("<b>a</b><b>b</b><b>c</b><b>d</b><b>e</b>",
+		render(new NinjaObjectHandler(2), writer));
+	assertEquals(2, writer.flushes);
+    }
+
+    private String render(NinjaObjectHandler objectHandler, Writer writer) {
+	NinjaMustacheFactory factory = new NinjaMustacheFactory(root);
+	factory.setObjectHandler(objectHandler);
+	return factory.compile(PAGE).execute(writer, scope).toString();
+    }
+
+    public static class Cursor implements Closeable {
+	private final Iterator<String> rows;
+	private boolean closed;
+
+	Cursor(String... rows) {
+	    this.rows = Arrays.asList(rows).iterator();
+	}
+
+	public Iterator<String> iterator() {
+	    return rows;
+	}
+
+	@Override
+	public void close() {
+	    closed = true;
+	}
+    }
+
+    private static class CountingWriter extends StringWriter {
+	private int flushes;
+
+	@Override
+	public void flush() {
+	    flushes++;
+	}
+    }
+}
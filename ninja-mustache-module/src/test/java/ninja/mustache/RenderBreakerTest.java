@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.mustache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import ninja.mustache.RenderBreaker.Circuit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class RenderBreakerTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    RenderBreaker renderBreaker;
+
+    Circuit circuit;
+
+    @Before
+    public void setUp() {
+	// 3 failures within 10 s open the circuit for 30 s
+	renderBreaker = new RenderBreaker(3, 10000, 30000, 2,
+		Collections.singleton("views/page.mustache"));
+	circuit = renderBreaker.getCircuit("views/page.mustache");
+    }
+
+    @Test
+    public void testDisabledWithoutFailures() {
+	assertNull(new RenderBreaker(0, 10000, 30000, 2, Collections
+		.singleton("views/page.mustache")).getCircuit(
+		"views/page.mustache"));
+    }
+
+    @Test
+    public void testOpensAfterFailuresWithinWindow() {
+	circuit.failure(0);
+	circuit.failure(SECOND);
+	assertFalse(circuit.isOpen());
+	circuit.failure(2 * SECOND);
+
+	assertTrue(circuit.isOpen());
+	assertFalse(circuit.allowRender(3 * SECOND));
+	assertEquals(1, circuit.getRejections());
+    }
+
+    @Test
+    public void testFailuresOutsideWindowDoNotOpen() {
+	circuit.failure(0);
+	circuit.failure(6 * SECOND);
+	circuit.failure(11 * SECOND);
+	assertFalse(circuit.isOpen());
+
+	circuit.failure(12 * SECOND);
+	assertTrue(circuit.isOpen());
+    }
+
+    @Test
+    public void testSuccessfulProbeCloses() {
+	open();
+
+	assertFalse(circuit.allowRender(31 * SECOND));
+	assertTrue(circuit.allowRender(32 * SECOND));
+	// a single probe at once
+	assertFalse(circuit.allowRender(33 * SECOND));
+	circuit.success("/", null);
+
+	assertFalse(circuit.isOpen());
+	assertTrue(circuit.allowRender(34 * SECOND));
+    }
+
+    @Test
+    public void testFailedProbeOpensAgain() {
+	open();
+
+	assertTrue(circuit.allowRender(32 * SECOND));
+	circuit.failure(33 * SECOND);
+
+	assertTrue(circuit.isOpen());
+	assertFalse(circuit.allowRender(62 * SECOND));
+	assertTrue(circuit.allowRender(63 * SECOND));
+    }
+
+    @Test
+    public void testLastGoodOutputsAreKeptByKey() {
+	circuit.success("/a", "a");
+	circuit.success("/b", "b");
+	circuit.success("/a", "a2");
+
+	assertEquals("a2", circuit.getLastGoodOutput("/a"));
+	assertEquals("b", circuit.getLastGoodOutput("/b"));
+	assertNull(circuit.getLastGoodOutput("/c"));
+    }
+
+    @Test
+    public void testOutputsOnlyKeptForListedTemplates() {
+	assertTrue(renderBreaker.keepsOutputs("views/page.mustache"));
+	assertFalse(renderBreaker.keepsOutputs("views/account.mustache"));
+	Circuit account = renderBreaker.getCircuit("views/account.mustache");
+	account.success("/account", "mine");
+
+	assertNull(account.getLastGoodOutput("/account"));
+    }
+
+    private void open() {
+	circuit.failure(0);
+	circuit.failure(SECOND);
+	circuit.failure(2 * SECOND);
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.mustache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.mustachejava.Mustache;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class RenderDeadlineTest {
+
+    Mustache mustache;
+
+    Map<String, Object> scope;
+
+    @Before
+    public void setUp() {
+	mustache = new NinjaMustacheFactory().compile(new StringReader(
+		"{{#items}}<li>{{.}}</li>{{/items}}{{^items}}unavailable"
+			+ "{{/items}} {{weather}} {{user}}"), "page");
+	scope = Maps.newHashMap();
+	scope.put("items", SettableFuture.create());
+	scope.put("weather", RenderDeadline.withFallback(
+		SettableFuture.<String> create(), "n/a"));
+	scope.put("user", Futures.immediateFuture("kpacha"));
+    }
+
+    @After
+    public void tearDown() {
+	RenderDeadline.set(null);
+    }
+
+    @Test
+    public void testLateValuesRenderTheirFallback() {
+	RenderDeadline.set(RenderDeadline.after(100, TimeUnit.MILLISECONDS));
+	long start = System.nanoTime();
+
+	assertEquals("unavailable n/a kpacha", render());
+	assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    public void testValuesReadyInTimeAreRendered() {
+	SettableFuture<Object> items = SettableFuture.create();
+	items.set(new String[] { "a", "b" });
+	scope.put("items", items);
+	RenderDeadline.set(RenderDeadline.after(100, TimeUnit.MILLISECONDS));
+
+	assertEquals("<li>a</li><li>b</li> n/a kpacha", render());
+    }
+
+    private String render() {
+	return mustache.execute(new StringWriter(), scope).toString();
+    }
+}
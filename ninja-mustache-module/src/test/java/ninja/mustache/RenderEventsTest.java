@@ -0,0 +1,146 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.mustache;
+
+import static ninja.mustache.TemplateFixtures.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import ninja.mustache.RenderEvent.Type;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.mustachejava.TemplateFunction;
+import com.google.common.collect.Maps;
+
+public class RenderEventsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    File root;
+
+    RecordingListener listener = new RecordingListener();
+
+    RenderEvents renderEvents = RenderEvents.none();
+
+    Map<String, Object> scope;
+
+    @Before
+    public void setUp() throws Exception {
+	root = folder.newFolder();
+	write(root, "views/page.mustache",
+		"<h1>{{#upper}}title{{/upper}}</h1>{{>views/footer}}");
+	write(root, "views/footer.mustache", "<p>footer</p>");
+	scope = Maps.newHashMap();
+	scope.put("upper", new TemplateFunction() {
+	    @Override
+	    public String apply(String input) {
+		return input.toUpperCase();
+	    }
+	});
+    }
+
+    @Test
+    public void testNoEventWithoutListener() {
+	assertTrue(!renderEvents.isEnabled());
+	assertEquals("<h1>TITLE</h1><p>footer</p>", render());
+	assertEquals(0, listener.events.size());
+    }
+
+    @Test
+    public void testCompileFunctionAndPartialEvents() {
+	renderEvents.addListener(listener);
+	assertTrue(renderEvents.isEnabled());
+	assertEquals("<h1>TITLE</h1><p>footer</p>", render());
+
+	assertEquals(2, listener.count(Type.COMPILE));
+	RenderEvent function = listener.get(Type.FUNCTION);
+	assertEquals("upper", function.getName());
+	assertEquals(5, function.getOutputSize());
+	RenderEvent partial = listener.get(Type.PARTIAL);
+	assertEquals("views/footer.mustache", partial.getName());
+	assertEquals(13, partial.getOutputSize());
+	assertTrue(partial.getDuration(TimeUnit.NANOSECONDS) > 0);
+    }
+
+    @Test
+    public void testFailingListenerDoesNotBreakRendering() {
+	RenderEventListener failing = new RenderEventListener() {
+	    @Override
+	    public void onEvent(RenderEvent event) {
+		throw new IllegalStateException();
+	    }
+	};
+	renderEvents.addListener(failing);
+	renderEvents.addListener(listener);
+	assertEquals("<h1>TITLE</h1><p>footer</p>", render());
+	assertEquals(1, listener.count(Type.PARTIAL));
+    }
+
+    @Test
+    public void testListenersAreKeptPerInstance() {
+	new RenderEvents(Collections.singleton(listener));
+	assertEquals("<h1>TITLE</h1><p>footer</p>", render());
+	assertEquals(0, listener.events.size());
+    }
+
+    private String render() {
+	NinjaMustacheFactory factory = new NinjaMustacheFactory(root);
+	factory.setRenderEvents(renderEvents);
+	return factory.compile("views/page.mustache")
+		.execute(new StringWriter(), scope).toString();
+    }
+
+    private static class RecordingListener implements RenderEventListener {
+	private final List<RenderEvent> events = new CopyOnWriteArrayList<RenderEvent>();
+
+	@Override
+	public void onEvent(RenderEvent event) {
+	    events.add(event);
+	}
+
+	int count(Type type) {
+	    int count = 0;
+	    for (RenderEvent event : events) {
+		if (event.getType() == type) {
+		    count++;
+		}
+	    }
+	    return count;
+	}
+
+	RenderEvent get(Type type) {
+	    for (RenderEvent event : events) {
+		if (event.getType() == type) {
+		    return event;
+		}
+	    }
+	    return null;
+	}
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.mustache;
+
+import static ninja.mustache.TemplateFixtures.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import ninja.mustache.RenderProfiler.Frame;
+import ninja.mustache.RenderProfiler.Node;
+import ninja.mustache.compiler.CoalesceTextPass;
+import ninja.mustache.compiler.FlattenInheritancePass;
+import ninja.mustache.compiler.InlinePartialsPass;
+import ninja.mustache.compiler.ParallelRenderPass;
+import ninja.mustache.compiler.ProfilePass;
+import ninja.utils.NinjaProperties;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+public class RenderProfilerTest {
+
+    private static final String PAGE = "views/page.mustache";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    File root;
+
+    NinjaMustacheFactory factory;
+
+    RenderProfiler profiler;
+
+    Map<String, Object> scope;
+
+    @Before
+    public void setUp() throws Exception {
+	root = folder.newFolder();
+	write(root, "views/layout.mustache",
+		"<title>{{title}}</title>{{$body}}{{/body}}");
+	write(root, PAGE, "{{<views/layout}}{{$body}}{{#items}}"
+		+ "{{> views/item}}{{/items}}{{/body}}{{/views/layout}}");
+	write(root, "views/item.mustache", "<li>{{name}}</li>");
+	factory = new NinjaMustacheFactory(root);
+	factory.setObjectHandler(new NinjaObjectHandler(0, true));
+	factory.addCompilerPass(new FlattenInheritancePass());
+	factory.addCompilerPass(new InlinePartialsPass());
+	factory.addCompilerPass(new CoalesceTextPass());
+	factory.addCompilerPass(new ProfilePass());
+	profiler = new RenderProfiler(mock(NinjaProperties.class));
+	scope = Maps.newHashMap();
+	scope.put("title", "Items");
+	scope.put("items", Arrays.asList(ImmutableMap.of("name", "a"),
+		ImmutableMap.of("name", "b")));
+    }
+
+    @Test
+    public void testCallTreeFollowsTemplates() throws Exception {
+	profiler.setRate(1);
+	assertEquals("<title>Items</title><li>a</li><li>b</li>", render());
+
+	Node page = profiler.getCallTree().getChild(PAGE);
+	assertEquals(1, page.getCount());
+	Node title = page.getChild("views/layout.mustache").getChild(
+		"{{title}}");
+	assertEquals(1, title.getChild("lookup title").getCount());
+	assertEquals(1, title.getChild("escape").getCount());
+	Node items = page.getChild("{{#items}}");
+	assertEquals(1, items.getChild("lookup items").getCount());
+	Node name = items.getChild("views/item.mustache").getChild("{{name}}");
+	assertEquals(2, name.getCount());
+	assertTrue(page.getTime(TimeUnit.NANOSECONDS) >= items
+		.getTime(TimeUnit.NANOSECONDS));
+
+	StringWriter folded = new StringWriter();
+	profiler.writeFoldedStacks(folded);
+	assertTrue(folded.toString().contains(
+		"\nviews/page.mustache;{{#items}};views/item.mustache;"
+			+ "{{name}};lookup name "));
+    }
+
+    @Test
+    public void testSectionsOfParallelPageAreProfiled() throws Exception {
+	write(root, "views/parallel.mustache", "{{%PARALLEL}}{{#a}}{{name}}"
+		+ "{{/a}}{{#b}}{{name}}{{/b}}");
+	ExecutorService executor = Executors.newFixedThreadPool(2);
+	factory = new NinjaMustacheFactory(root);
+	factory.setObjectHandler(new NinjaObjectHandler(0, true));
+	factory.addCompilerPass(new ParallelRenderPass(executor));
+	factory.addCompilerPass(new ProfilePass());
+	scope.put("a", ImmutableMap.of("name", "a"));
+	scope.put("b", ImmutableMap.of("name", "b"));
+	profiler.setRate(1);
+	Frame frame = profiler.start(null, "views/parallel.mustache");
+	try {
+	    assertEquals("ab", factory.compile("views/parallel.mustache")
+		    .execute(new StringWriter(), scope).toString());
+	} finally {
+	    RenderProfiler.stop(frame);
+	    executor.shutdownNow();
+	}
+
+	Node parallel = profiler.getCallTree()
+		.getChild("views/parallel.mustache").getChild("{{%PARALLEL}}");
+	assertEquals(1, parallel.getChild("{{#a}}").getCount());
+	assertEquals(1, parallel.getChild("{{#b}}").getChild("{{name}}")
+		.getCount());
+    }
+
+    @Test
+    public void testOnlyProfiledRoutesAreProfiled() throws Exception {
+	profiler.addRoute("/items");
+	render("/other");
+	assertTrue(profiler.getCallTree().getChildren().isEmpty());
+
+	render("/items");
+	assertEquals(1, profiler.getCallTree().getChild(PAGE).getCount());
+
+	profiler.reset();
+	assertNull(profiler.getCallTree().getChild(PAGE));
+    }
+
+    private String render() {
+	return render(null);
+    }
+
+    private String render(String route) {
+	Frame frame = profiler.start(route, PAGE);
+	try {
+	    return factory.compile(PAGE).execute(new StringWriter(), scope)
+		    .toString();
+	} finally {
+	    RenderProfiler.stop(frame);
+	}
+    }
+}
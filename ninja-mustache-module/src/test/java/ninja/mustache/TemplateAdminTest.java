@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.mustache;
+
+import static ninja.mustache.TemplateFixtures.render;
+import static ninja.mustache.TemplateFixtures.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import ninja.mustache.TemplateAdmin.TemplateInfo;
+import ninja.mustache.compiler.CachePartialsPass;
+import ninja.mustache.compiler.FlattenInheritancePass;
+import ninja.mustache.compiler.InlinePartialsPass;
+import ninja.mustache.compiler.OutputCache;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.mustachejava.Mustache;
+import com.github.mustachejava.MustacheException;
+import com.github.mustachejava.MustacheFactory;
+import com.google.inject.Provider;
+
+public class TemplateAdminTest {
+
+    private static final String PAGE = "views/page.mustache";
+    private static final String FOOTER = "views/footer.mustache";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    File root;
+
+    NinjaMustacheFactory factory;
+
+    TemplateAdmin templateAdmin;
+
+    @Before
+    public void setUp() throws Exception {
+	root = folder.newFolder();
+	write(root, PAGE, "<main>{{>views/footer}}</main>");
+	write(root, FOOTER, "<p>v1</p>");
+	factory = new NinjaMustacheFactory(root);
+	factory.addCompilerPass(new InlinePartialsPass());
+	templateAdmin = new TemplateAdmin(new Provider<MustacheFactory>() {
+	    @Override
+	    public MustacheFactory get() {
+		return factory;
+	    }
+	});
+    }
+
+    @Test
+    public void testListCompiledTemplates() {
+	render(factory.compile(PAGE));
+	render(factory.compile(PAGE));
+
+	List<TemplateInfo> templates = templateAdmin.getTemplates();
+	// the footer is inlined, not compiled on its own
+	assertEquals(1, templates.size());
+	assertEquals(PAGE, templates.get(0).getName());
+	assertEquals(2, templates.get(0).getHits());
+	assertTrue(templates.get(0).getSize() > 0);
+	assertTrue(templates.get(0).getIncludes().contains(FOOTER));
+    }
+
+    @Test
+    public void testRecompileWithDependentsSwapsNewVersion() throws Exception {
+	Mustache inFlight = factory.compile(PAGE);
+	assertEquals("<main><p>v1</p></main>", render(inFlight));
+
+	write(root, FOOTER, "<p>v2</p>");
+	assertEquals(Arrays.asList(FOOTER, PAGE),
+		templateAdmin.recompile(FOOTER, true));
+
+	assertEquals("<main><p>v2</p></main>", render(factory.compile(PAGE)));
+	assertEquals("<main><p>v1</p></main>", render(inFlight));
+    }
+
+    @Test
+    public void testRecompileWithDependentsThroughInlinedPartials()
+	    throws Exception {
+	String copy = "views/copy.mustache";
+	write(root, FOOTER, "<p>{{>views/copy}}</p>");
+	write(root, copy, "v1");
+	assertEquals("<main><p>v1</p></main>", render(factory.compile(PAGE)));
+
+	write(root, copy, "v2");
+	assertEquals(Arrays.asList(copy, PAGE),
+		templateAdmin.recompile(copy, true));
+	assertEquals("<main><p>v2</p></main>", render(factory.compile(PAGE)));
+    }
+
+    @Test
+    public void testRecompileWithDependentsThroughLayouts() throws Exception {
+	String header = "views/header.mustache";
+	write(root, "views/layouts/defaultLayout.mustache",
+		"{{>views/header}}{{$content}}{{/content}}");
+	write(root, header, "<h1>v1</h1>");
+	write(root, PAGE, "{{<views/layouts/defaultLayout}}{{$content}}"
+		+ "<main/>{{/content}}{{/views/layouts/defaultLayout}}");
+	// the header stays a partial of the flattened page
+	factory = new NinjaMustacheFactory(root);
+	factory.addCompilerPass(new FlattenInheritancePass());
+	assertEquals("<h1>v1</h1><main/>", render(factory.compile(PAGE)));
+
+	write(root, header, "<h1>v2</h1>");
+	assertEquals(Arrays.asList(header, PAGE),
+		templateAdmin.recompile(header, true));
+	assertEquals("<h1>v2</h1><main/>", render(factory.compile(PAGE)));
+    }
+
+    @Test
+    public void testRecompileAloneKeepsDependents() throws Exception {
+	factory.compile(PAGE);
+	write(root, FOOTER, "<p>v2</p>");
+	assertEquals(Arrays.asList(FOOTER),
+		templateAdmin.recompile(FOOTER, false));
+
+	assertEquals("<p>v2</p>", render(factory.compile(FOOTER)));
+	assertEquals("<main><p>v1</p></main>", render(factory.compile(PAGE)));
+    }
+
+    @Test
+    public void testRecompileFindsTemplateAddedSinceMissing() throws Exception {
+	String header = "views/header.mustache";
+	try {
+	    factory.compile(header);
+	} catch (MustacheException e) {
+	    // not there yet
+	}
+	write(root, header, "<h1>new</h1>");
+	assertEquals(Arrays.asList(header),
+		templateAdmin.recompile(header, false));
+	assertEquals("<h1>new</h1>", render(factory.compile(header)));
+    }
+
+    @Test
+    public void testEvictWithDependents() throws Exception {
+	factory.compile(PAGE);
+	write(root, FOOTER, "<p>v2</p>");
+	templateAdmin.evict(FOOTER, true);
+
+	assertTrue(factory.getCompiledTemplates().isEmpty());
+	assertEquals("<main><p>v2</p></main>", render(factory.compile(PAGE)));
+    }
+
+    @Test
+    public void testOutputCaches() throws Exception {
+	write(root, FOOTER, "{{%CACHE}}<p>v1</p>");
+	factory.addCompilerPass(new CachePartialsPass(10));
+	render(factory.compile(PAGE));
+	render(factory.compile(PAGE));
+
+	Map<String, OutputCache> outputCaches = templateAdmin.getOutputCaches();
+	assertEquals(Collections.singleton("partials"), outputCaches.keySet());
+	assertEquals(1, outputCaches.get("partials").getSize());
+	assertEquals(1, outputCaches.get("partials").getHits());
+	assertEquals(1, outputCaches.get("partials").getMisses());
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.mustache;
+
+import static ninja.mustache.TemplateFixtures.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+
+public class TemplateDiskCacheTest {
+
+    private static final String PAGE = "views/page.mustache";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Logger logger = LoggerFactory.getLogger(TemplateDiskCacheTest.class);
+
+    File root;
+
+    File cacheDirectory;
+
+    Map<String, Object> scope;
+
+    @Before
+    public void setUp() throws Exception {
+	root = folder.newFolder("src");
+	cacheDirectory = folder.newFolder("cache");
+	write(root, "views/layout.mustache",
+		"<title>{{$title}}default{{/title}}</title>{{> views/footer}}");
+	write(root, "views/footer.mustache", "<footer>{{year}}</footer>");
+	write(root, PAGE, "{{<views/layout}}{{$title}}{{#items}}<b>{{.}}</b>"
+		+ "{{/items}}{{^items}}none{{/items}}{{{raw}}}{{/title}}"
+		+ "{{/views/layout}}");
+	scope = Maps.newHashMap();
+	scope.put("items", Arrays.asList("a", "b"));
+	scope.put("raw", "<i>");
+	scope.put("year", 2013);
+    }
+
+    @Test
+    public void testRenderFromCachedParse() throws Exception {
+	String expected = "<title><b>a</b><b>b</b><i></title><footer>2013</footer>";
+	assertEquals(expected, render(newFactory()));
+
+	TemplateDiskCache diskCache = new TemplateDiskCache(cacheDirectory,
+		logger);
+	assertNotNull(diskCache.read(PAGE, read(PAGE)));
+
+	assertEquals(expected, render(newFactory()));
+    }
+
+    @Test
+    public void testStaleEntriesAreRebuilt() throws Exception {
+	render(newFactory());
+	write(root, PAGE, "{{#items}}{{.}}{{/items}}");
+
+	TemplateDiskCache diskCache = new TemplateDiskCache(cacheDirectory,
+		logger);
+	assertNull(diskCache.read(PAGE, read(PAGE)));
+
+	assertEquals("ab", render(newFactory()));
+	assertNotNull(diskCache.read(PAGE, read(PAGE)));
+    }
+
+    @Test
+    public void testModuleVersionInvalidatesEntries() throws Exception {
+	render(newFactory());
+
+	TemplateDiskCache diskCache = new TemplateDiskCache(cacheDirectory,
+		"another version", logger);
+	assertNull(diskCache.read(PAGE, read(PAGE)));
+    }
+
+    private String render(NinjaMustacheFactory factory) {
+	return factory.compile(PAGE).execute(new StringWriter(), scope)
+		.toString();
+    }
+
+    private NinjaMustacheFactory newFactory() {
+	NinjaMustacheFactory factory = new NinjaMustacheFactory(root);
+	factory.setDiskCache(new TemplateDiskCache(cacheDirectory, logger));
+	return factory;
+    }
+
+    private String read(String name) throws IOException {
+	return com.google.common.io.Files.toString(new File(root, name),
+		com.google.common.base.Charsets.UTF_8);
+    }
+}
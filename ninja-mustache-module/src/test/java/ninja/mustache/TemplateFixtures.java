@@ -0,0 +1,71 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.mustache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Collections;
+
+import com.github.mustachejava.Mustache;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Template fixtures shared by the tests, written in UTF-8 as the
+ * {@link TemplateLocator} reads them.
+ *
+ * @author kpacha
+ */
+public final class TemplateFixtures {
+
+    private TemplateFixtures() {
+    }
+
+    /**
+     * Write a template, creating its directories
+     *
+     * @param root
+     * @param name
+     * @param content
+     * @return the file of the template
+     * @throws IOException
+     */
+    public static File write(File root, String name, String content)
+	    throws IOException {
+	File file = new File(root, name);
+	Files.createParentDirs(file);
+	Files.write(content, file, Charsets.UTF_8);
+	return file;
+    }
+
+    /**
+     * @param mustache
+     * @return the output of the template, rendered with an empty scope
+     */
+    public static String render(Mustache mustache) {
+	return render(mustache, Collections.emptyMap());
+    }
+
+    /**
+     * @param mustache
+     * @param scope
+     * @return the output of the template
+     */
+    public static String render(Mustache mustache, Object scope) {
+	return mustache.execute(new StringWriter(), scope).toString();
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.mustache;
+
+import static ninja.mustache.TemplateFixtures.write;
+import static ninja.mustache.TemplateLocator.MISSING_SIZE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.mustachejava.MustacheException;
+import com.google.common.io.CharStreams;
+
+public class TemplateLocatorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    File root;
+
+    TemplateLocator locator;
+
+    @Before
+    public void setUp() throws Exception {
+	root = folder.newFolder("src");
+	write(root, "views/layout/header.mustache", "header");
+	locator = new TemplateLocator(root, "");
+    }
+
+    @Test
+    public void testLocateFromFileRoot() throws Exception {
+	assertEquals(new File(root, "views/layout/header.mustache"),
+		locator.locate("views/layout/header.mustache"));
+	assertEquals("header", CharStreams.toString(locator
+		.getReader("views/layout/header.mustache")));
+    }
+
+    @Test
+    public void testTemplatesAreReadAsUtf8() throws Exception {
+	write(root, "views/layout/title.mustache", "Caf\u00e9 \u5fcd\u8005");
+	assertEquals("Caf\u00e9 \u5fcd\u8005", CharStreams.toString(locator
+		.getReader("views/layout/title.mustache")));
+    }
+
+    @Test
+    public void testLocateFromClasspathRoot() throws Exception {
+	assertTrue(locator.locate("views/system/404notFound.mustache")
+		.toString().startsWith("file:"));
+    }
+
+    @Test
+    public void testMissesAreRemembered() throws Exception {
+	assertNull(locator.locate("views/layout/footer.mustache"));
+	write(root, "views/layout/footer.mustache", "footer");
+	assertNull(locator.locate("views/layout/footer.mustache"));
+	assertTrue(locator.getMissingTemplateNames().contains(
+		"views/layout/footer.mustache"));
+    }
+
+    @Test
+    public void testForgottenMissIsProbedAgain() throws Exception {
+	assertNull(locator.locate("views/layout/footer.mustache"));
+	write(root, "views/layout/footer.mustache", "footer");
+	locator.forget("views/layout/footer.mustache");
+	assertEquals(new File(root, "views/layout/footer.mustache"),
+		locator.locate("views/layout/footer.mustache"));
+	assertTrue(locator.getMissingTemplateNames().isEmpty());
+    }
+
+    @Test
+    public void testMissesAreBounded() {
+	for (int i = 0; i < 2 * MISSING_SIZE; i++) {
+	    assertNull(locator.locate("views/missing" + i + ".mustache"));
+	}
+	assertTrue(locator.getMissingTemplateNames().size() <= MISSING_SIZE);
+    }
+
+    @Test(expected = MustacheException.class)
+    public void testGetReaderOfMissingTemplate() {
+	locator.getReader("views/layout/footer.mustache");
+    }
+
+    @Test
+    public void testIndex() throws Exception {
+	write(root, "views/ApplicationController/index.mustache", "index");
+	locator.index();
+	assertTrue(locator.getTemplateNames().contains(
+		"views/ApplicationController/index.mustache"));
+	assertTrue(locator.getTemplateNames().contains(
+		"views/system/500internalServerError.mustache"));
+	// the first root holding a template wins
+	assertEquals(new File(root, "views/layout/header.mustache"),
+		locator.locate("views/layout/header.mustache"));
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.mustache;
+
+import static ninja.mustache.TemplateFixtures.render;
+import static ninja.mustache.TemplateFixtures.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.mustachejava.DefaultMustacheFactory;
+
+public class TemplatePrecompilerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPrecompileIndexedTemplates() {
+	NinjaMustacheFactory factory = new NinjaMustacheFactory("");
+	factory.getTemplateLocator().index();
+
+	TemplatePrecompiler.Report report = new TemplatePrecompiler(factory, 4)
+		.precompile(factory.getTemplateLocator().getTemplateNames());
+
+	assertEquals(3, report.getTemplates());
+	assertEquals(4, report.getParallelism());
+	assertTrue(report.getFailures().isEmpty());
+	assertSame(factory.compile("views/system/404notFound.mustache"),
+		factory.compile("views/system/404notFound.mustache"));
+    }
+
+    @Test(timeout = 10000)
+    public void testTemplatesIncludingEachOtherArePrecompiled()
+	    throws Exception {
+	File root = folder.newFolder();
+	write(root, "views/parent.mustache",
+		"<ul>{{#children}}{{>views/child}}{{/children}}</ul>");
+	write(root, "views/child.mustache",
+		"<li>{{#children}}{{>views/parent}}{{/children}}</li>");
+
+	for (int i = 0; i < 20; i++) {
+	    NinjaMustacheFactory factory = new NinjaMustacheFactory(root);
+	    TemplatePrecompiler.Report report = new TemplatePrecompiler(
+		    factory, 2).precompile(Arrays.asList(
+		    "views/parent.mustache", "views/child.mustache"));
+	    assertTrue(report.getFailures().isEmpty());
+	    assertEquals("<ul></ul>",
+		    render(factory.compile("views/parent.mustache")));
+	}
+    }
+
+    @Test
+    public void testOtherFactoriesAreCompiledOnASingleThread() {
+	TemplatePrecompiler.Report report = new TemplatePrecompiler(
+		new DefaultMustacheFactory(), 4).precompile(Arrays
+		.asList("views/system/404notFound.mustache"));
+
+	assertEquals(1, report.getParallelism());
+	assertTrue(report.getFailures().isEmpty());
+    }
+
+    @Test
+    public void testPrecompileReportsFailures() {
+	NinjaMustacheFactory factory = new NinjaMustacheFactory("");
+
+	TemplatePrecompiler.Report report = new TemplatePrecompiler(factory, 2)
+		.precompile(Arrays.asList("views/system/404notFound.mustache",
+			"views/system/missing.mustache"));
+
+	assertEquals(Collections.singleton("views/system/missing.mustache"),
+		report.getFailures().keySet());
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.mustache.compiler;
+
+import static ninja.mustache.TemplateFixtures.write;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.Map;
+
+import ninja.mustache.NinjaMustacheFactory;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.Maps;
+
+public class CachePartialsPassTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    File root;
+
+    NinjaMustacheFactory factory;
+
+    int renders;
+
+    Object counter = new Object() {
+	@Override
+	public String toString() {
+	    return String.valueOf(++renders);
+	}
+    };
+
+    @Before
+    public void setUp() throws Exception {
+	root = folder.newFolder();
+	write(root, "views/nav.mustache", "{{%CACHE lang contextPath}}"
+		+ "<a href=\"{{contextPath}}/\">{{lang}} {{counter}}</a>");
+	write(root, "views/footer.mustache",
+		"{{%CACHE}}<footer>{{> views/year}}"
+			+ "</footer>");
+	write(root, "views/year.mustache", "{{#year}}{{counter}}{{/year}}");
+	write(root, "views/page.mustache",
+		"{{> views/nav}}<p>{{user}}</p>{{> views/footer}}");
+	factory = new NinjaMustacheFactory(root);
+	factory.addCompilerPass(new InlinePartialsPass());
+	factory.addCompilerPass(new CachePartialsPass(100));
+	factory.addCompilerPass(new CoalesceTextPass());
+    }
+
+    @Test
+    public void testOutputIsCachedPerDeclaredValues() {
+	assertEquals("<a href=\"/app/\">en 1</a><p>kpacha</p><footer>2</footer>",
+		render("en", "kpacha", 2013));
+	assertEquals("<a href=\"/app/\">en 1</a><p>ninja</p><footer>2</footer>",
+		render("en", "ninja", 2013));
+	assertEquals("<a href=\"/app/\">es 3</a><p>ninja</p><footer>2</footer>",
+		render("es", "ninja", 2013));
+	assertEquals(3, renders);
+    }
+
+    @Test
+    public void testDependenciesAreDetected() {
+	render("en", "kpacha", 2013);
+	assertEquals("<a href=\"/app/\">en 1</a><p>kpacha</p><footer>3</footer>",
+		render("en", "kpacha", 2014));
+	assertEquals(3, renders);
+    }
+
+    @Test
+    public void testStalePartialIsRefreshedWithTheValuesOfItsRequest()
+	    throws Exception {
+	write(root, "views/hello.mustache",
+		"{{%CACHE lang}}{{lang}} {{visitor}}");
+	write(root, "views/greeting.mustache", "<p>{{> views/hello}}</p>");
+	OutputCache outputCache = new OutputCache(100, 50, 60000);
+	factory = new NinjaMustacheFactory(root);
+	factory.addCompilerPass(new CachePartialsPass(outputCache));
+	assertEquals("<p>en a</p>", greet("a"));
+	assertEquals("<p>en a</p>", greet("b"));
+	Thread.sleep(100);
+	assertEquals("<p>en c</p>", greet("c"));
+	assertEquals("<p>en c</p>", greet("d"));
+	assertEquals(1, outputCache.getRefreshes());
+	assertEquals(2, outputCache.getHits());
+    }
+
+    private String greet(String visitor) {
+	Map<String, Object> scope = Maps.newHashMap();
+	scope.put("lang", "en");
+	scope.put("visitor", visitor);
+	return factory.compile("views/greeting.mustache")
+		.execute(new StringWriter(), scope).toString();
+    }
+
+    private String render(String lang, String user, int year) {
+	Map<String, Object> scope = Maps.newHashMap();
+	scope.put("lang", lang);
+	scope.put("contextPath", "/app");
+	scope.put("user", user);
+	scope.put("year", year);
+	scope.put("counter", counter);
+	return factory.compile("views/page.mustache")
+		.execute(new StringWriter(), scope).toString();
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.mustache.compiler;
+
+import static ninja.mustache.TemplateFixtures.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import ninja.mustache.NinjaMustacheFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.Maps;
+
+public class ChunkedSectionPassTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    ForkJoinPool pool;
+
+    NinjaMustacheFactory factory;
+
+    @Before
+    public void setUp() throws Exception {
+	File root = folder.newFolder();
+	write(root, "views/report.mustache",
+		"{{%CHUNKED rows}}<table>{{#rows}}<tr>{{value}}</tr>"
+			+ "{{/rows}}</table>{{#others}}{{value}}{{/others}}");
+	pool = new ForkJoinPool(4);
+	factory = new NinjaMustacheFactory(root);
+	factory.addCompilerPass(new ChunkedSectionPass(pool, 10));
+    }
+
+    @After
+    public void tearDown() {
+	pool.shutdownNow();
+    }
+
+    @Test
+    public void testLargeListIsRenderedInChunksInOrder() {
+	Set<String> threads = Collections
+		.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	List<Row> rows = new ArrayList<Row>();
+	StringBuilder expected = new StringBuilder("<table>");
+	for (int i = 0; i < 95; i++) {
+	    rows.add(new Row(i, threads));
+	    expected.append("<tr>").append(i).append("</tr>");
+	}
+	expected.append("</table>");
+	Map<String, Object> scope = Maps.newHashMap();
+	scope.put("rows", rows);
+
+	assertEquals(expected.toString(), render(scope));
+	assertTrue(threads.size() > 1);
+    }
+
+    @Test
+    public void testOnlyDeclaredSectionsAreChunked() {
+	Set<String> threads = Collections
+		.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	List<Row> others = new ArrayList<Row>();
+	for (int i = 0; i < 50; i++) {
+	    others.add(new Row(i, threads));
+	}
+	Map<String, Object> scope = Maps.newHashMap();
+	scope.put("others", others);
+
+	render(scope);
+	assertEquals(1, threads.size());
+	assertTrue(threads.contains(Thread.currentThread().getName()));
+    }
+
+    private String render(Map<String, Object> scope) {
+	return factory.compile("views/report.mustache")
+		.execute(new StringWriter(), scope).toString();
+    }
+
+    public static class Row {
+	private final int value;
+	private final Set<String> threads;
+
+	Row(int value, Set<String> threads) {
+	    this.value = value;
+	    this.threads = threads;
+	}
+
+	public int value() throws InterruptedException {
+	    threads.add(Thread.currentThread().getName());
+	    Thread.sleep(1);
+	    return value;
+	}
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.mustache.compiler;
+
+import static ninja.mustache.TemplateFixtures.write;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.Map;
+
+import ninja.Context;
+import ninja.Result;
+import ninja.i18n.Lang;
+import ninja.i18n.Messages;
+import ninja.mustache.NinjaMustacheFactory;
+import ninja.mustache.template.MustacheTranslateBundleFunction;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mockito;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+public class DonutCachePassTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    File root;
+
+    NinjaMustacheFactory factory;
+
+    int renders;
+
+    Object counter = new Object() {
+	@Override
+	public String toString() {
+	    return String.valueOf(++renders);
+	}
+    };
+
+    @Before
+    public void setUp() throws Exception {
+	root = folder.newFolder();
+	write(root, "views/page.mustache", "{{%DONUT session}}<h1>{{title}} "
+		+ "{{counter}}</h1>{{#session}}<p>Hi {{username}}</p>"
+		+ "{{/session}}{{#admin}}<a>{{menu}}</a>{{/admin}}<footer/>");
+	factory = new NinjaMustacheFactory(root);
+	factory.addCompilerPass(new CoalesceTextPass());
+	factory.addCompilerPass(new DonutCachePass(100));
+    }
+
+    @Test
+    public void testOnlyHolesAreRenderedOnEveryRequest() {
+	assertEquals("<h1>Home 1</h1><p>Hi kpacha</p><footer/>",
+		render("Home", "kpacha", false));
+	assertEquals("<h1>Home 2</h1><p>Hi ninja</p><footer/>",
+		render("Home", "ninja", false));
+	assertEquals("<h1>Home 2</h1><p>Hi mustache</p><footer/>",
+		render("Home", "mustache", false));
+	assertEquals("<h1>About 3</h1><p>Hi mustache</p><footer/>",
+		render("About", "mustache", false));
+    }
+
+    @Test
+    public void testShellIsKeyedByNewlyReadVariables() {
+	render("Home", "kpacha", false);
+	render("Home", "kpacha", false);
+	assertEquals("<h1>Home 2</h1><p>Hi kpacha</p><a>one</a><footer/>",
+		render("Home", "kpacha", true));
+	assertEquals("<h1>Home 2</h1><p>Hi kpacha</p><a>two</a><footer/>",
+		render("Home", "kpacha", true, "two"));
+	assertEquals("<h1>Home 2</h1><p>Hi kpacha</p><footer/>",
+		render("Home", "kpacha", false));
+    }
+
+    @Test
+    public void testTranslatedShellIsKeyedByLanguage() throws Exception {
+	write(root, "views/i18n.mustache", "{{%DONUT session}}<h1>"
+		+ "{{#i18n}}home{{/i18n}} {{counter}}</h1>{{#session}}<p>Hi "
+		+ "{{username}}</p>{{/session}}");
+	assertEquals("<h1>Home 1</h1><p>Hi kpacha</p>",
+		translate("en", "kpacha"));
+	assertEquals("<h1>Home 2</h1><p>Hi ninja</p>", translate("en", "ninja"));
+	assertEquals("<h1>Home 2</h1><p>Hi mustache</p>",
+		translate("en", "mustache"));
+	assertEquals("<h1>Inicio 3</h1><p>Hi ninja</p>",
+		translate("es", "ninja"));
+	assertEquals("<h1>Home 2</h1><p>Hi kpacha</p>",
+		translate("en", "kpacha"));
+    }
+
+    /**
+     * Render the translated page with a new i18n function, as every request
+     * gets its own
+     */
+    private String translate(String language, String username) {
+	Context context = mock(Context.class);
+	Result result = mock(Result.class);
+	Lang lang = mock(Lang.class);
+	when(lang.getLanguage(context, Optional.of(result))).thenReturn(
+		Optional.of(language));
+	Messages messages = mock(Messages.class);
+	when(messages.get(Mockito.eq("home"), Mockito.eq(context),
+		Mockito.eq(Optional.of(result)))).thenReturn(
+		Optional.of("en".equals(language) ? "Home" : "Inicio"));
+	Map<String, Object> scope = Maps.newHashMap();
+	scope.put("i18n", new MustacheTranslateBundleFunction(messages, lang,
+		context, result));
+	scope.put("counter", counter);
+	scope.put("session", ImmutableMap.of("username", username));
+	return factory.compile("views/i18n.mustache")
+		.execute(new StringWriter(), scope).toString();
+    }
+
+    private String render(String title, String username, boolean admin) {
+	return render(title, username, admin, "one");
+    }
+
+    private String render(String title, String username, boolean admin,
+	    String menu) {
+	Map<String, Object> scope = Maps.newHashMap();
+	scope.put("title", title);
+	scope.put("counter", counter);
+	scope.put("session", ImmutableMap.of("username", username));
+	scope.put("admin", admin);
+	scope.put("menu", menu);
+	return factory.compile("views/page.mustache")
+		.execute(new StringWriter(), scope).toString();
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.mustache.compiler;
+
+import static ninja.mustache.TemplateFixtures.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Map;
+
+import ninja.mustache.NinjaMustacheFactory;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.mustachejava.Code;
+import com.github.mustachejava.MustacheException;
+import com.github.mustachejava.codes.ExtendNameCode;
+import com.google.common.collect.Maps;
+
+public class FlattenInheritancePassTest {
+
+    private static final String PAGE = "views/page.mustache";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    File root;
+
+    Map<String, Object> scope;
+
+    @Before
+    public void setUp() throws Exception {
+	root = folder.newFolder();
+	write(root, "views/base.mustache",
+		"<html><head>{{$head}}<title>{{$title}}"
+			+ "base{{/title}}</title>{{/head}}</head>"
+			+ "<body>{{$body}}empty{{/body}}{{> views/footer}}"
+			+ "</body></html>");
+	write(root, "views/layout.mustache", "{{<views/base}}{{$title}}layout"
+		+ "{{/title}}{{$body}}<nav>{{$nav}}{{user}}{{/nav}}</nav>"
+		+ "{{$content}}{{/content}}{{/body}}{{/views/base}}");
+	write(root, "views/footer.mustache", "<footer>{{year}}</footer>");
+	write(root, PAGE, "{{<views/layout}}{{$title}}page{{/title}}"
+		+ "{{$content}}<ul>{{#items}}<li>{{.}}</li>{{/items}}</ul>"
+		+ "{{/content}}{{/views/layout}}");
+	scope = Maps.newHashMap();
+	scope.put("items", Arrays.asList("a", "b"));
+	scope.put("user", "kpacha");
+	scope.put("year", 2013);
+    }
+
+    @Test
+    public void testFlattenedTemplateRendersLikeTheInheritedOne() {
+	String expected = "<html><head><title>page</title></head><body>"
+		+ "<nav>kpacha</nav><ul><li>a</li><li>b</li></ul>"
+		+ "<footer>2013</footer></body></html>";
+	assertEquals(expected, render(new NinjaMustacheFactory(root)));
+	assertEquals(expected, render(newFactory()));
+    }
+
+    @Test
+    public void testFlattenedTemplateHasNoInheritanceLeft() {
+	Code[] codes = newFactory().compile(PAGE).getCodes();
+	Code previous = null;
+	for (Code code : codes) {
+	    assertFalse(code instanceof LayoutExtendCode);
+	    assertFalse(code instanceof ExtendNameCode);
+	    assertFalse(previous instanceof TextCode
+		    && code instanceof TextCode);
+	    previous = code;
+	}
+	assertTrue(codes[0] instanceof TextCode);
+	assertEquals("<html><head><title>page</title></head><body><nav>",
+		((TextCode) codes[0]).getText());
+    }
+
+    @Test(expected = MustacheException.class)
+    public void testCircularInheritanceIsRejected() throws Exception {
+	write(root, "views/a.mustache", "{{<views/b}}{{/views/b}}");
+	write(root, "views/b.mustache", "{{<views/a}}{{/views/a}}");
+	newFactory().compile("views/a.mustache");
+    }
+
+    private String render(NinjaMustacheFactory factory) {
+	return factory.compile(PAGE).execute(new StringWriter(), scope)
+		.toString();
+    }
+
+    private NinjaMustacheFactory newFactory() {
+	NinjaMustacheFactory factory = new NinjaMustacheFactory(root);
+	factory.addCompilerPass(new FlattenInheritancePass());
+	factory.addCompilerPass(new CoalesceTextPass());
+	return factory;
+    }
+}
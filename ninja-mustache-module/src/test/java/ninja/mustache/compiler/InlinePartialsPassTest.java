@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.mustache.compiler;
+
+import static ninja.mustache.TemplateFixtures.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import ninja.mustache.NinjaMustacheFactory;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.mustachejava.Code;
+import com.github.mustachejava.codes.PartialCode;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+public class InlinePartialsPassTest {
+
+    private static final String PAGE = "views/page.mustache";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    File root;
+
+    Map<String, Object> scope;
+
+    @Before
+    public void setUp() throws Exception {
+	root = folder.newFolder();
+	write(root, "views/header.mustache", "<header><h1>Ninja</h1></header>");
+	write(root, "views/footer.mustache", "<footer>{{year}}</footer>");
+	write(root, "views/tree.mustache",
+		"<li>{{name}}<ul>{{#children}}{{> views/tree}}{{/children}}</ul></li>");
+	write(root, PAGE,
+		"<body>{{> views/header}}<ul>{{#tree}}{{> views/tree}}"
+			+ "{{/tree}}</ul>{{> views/footer}}</body>");
+	Map<String, Object> leaf = ImmutableMap.<String, Object> of("name",
+		"leaf", "children", Collections.emptyList());
+	Map<String, Object> node = ImmutableMap.<String, Object> of("name",
+		"node", "children", Arrays.asList(leaf, leaf));
+	scope = Maps.newHashMap();
+	scope.put("tree", ImmutableMap.of("name", "root", "children",
+		Arrays.asList(node)));
+	scope.put("year", 2013);
+    }
+
+    @Test
+    public void testInlinedTemplateRendersLikeTheOriginal() {
+	String expected = render(new NinjaMustacheFactory(root));
+	assertEquals("<body><header><h1>Ninja</h1></header><ul><li>root<ul>"
+		+ "<li>node<ul><li>leaf<ul></ul></li><li>leaf<ul></ul></li>"
+		+ "</ul></li></ul></li></ul><footer>2013</footer></body>",
+		expected);
+	assertEquals(expected, render(newFactory()));
+    }
+
+    @Test
+    public void testStaticPartialsBecomeConstantText() {
+	Code[] codes = newFactory().compile(PAGE).getCodes();
+	assertTrue(codes[0] instanceof TextCode);
+	assertEquals("<body><header><h1>Ninja</h1></header><ul>",
+		((TextCode) codes[0]).getText());
+	assertEquals(0, countPartials(codes[2]));
+	assertEquals(1, countPartials(codes[1]));
+    }
+
+    private int countPartials(Code code) {
+	if (code instanceof PartialCode) {
+	    return 1;
+	}
+	int count = 0;
+	if (code.getCodes() != null) {
+	    for (Code child : code.getCodes()) {
+		count += countPartials(child);
+	    }
+	}
+	return count;
+    }
+
+    private String render(NinjaMustacheFactory factory) {
+	return factory.compile(PAGE).execute(new StringWriter(), scope)
+		.toString();
+    }
+
+    private NinjaMustacheFactory newFactory() {
+	NinjaMustacheFactory factory = new NinjaMustacheFactory(root);
+	factory.addCompilerPass(new InlinePartialsPass());
+	factory.addCompilerPass(new CoalesceTextPass());
+	return factory;
+    }
+}
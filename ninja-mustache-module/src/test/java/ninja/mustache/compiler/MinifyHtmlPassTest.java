@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.mustache.compiler;
+
+import static ninja.mustache.TemplateFixtures.write;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Map;
+
+import ninja.mustache.NinjaMustacheFactory;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.Maps;
+
+public class MinifyHtmlPassTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    File root;
+
+    Map<String, Object> scope;
+
+    @Before
+    public void setUp() throws Exception {
+	root = folder.newFolder();
+	scope = Maps.newHashMap();
+	scope.put("title", "Ninja  rocks");
+	scope.put("css", "main");
+    }
+
+    @Test
+    public void testWhitespaceIsCollapsed() throws Exception {
+	assertEquals("<html>\n<head> <title>Ninja  rocks</title>\n</head>\n"
+		+ "<body class=\"a  b\"><p>Hello world</p>\n</body>\n</html>",
+		render("<html>\n    <head>  <title>{{title}}</title>\n"
+			+ "    </head>\n\n    <body   class=\"a  b\">"
+			+ "<p>Hello    world</p>\n    </body>\n</html>"));
+    }
+
+    @Test
+    public void testCommentsAreStripped() throws Exception {
+	assertEquals("<p>a</p> <!--[if IE]><p>ie</p><![endif]-->",
+		render("<!-- header --><p>a</p> <!--[if IE]><p>ie</p>"
+			+ "<![endif]-->"));
+    }
+
+    @Test
+    public void testCommentsAreStrippedWithTheirTags() throws Exception {
+	assertEquals("<p>a</p><p>b</p>",
+		render("<p>a</p><!-- {{title}} {{#css}}<p>{{css}}</p>{{/css}}"
+			+ " --><p>b</p>"));
+    }
+
+    @Test
+    public void testRawElementsAreKept() throws Exception {
+	String pre = "<pre class=\"{{css}}\">\n  a   b\n</pre>";
+	String script = "<script>\n  if (a < b) {\n    go();\n  }\n</script>";
+	String textarea = "<TEXTAREA>  x  </TEXTAREA>";
+	String style = "<style>\n  p  { margin: 0 }\n</style>";
+	assertEquals(
+		"<pre class=\"main\">\n  a   b\n</pre> "
+			+ script.replace("{{css}}", "main") + " " + textarea
+			+ " " + style + " <p>1 < 2</p>",
+		render(pre + "  " + script + "  " + textarea + "  " + style
+			+ "  <p>1  <  2</p>"));
+    }
+
+    @Test
+    public void testLessThanEndingASegmentIsText() throws Exception {
+	scope.put("n", 3);
+	assertEquals("<p>a <3 \"big items\"</p>",
+		render("<p>a <{{n}}  \"big   items\"</p>"));
+    }
+
+    @Test
+    public void testSectionsStartWhereTheirTemplateIs() throws Exception {
+	assertEquals("<pre>  a   b</pre> <p> c </p>",
+		render("<pre>{{#css}}  a   b{{/css}}</pre>  "
+			+ "{{#css}}<p>  c  </p>{{/css}}"));
+    }
+
+    @Test
+    public void testSectionsOpeningElementsAreKept() throws Exception {
+	String template = "<p> a </p>{{#css}}<pre>{{/css}}  a   b  "
+		+ "{{#css}}</pre>{{/css}}<p>  c  </p>";
+	assertEquals("<p> a </p><pre>  a   b  </pre><p>  c  </p>",
+		render(template));
+	scope.remove("css");
+	assertEquals("<p> a </p>  a   b  <p>  c  </p>", render(template));
+    }
+
+    private String render(String template) throws IOException {
+	write(root, "views/page.mustache", template);
+	NinjaMustacheFactory factory = new NinjaMustacheFactory(root);
+	factory.addCompilerPass(new CoalesceTextPass());
+	factory.addCompilerPass(new MinifyHtmlPass());
+	return factory.compile("views/page.mustache")
+		.execute(new StringWriter(), scope).toString();
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.mustache.compiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class OutputCacheTest {
+
+    static final List<Object> KEY = Arrays.<Object> asList("views/nav", "en");
+
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    int renders;
+
+    @After
+    public void tearDown() {
+	executor.shutdownNow();
+    }
+
+    @Test
+    public void testOutputIsKeptUntilEvicted() {
+	OutputCache cache = new OutputCache(10);
+	assertNull(cache.get(KEY, new Renderer(cache, "nav 1")));
+	cache.put(KEY, "nav 0");
+	assertEquals("nav 0", cache.get(KEY, new Renderer(cache, "nav 1")));
+	assertEquals(0, renders);
+	assertEquals(1, cache.getHits());
+	assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testStaleOutputIsRefreshedByTheRequestFindingIt()
+	    throws Exception {
+	OutputCache cache = new OutputCache(10, 1, 60000);
+	cache.put(KEY, "nav 0");
+	Thread.sleep(5);
+	Renderer renderer = new Renderer(cache, "nav 1");
+	assertEquals("nav 1", cache.get(KEY, renderer));
+	assertSame(Thread.currentThread(), renderer.thread);
+	assertEquals(1, renders);
+	assertEquals(1, cache.getRefreshes());
+	assertEquals(0, cache.getStaleHits());
+    }
+
+    @Test
+    public void testConcurrentRequestsGetTheStaleOutput() throws Exception {
+	final OutputCache cache = new OutputCache(10, 1, 60000);
+	cache.put(KEY, "nav 0");
+	Thread.sleep(5);
+	final Renderer concurrent = new Renderer(cache, "nav 2");
+	assertEquals("nav 1", cache.get(KEY, new Renderer(cache, "nav 1") {
+	    @Override
+	    public String call() throws Exception {
+		// another request while this one refreshes the output
+		assertEquals("nav 0", executor.submit(new Callable<String>() {
+		    @Override
+		    public String call() {
+			return cache.get(KEY, concurrent);
+		    }
+		}).get());
+		return super.call();
+	    }
+	}));
+	assertNull(concurrent.thread);
+	assertEquals(1, renders);
+	assertEquals(1, cache.getStaleHits());
+    }
+
+    @Test
+    public void testFailedRefreshKeepsTheStaleOutput() throws Exception {
+	OutputCache cache = new OutputCache(10, 1, 60000);
+	cache.put(KEY, "nav 0");
+	Thread.sleep(5);
+	assertEquals("nav 0", cache.get(KEY, new Callable<String>() {
+	    @Override
+	    public String call() {
+		throw new IllegalStateException("down");
+	    }
+	}));
+	assertEquals(1, cache.getRefreshFailures());
+	assertEquals("nav 1", cache.get(KEY, new Renderer(cache, "nav 1")));
+	assertEquals(1, cache.getRefreshes());
+    }
+
+    @Test
+    public void testTooOldOutputIsRenderedAgain() throws Exception {
+	OutputCache cache = new OutputCache(10, 1, 1);
+	cache.put(KEY, "nav 0");
+	Thread.sleep(10);
+	assertNull(cache.get(KEY, new Renderer(cache, "nav 1")));
+	assertEquals(0, renders);
+	assertEquals(1, cache.getMisses());
+    }
+
+    /**
+     * Renders an output and keeps it, remembering the thread rendering it
+     */
+    private class Renderer implements Callable<String> {
+	private final OutputCache cache;
+	private final String output;
+	private Thread thread;
+
+	Renderer(OutputCache cache, String output) {
+	    this.cache = cache;
+	    this.output = output;
+	}
+
+	@Override
+	public String call() throws Exception {
+	    thread = Thread.currentThread();
+	    renders++;
+	    cache.put(KEY, output);
+	    return output;
+	}
+    }
+}
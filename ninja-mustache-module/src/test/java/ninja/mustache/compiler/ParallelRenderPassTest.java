@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.mustache.compiler;
+
+import static ninja.mustache.TemplateFixtures.write;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import ninja.mustache.NinjaMustacheFactory;
+import ninja.mustache.RenderDeadline;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.mustachejava.MustacheException;
+import com.google.common.collect.Maps;
+
+public class ParallelRenderPassTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    File root;
+
+    ExecutorService executor;
+
+    NinjaMustacheFactory factory;
+
+    @Before
+    public void setUp() throws Exception {
+	root = folder.newFolder();
+	write(root, "views/dashboard.mustache",
+		"{{%PARALLEL}}<h1>{{title}}</h1>{{#sales}}{{value}}"
+			+ "{{/sales}}, {{#stock}}{{value}}{{/stock}}, "
+			+ "{{#alerts}}{{value}}{{/alerts}}");
+	executor = Executors.newFixedThreadPool(3);
+	factory = new NinjaMustacheFactory(root);
+	factory.addCompilerPass(new ParallelRenderPass(executor));
+    }
+
+    @After
+    public void tearDown() {
+	executor.shutdownNow();
+    }
+
+    @Test
+    public void testSectionsAreRenderedConcurrentlyInOrder() {
+	CountDownLatch latch = new CountDownLatch(3);
+	Map<String, Object> scope = Maps.newHashMap();
+	scope.put("title", "Dashboard");
+	scope.put("sales", new Widget("sales", latch));
+	scope.put("stock", new Widget("stock", latch));
+	scope.put("alerts", new Widget("alerts", latch));
+
+	assertEquals("<h1>Dashboard</h1>sales, stock, alerts", factory
+		.compile("views/dashboard.mustache")
+		.execute(new StringWriter(), scope).toString());
+    }
+
+    @Test(timeout = 10000)
+    public void testNestedParallelTemplatesOnASaturatedExecutor()
+	    throws Exception {
+	write(root, "views/nested.mustache",
+		"{{%PARALLEL}}[{{>views/p1}}][{{>views/p2}}]");
+	write(root, "views/p1.mustache",
+		"{{%PARALLEL}}{{#a}}x{{/a}}{{#b}}y{{/b}}");
+	write(root, "views/p2.mustache",
+		"{{%PARALLEL}}{{#a}}x{{/a}}{{#b}}y{{/b}}");
+	ExecutorService saturated = new ThreadPoolExecutor(1, 1, 0,
+		TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1),
+		new ThreadPoolExecutor.CallerRunsPolicy());
+	try {
+	    NinjaMustacheFactory nested = new NinjaMustacheFactory(root);
+	    nested.addCompilerPass(new ParallelRenderPass(saturated));
+	    Map<String, Object> scope = Maps.newHashMap();
+	    scope.put("a", true);
+	    scope.put("b", true);
+	    assertEquals("[xy][xy]", nested.compile("views/nested.mustache")
+		    .execute(new StringWriter(), scope).toString());
+	} finally {
+	    saturated.shutdownNow();
+	}
+    }
+
+    @Test(expected = MustacheException.class, timeout = 10000)
+    public void testSectionsAreWaitedForUntilTheDeadline() {
+	Map<String, Object> scope = Maps.newHashMap();
+	CountDownLatch never = new CountDownLatch(4);
+	scope.put("sales", new Widget("sales", never));
+	scope.put("stock", new Widget("stock", never));
+	RenderDeadline previous = RenderDeadline.set(RenderDeadline.after(
+		100, TimeUnit.MILLISECONDS));
+	try {
+	    factory.compile("views/dashboard.mustache").execute(
+		    new StringWriter(), scope);
+	} finally {
+	    RenderDeadline.set(previous);
+	}
+    }
+
+    /**
+     * Only answers once all the widgets are being rendered
+     */
+    public static class Widget {
+	private final String name;
+	private final CountDownLatch latch;
+
+	Widget(String name, CountDownLatch latch) {
+	    this.name = name;
+	    this.latch = latch;
+	}
+
+	public String value() throws InterruptedException {
+	    latch.countDown();
+	    return latch.await(2, TimeUnit.SECONDS) ? name : "timeout";
+	}
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.mustache.compiler;
+
+import static ninja.mustache.TemplateFixtures.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import ninja.mustache.NinjaMustacheFactory;
+import ninja.mustache.RenderTrace;
+import ninja.mustache.RenderTrace.Section;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.Maps;
+
+public class TraceSectionsPassTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    File root;
+
+    NinjaMustacheFactory factory;
+
+    Map<String, Object> scope;
+
+    @Before
+    public void setUp() throws Exception {
+	root = folder.newFolder();
+	write(root, "views/page.mustache",
+		"<h1>{{title}}</h1>{{#fast}}fast{{/fast}}"
+			+ "{{#slow}}{{value}}{{/slow}}");
+	factory = new NinjaMustacheFactory(root);
+	factory.addCompilerPass(new TraceSectionsPass());
+	scope = Maps.newHashMap();
+	scope.put("title", "Title");
+	scope.put("fast", true);
+	scope.put("slow", new Slow());
+    }
+
+    @Test
+    public void testSectionsAreTimedIntoTheTrace() {
+	RenderTrace trace = RenderTrace.start();
+	try {
+	    assertEquals("<h1>Title</h1>fastslow", render());
+	} finally {
+	    trace.stop();
+	}
+	List<Section> slowest = trace.getSlowestSections(5);
+	assertEquals(2, slowest.size());
+	assertEquals("{{#slow}}", slowest.get(0).getName());
+	assertTrue(slowest.get(0).getTime(TimeUnit.MILLISECONDS) >= 20);
+	assertEquals("{{#fast}}", slowest.get(1).getName());
+	assertEquals(1, trace.getSlowestSections(1).size());
+    }
+
+    @Test
+    public void testSectionsOfParallelPageAreTimedIntoTheTrace()
+	    throws Exception {
+	write(root, "views/parallel.mustache",
+		"{{%PARALLEL}}<h1>{{title}}</h1>{{#fast}}fast{{/fast}}"
+			+ "{{#slow}}{{value}}{{/slow}}");
+	ExecutorService executor = Executors.newFixedThreadPool(2);
+	factory.addCompilerPass(new ParallelRenderPass(executor));
+	RenderTrace trace = RenderTrace.start();
+	try {
+	    assertEquals("<h1>Title</h1>fastslow",
+		    factory.compile("views/parallel.mustache")
+			    .execute(new StringWriter(), scope).toString());
+	} finally {
+	    trace.stop();
+	    executor.shutdownNow();
+	}
+	List<Section> slowest = trace.getSlowestSections(5);
+	assertEquals(2, slowest.size());
+	assertEquals("{{#slow}}", slowest.get(0).getName());
+    }
+
+    @Test
+    public void testUntracedRenderingIsNotAffected() {
+	assertEquals("<h1>Title</h1>fastslow", render());
+	assertEquals(null, RenderTrace.current());
+    }
+
+    private String render() {
+	return factory.compile("views/page.mustache")
+		.execute(new StringWriter(), scope).toString();
+    }
+
+    public static class Slow {
+	public String value() throws InterruptedException {
+	    Thread.sleep(20);
+	    return "slow";
+	}
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.mustache.site;
+
+import static ninja.mustache.TemplateFixtures.write;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import ninja.mustache.site.StaticSiteGenerator.Report;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class StaticSiteGeneratorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    File root;
+
+    File output;
+
+    @Before
+    public void setUp() throws Exception {
+	root = folder.newFolder();
+	output = new File(root, "site");
+	write(root, "views/layout.mustache",
+		"<h1>{{#i18n}}title{{/i18n}}</h1>{{$body}}{{/body}}");
+	write(root, "views/index.mustache",
+		"{{<views/layout}}{{$body}}{{#items}}"
+			+ "<li>{{name}}</li>{{/items}}{{/body}}"
+			+ "{{/views/layout}}");
+	write(root, "views/about.mustache", "{{lang}}: {{#i18n}}about{{/i18n}}"
+		+ " {{email}}");
+	write(root, "messages/messages.properties",
+		"title=Welcome\nabout=About us");
+	write(root, "messages/messages_en.properties", "");
+	write(root, "messages/messages_fr.properties", "title=Bienvenue");
+	write(root, "models/index.json",
+		"{\"items\": [{\"name\": \"a \\\"b\\\"\"}, {\"name\": 2}]}");
+	write(root, "models/about.properties", "email=info@example.com");
+    }
+
+    @Test
+    public void testEveryPageIsRenderedInEveryLanguage() throws Exception {
+	Report report = generate();
+
+	assertEquals(4, report.getPages().size());
+	assertEquals(0, report.getFailures());
+	assertEquals("<h1>Welcome</h1><li>a &quot;b&quot;</li><li>2</li>",
+		read("en/index.html"));
+	assertEquals("<h1>Bienvenue</h1><li>a &quot;b&quot;</li><li>2</li>",
+		read("fr/index.html"));
+	assertEquals("fr: About us info@example.com", read("fr/about.html"));
+    }
+
+    @Test
+    public void testUnchangedPagesAreSkipped() throws Exception {
+	generate();
+	write(root, "messages/messages_fr.properties", "title=Salut");
+	write(root, "views/layout.mustache", "<h2>{{#i18n}}title{{/i18n}}</h2>"
+		+ "{{$body}}{{/body}}");
+
+	Report report = generate();
+	assertEquals(1, report.getSkipped());
+	assertEquals("<h2>Salut</h2><li>a &quot;b&quot;</li><li>2</li>",
+		read("fr/index.html"));
+
+	report = generate();
+	assertEquals(4, report.getSkipped());
+    }
+
+    @Test
+    public void testFailuresAreReportedPerPage() throws Exception {
+	write(root, "models/missing.json", "{}");
+
+	Report report = generate();
+	assertEquals(2, report.getFailures());
+	assertTrue(new File(output, "en/index.html").isFile());
+    }
+
+    private Report generate() throws IOException {
+	return new StaticSiteGenerator(new File(root, "views"), new File(root,
+		"messages"), new File(root, "models"), output, 4).generate();
+    }
+
+    private String read(String name) throws IOException {
+	return Files.toString(new File(output, name), Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.mustache.template;
+
+import static ninja.mustache.template.BatchRenderer.FAILURE_SAMPLE_SIZE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import ninja.mustache.template.BatchRenderer.BufferSink;
+import ninja.mustache.template.BatchRenderer.Failure;
+import ninja.mustache.template.BatchRenderer.Report;
+import ninja.mustache.template.BatchRenderer.WriterSink;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.mustachejava.DefaultMustacheFactory;
+import com.github.mustachejava.Mustache;
+import com.google.common.collect.AbstractIterator;
+
+public class BatchRendererTest {
+
+    List<Map<String, Object>> models;
+
+    BatchRenderer batchRenderer;
+
+    @Before
+    public void setUp() {
+	DefaultMustacheFactory factory = new DefaultMustacheFactory() {
+	    @Override
+	    public Mustache compile(String name) {
+		return compile(new StringReader("Hello {{name}}!"), name);
+	    }
+	};
+	models = new ArrayList<Map<String, Object>>();
+	for (int i = 0; i < 1000; i++) {
+	    models.add(Collections.<String, Object> singletonMap("name", "user"
+		    + i));
+	}
+	batchRenderer = new BatchRenderer(factory, 4);
+    }
+
+    @Test
+    public void testEveryModelIsRenderedIntoPooledBuffers() {
+	final Map<Object, String> outputs = new ConcurrentHashMap<Object, String>();
+	Report report = batchRenderer.render("email", models,
+		new BufferSink<Map<String, Object>>() {
+		    @Override
+		    public void accept(Map<String, Object> model,
+			    CharSequence output) {
+			outputs.put(model.get("name"), output.toString());
+		    }
+		});
+
+	assertEquals(1000, report.getRendered());
+	assertTrue(report.getFailures().isEmpty());
+	assertEquals(1000, outputs.size());
+	assertEquals("Hello user42!", outputs.get("user42"));
+    }
+
+    @Test
+    public void testEveryModelIsRenderedIntoItsOwnWriter() {
+	final Map<Object, StringWriter> outputs = new ConcurrentHashMap<Object, StringWriter>();
+	Report report = batchRenderer.render("email", models,
+		new WriterSink<Map<String, Object>>() {
+		    @Override
+		    public Writer open(Map<String, Object> model) {
+			StringWriter writer = new StringWriter();
+			outputs.put(model.get("name"), writer);
+			return writer;
+		    }
+		});
+
+	assertEquals(1000, report.getRendered());
+	assertEquals("Hello user999!", outputs.get("user999").toString());
+    }
+
+    @Test
+    public void testFailuresAreReportedPerModel() {
+	Report report = batchRenderer.render("email", models,
+		new WriterSink<Map<String, Object>>() {
+		    @Override
+		    public Writer open(Map<String, Object> model)
+			    throws IOException {
+			if (model.get("name").equals("user7")) {
+			    throw new IOException("disk full");
+			}
+			return new StringWriter();
+		    }
+		});
+
+	assertEquals(999, report.getRendered());
+	assertEquals(1, report.getFailed());
+	assertEquals(7, report.getFailures().get(0).getIndex());
+	assertEquals("disk full", report.getFailures().get(0).getException()
+		.getMessage());
+    }
+
+    @Test
+    public void testFailuresOfAReusedModelAreCountedAndSampled() {
+	final Map<String, Object> row = new HashMap<String, Object>();
+	Iterable<Map<String, Object>> cursor = new Iterable<Map<String, Object>>() {
+	    @Override
+	    public Iterator<Map<String, Object>> iterator() {
+		return new AbstractIterator<Map<String, Object>>() {
+		    int i;
+
+		    @Override
+		    protected Map<String, Object> computeNext() {
+			if (i == 1000) {
+			    return endOfData();
+			}
+			row.put("name", "user" + i++);
+			return row;
+		    }
+		};
+	    }
+	};
+	Report report = batchRenderer.render("email", cursor,
+		new BufferSink<Map<String, Object>>() {
+		    @Override
+		    public void accept(Map<String, Object> model,
+			    CharSequence output) throws IOException {
+			throw new IOException("mail server down");
+		    }
+		});
+
+	assertEquals(0, report.getRendered());
+	assertEquals(1000, report.getFailed());
+	assertEquals(FAILURE_SAMPLE_SIZE, report.getFailures().size());
+	Set<Long> indexes = new HashSet<Long>();
+	for (Failure failure : report.getFailures()) {
+	    indexes.add(failure.getIndex());
+	}
+	assertEquals(FAILURE_SAMPLE_SIZE, indexes.size());
+    }
+}
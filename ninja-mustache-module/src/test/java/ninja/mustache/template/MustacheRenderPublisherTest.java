@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.mustache.template;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import ninja.mustache.template.RenderPublisher.RenderSubscriber;
+import ninja.mustache.template.RenderPublisher.RenderSubscription;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.mustachejava.DefaultMustacheFactory;
+import com.github.mustachejava.Mustache;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+
+public class MustacheRenderPublisherTest {
+
+    ExecutorService executor;
+
+    Mustache mustache;
+
+    @Before
+    public void setUp() {
+	executor = Executors.newSingleThreadExecutor();
+	mustache = new DefaultMustacheFactory().compile(new StringReader(
+		"{{#items}}<li>{{.}}</li>{{/items}}"), "list");
+    }
+
+    @After
+    public void tearDown() {
+	executor.shutdownNow();
+    }
+
+    @Test
+    public void testOutputIsEmittedOnDemand() throws Exception {
+	TestSubscriber subscriber = new TestSubscriber();
+	new MustacheRenderPublisher(mustache, Collections.singletonMap(
+		"items", Collections.nCopies(100, "ninja")), Charsets.UTF_8,
+		executor, 16).subscribe(subscriber);
+
+	subscriber.subscription.request(2);
+	Thread.sleep(100);
+	assertEquals(32, subscriber.output.length());
+
+	subscriber.subscription.request(Long.MAX_VALUE);
+	assertTrue(subscriber.completed.await(5, TimeUnit.SECONDS));
+	assertEquals(Strings.repeat("<li>ninja</li>", 100),
+		subscriber.output.toString());
+	assertNull(subscriber.error);
+    }
+
+    @Test
+    public void testCancelStopsRendering() throws Exception {
+	TestSubscriber subscriber = new TestSubscriber();
+	new MustacheRenderPublisher(mustache, Collections.singletonMap(
+		"items", Collections.nCopies(100, "ninja")), Charsets.UTF_8,
+		executor, 16).subscribe(subscriber);
+
+	subscriber.subscription.request(1);
+	Thread.sleep(100);
+	subscriber.subscription.cancel();
+	subscriber.subscription.request(10);
+	Thread.sleep(100);
+	assertEquals(16, subscriber.output.length());
+	assertEquals(1, subscriber.completed.getCount());
+	assertNull(subscriber.error);
+    }
+
+    @Test
+    public void testNonPositiveRequestIsSignalledOutOfTheLock()
+	    throws Exception {
+	final AtomicBoolean locked = new AtomicBoolean(true);
+	TestSubscriber subscriber = new TestSubscriber() {
+	    @Override
+	    public void onError(Throwable throwable) {
+		super.onError(throwable);
+		locked.set(Thread.holdsLock(subscription));
+	    }
+	};
+	new MustacheRenderPublisher(mustache, Collections.emptyMap(),
+		Charsets.UTF_8, executor).subscribe(subscriber);
+
+	subscriber.subscription.request(0);
+
+	assertTrue(subscriber.error instanceof IllegalArgumentException);
+	assertFalse(locked.get());
+    }
+
+    static class TestSubscriber implements RenderSubscriber {
+
+	RenderSubscription subscription;
+	StringBuffer output = new StringBuffer();
+	CountDownLatch completed = new CountDownLatch(1);
+	Throwable error;
+
+	@Override
+	public void onSubscribe(RenderSubscription subscription) {
+	    this.subscription = subscription;
+	}
+
+	@Override
+	public void onNext(ByteBuffer buffer) {
+	    output.append(Charsets.UTF_8.decode(buffer));
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+	    error = throwable;
+	}
+
+	@Override
+	public void onComplete() {
+	    completed.countDown();
+	}
+    }
+}
@@ -25,7 +25,10 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
@@ -34,7 +37,14 @@ import ninja.Result;
 import ninja.Route;
 import ninja.i18n.Lang;
 import ninja.i18n.Messages;
+import ninja.mustache.RenderBreaker;
+import ninja.mustache.RenderEvent;
+import ninja.mustache.RenderEvent.Type;
+import ninja.mustache.RenderEventListener;
+import ninja.mustache.RenderEvents;
+import ninja.mustache.RenderProfiler;
 import ninja.mustache.exception.NinjaExceptionHandler;
+import ninja.mustache.template.MustacheRenderPublisherTest.TestSubscriber;
 import ninja.mustache.utils.MustacheConstant;
 import ninja.session.FlashScope;
 import ninja.session.Session;
@@ -45,6 +55,7 @@ import ninja.utils.ResponseStreams;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
@@ -53,9 +64,12 @@ import org.mockito.stubbing.Answer;
 import org.slf4j.Logger;
 
 import com.github.mustachejava.Mustache;
+import com.github.mustachejava.MustacheException;
 import com.github.mustachejava.MustacheFactory;
 import com.google.common.base.Optional;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.inject.util.Providers;
 
 @RunWith(MockitoJUnitRunner.class)
 public class TemplateEngineMustacheTest {
@@ -108,6 +122,8 @@ public class TemplateEngineMustacheTest {
     @Mock
     Mustache mustacheError;
 
+    RenderEvents renderEvents = RenderEvents.none();
+
     MustacheTemplateEngine mustacheTemplate;
 
     @Before
@@ -119,9 +135,7 @@ public class TemplateEngineMustacheTest {
 	mockCookies();
 	mockFlashCookies();
 
-	mustacheTemplate = new MustacheTemplateEngine(messages, lang,
-		ninjaLogger, exceptionHandler, templateHelper,
-		templateEngineManager, ninjaProperties, engine);
+	mustacheTemplate = newMustacheTemplate();
     }
 
     @Test
@@ -196,6 +210,227 @@ public class TemplateEngineMustacheTest {
 		Mockito.eq(responseStreams));
     }
 
+    @Test
+    public void testServerTimingHeaderOnRequest() throws Exception {
+	when(ninjaProperties.get(
+		MustacheConstant.PROPERTY_SERVER_TIMING_HEADER)).thenReturn(
+		"X-Server-Timing");
+	when(contextRenerable.getHeader("X-Server-Timing")).thenReturn("1");
+	mustacheTemplate = newMustacheTemplate();
+	StringWriter writer = new StringWriter();
+	when(responseStreams.getWriter()).thenReturn(writer);
+	when(mustache.execute(Mockito.any(Writer.class), Mockito.any(HashMap.class)))
+		.then(new Answer<Writer>() {
+		    public Writer answer(InvocationOnMock invocation)
+			    throws Throwable {
+			Writer writer = (Writer) invocation.getArguments()[0];
+			writer.write("timed");
+			return writer;
+		    }
+		});
+	when(engine.compile(Mockito.eq("TemplateName"))).thenReturn(mustache);
+
+	mustacheTemplate.invoke(contextRenerable, result);
+
+	assertEquals("timed", writer.toString());
+	InOrder inOrder = Mockito.inOrder(result, contextRenerable);
+	inOrder.verify(result).addHeader(
+		Mockito.eq("Server-Timing"),
+		Mockito.matches("model;dur=[0-9.]+, compile;dur=[0-9.]+, "
+			+ "render;dur=[0-9.]+"));
+	inOrder.verify(contextRenerable).finalizeHeaders(result);
+    }
+
+    @Test
+    public void testNoServerTimingHeaderByDefault() throws Exception {
+	testInvoke();
+	verify(result, Mockito.never()).addHeader(Mockito.eq("Server-Timing"),
+		Mockito.anyString());
+    }
+
+    @Test
+    public void testRenderAndErrorEvents() throws Exception {
+	final List<RenderEvent> events = new ArrayList<RenderEvent>();
+	RenderEventListener listener = new RenderEventListener() {
+	    @Override
+	    public void onEvent(RenderEvent event) {
+		events.add(event);
+	    }
+	};
+	when(contextRenerable.finalizeHeaders(Mockito.any(Result.class)))
+		.thenReturn(responseStreams);
+	when(responseStreams.getWriter()).thenReturn(new StringWriter());
+	when(mustache.execute(Mockito.any(Writer.class), Mockito.any(HashMap.class)))
+		.thenThrow(new MustacheException("broken"));
+	when(engine.compile(Mockito.eq("TemplateName"))).thenReturn(mustache);
+	when(
+		mustacheError.execute(Mockito.any(Writer.class),
+			Mockito.any(Object.class))).thenReturn(
+		new StringWriter().append("error"));
+	when(
+		engine.compile(Mockito
+			.eq(MustacheConstant.LOCATION_VIEW_HTML_INTERNAL_SERVER_ERROR)))
+		.thenReturn(mustacheError);
+
+	renderEvents.addListener(listener);
+	mustacheTemplate.invoke(contextRenerable, result);
+
+	assertEquals(2, events.size());
+	assertEquals(Type.ERROR, events.get(0).getType());
+	assertEquals("TemplateName", events.get(0).getName());
+	assertEquals("broken", events.get(0).getError().getMessage());
+	assertEquals(5, events.get(0).getOutputSize());
+	assertEquals(Type.RENDER, events.get(1).getType());
+	assertEquals("TemplateName", events.get(1).getName());
+    }
+
+    @Test
+    public void testOpenCircuitServesLastGoodOutput() throws Exception {
+	mockBreaker(10);
+	when(cookie.isEmpty()).thenReturn(true);
+	StringWriter good = new StringWriter();
+	StringWriter fallback = new StringWriter();
+	when(responseStreams.getWriter()).thenReturn(good, fallback);
+	when(mustache.execute(Mockito.any(Writer.class), Mockito.any(HashMap.class)))
+		.then(new Answer<Writer>() {
+		    public Writer answer(InvocationOnMock invocation)
+			    throws Throwable {
+			Writer writer = (Writer) invocation.getArguments()[0];
+			writer.write("good");
+			return writer;
+		    }
+		}).thenThrow(new MustacheException("broken"));
+	when(engine.compile(Mockito.eq("TemplateName"))).thenReturn(mustache);
+	mockErrorPage();
+
+	mustacheTemplate.invoke(contextRenerable, result);
+	mustacheTemplate.invoke(contextRenerable, result);
+	mustacheTemplate.invoke(contextRenerable, result);
+
+	assertEquals("good", good.toString());
+	assertEquals("good", fallback.toString());
+	verify(mustache, Mockito.times(2)).execute(Mockito.any(Writer.class),
+		Mockito.any(HashMap.class));
+	verify(exceptionHandler, Mockito.times(1)).handleException(
+		Mockito.any(MustacheException.class), Mockito.anyString(),
+		Mockito.any(ResponseStreams.class));
+    }
+
+    @Test
+    public void testOutputWithFlashDataIsNotKept() throws Exception {
+	mockBreaker(10);
+	when(cookie.isEmpty()).thenReturn(true);
+	when(flashScope.getCurrentFlashCookieData()).thenReturn(
+		Collections.singletonMap("success", "Welcome back, kpacha"));
+	when(messages.get(Mockito.anyString(), Mockito.eq(contextRenerable),
+		Mockito.eq(Optional.of(result)))).thenReturn(
+		Optional.<String> absent());
+	StringWriter fallback = new StringWriter();
+	when(responseStreams.getWriter()).thenReturn(new StringWriter(),
+		fallback);
+	when(contextRenerable.finalizeHeaders(Mockito.any(Result.class)))
+		.thenReturn(responseStreams);
+	when(mustache.execute(Mockito.any(Writer.class), Mockito.any(HashMap.class)))
+		.thenReturn(new StringWriter())
+		.thenThrow(new MustacheException("broken"));
+	when(engine.compile(Mockito.eq("TemplateName"))).thenReturn(mustache);
+	mockErrorPage();
+
+	mustacheTemplate.invoke(contextRenerable, result);
+	mustacheTemplate.invoke(contextRenerable, result);
+	mustacheTemplate.invoke(contextRenerable, result);
+
+	assertEquals("error", fallback.toString());
+    }
+
+    @Test
+    public void testOpenCircuitServesErrorPage() throws Exception {
+	mockBreaker(0);
+	when(contextRenerable.finalizeHeaders(Mockito.any(Result.class)))
+		.thenReturn(responseStreams);
+	StringWriter fallback = new StringWriter();
+	when(responseStreams.getWriter()).thenReturn(new StringWriter(),
+		fallback);
+	when(mustache.execute(Mockito.any(Writer.class), Mockito.any(HashMap.class)))
+		.thenThrow(new MustacheException("broken"));
+	when(engine.compile(Mockito.eq("TemplateName"))).thenReturn(mustache);
+	mockErrorPage();
+
+	mustacheTemplate.invoke(contextRenerable, result);
+	mustacheTemplate.invoke(contextRenerable, result);
+
+	assertEquals("error", fallback.toString());
+	verify(mustache, Mockito.times(1)).execute(Mockito.any(Writer.class),
+		Mockito.any(HashMap.class));
+	verify(exceptionHandler, Mockito.times(1)).handleException(
+		Mockito.any(MustacheException.class), Mockito.anyString(),
+		Mockito.any(ResponseStreams.class));
+    }
+
+    @Test
+    public void testPublishSignalsFailuresAndCountsThemAgainstTheCircuit()
+	    throws Exception {
+	mockBreaker(0);
+	when(engine.compile(Mockito.eq("TemplateName"))).thenThrow(
+		new MustacheException("unbalanced section"));
+
+	TestSubscriber failed = new TestSubscriber();
+	mustacheTemplate.publish(contextRenerable, result,
+		MoreExecutors.sameThreadExecutor()).subscribe(failed);
+	failed.subscription.request(1);
+	TestSubscriber rejected = new TestSubscriber();
+	mustacheTemplate.publish(contextRenerable, result,
+		MoreExecutors.sameThreadExecutor()).subscribe(rejected);
+	rejected.subscription.request(1);
+
+	assertEquals("unbalanced section", failed.error.getMessage());
+	assertEquals("The circuit of TemplateName is open",
+		rejected.error.getMessage());
+	verify(engine, Mockito.times(1)).compile("TemplateName");
+    }
+
+    private MustacheTemplateEngine newMustacheTemplate() throws Exception {
+	return new MustacheTemplateEngine(messages, lang, ninjaLogger,
+		exceptionHandler, templateHelper, templateEngineManager,
+		ninjaProperties, Providers.of(engine), new RenderProfiler(
+			ninjaProperties), new RenderBreaker(ninjaProperties),
+		renderEvents);
+    }
+
+    /**
+     * Open the circuit of a template on its first failure
+     * 
+     * @param outputs
+     *            the number of last good outputs kept, for TemplateName
+     * @throws Exception
+     */
+    private void mockBreaker(int outputs) throws Exception {
+	when(ninjaProperties
+		.getStringArray(MustacheConstant.PROPERTY_BREAKER_OUTPUTS_TEMPLATES))
+		.thenReturn(new String[] { "TemplateName" });
+	when(ninjaProperties.getIntegerWithDefault(
+		MustacheConstant.PROPERTY_BREAKER_FAILURES, 0)).thenReturn(1);
+	when(ninjaProperties.getIntegerWithDefault(
+		MustacheConstant.PROPERTY_BREAKER_WINDOW, 10000)).thenReturn(
+		10000);
+	when(ninjaProperties.getIntegerWithDefault(
+		MustacheConstant.PROPERTY_BREAKER_OPEN, 30000)).thenReturn(60000);
+	when(ninjaProperties.getIntegerWithDefault(
+		MustacheConstant.PROPERTY_BREAKER_OUTPUTS, 0)).thenReturn(outputs);
+	mustacheTemplate = newMustacheTemplate();
+    }
+
+    private void mockErrorPage() {
+	when(
+		mustacheError.execute(Mockito.any(Writer.class),
+			Mockito.any(Object.class))).thenReturn(
+		new StringWriter().append("error"));
+	when(
+		engine.compile(Mockito
+			.eq(MustacheConstant.LOCATION_VIEW_HTML_INTERNAL_SERVER_ERROR)))
+		.thenReturn(mustacheError);
+    }
+
     private void mockContext() {
 	when(contextRenerable.finalizeHeaders(Mockito.eq(result))).thenReturn(
 		responseStreams);